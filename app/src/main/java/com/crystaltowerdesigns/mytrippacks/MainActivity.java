@@ -1,32 +1,47 @@
 package com.crystaltowerdesigns.mytrippacks;
 
-import android.annotation.SuppressLint;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.design.widget.Snackbar;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.view.ActionMode;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Toast;
 
 
+import com.crystaltowerdesigns.mytrippacks.data.DriverProfiles;
+import com.crystaltowerdesigns.mytrippacks.data.EpochDays;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract;
 import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
 import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
 import com.crystaltowerdesigns.mytrippacks.data.TripsProvider;
 
+import java.util.Calendar;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity implements android.support.v4.app.LoaderManager.LoaderCallbacks<Cursor> {
 
@@ -34,8 +49,27 @@ public class MainActivity extends AppCompatActivity implements android.support.v
     private static final int TRIP_LIST_LOADER = 0;
     private static final int STOPS_LOADER = 1;
 
+    // Columns shown in the trip list
+    private static final String[] TRIP_LIST_PROJECTION = {
+            TripEntry._ID,
+            TripEntry.COLUMN_TRIP_NUMBER,
+            TripEntry.COLUMN_STATE,
+            TripEntry.COLUMN_FROM_TO,
+            TripEntry.COLUMN_RECEIVED_DATE,
+            TripEntry.COLUMN_SUBMITTED_DATE,
+            TripEntry.COLUMN_HUB_INITIAL,
+            TripEntry.COLUMN_HUB_END};
+
     private final Random randomNumberClass = new Random(); // Initialize the randomNumberClass
+    /**
+     * Runs the deletes and their undo, in the order they were asked for.
+     */
+    private static final Executor BACKGROUND = Executors.newSingleThreadExecutor();
+
+    private final Handler handler = new Handler();
     private TripsCursorAdapter tripsCursorAdapter;
+    private TripListCache tripListCache;
+    private String driverProfile;
 
     private int getRandom(int upperBound, boolean zeroBased) {
         if (zeroBased)
@@ -49,12 +83,18 @@ public class MainActivity extends AppCompatActivity implements android.support.v
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        ListView tripPackListView = findViewById(R.id.database_list_view);
+        final ListView tripPackListView = findViewById(R.id.database_list_view);
 
         View emptyListView = findViewById(R.id.empty_inventory_view);
         tripPackListView.setEmptyView(emptyListView);
 
-        tripsCursorAdapter = new TripsCursorAdapter(this, null);
+        // The list shows the trips of the driver using the tablet
+        driverProfile = DriverProfiles.getActive(this);
+        showDriver();
+
+        // Show the cached first page right away, the loader replaces it once the database is open
+        tripListCache = new TripListCache(this, driverProfile);
+        tripsCursorAdapter = new TripsCursorAdapter(this, tripListCache.load(TRIP_LIST_PROJECTION));
         tripPackListView.setAdapter(tripsCursorAdapter);
 
         // item click listener
@@ -65,16 +105,71 @@ public class MainActivity extends AppCompatActivity implements android.support.v
                 Intent intent = new Intent(MainActivity.this, TripEditorActivity.class);
 
                 // Append the "id" on to the {@link TripEntry#CONTENT_URI}.
-                Uri currentTripUri = ContentUris.withAppendedId(TripEntry.CONTENT_URI, id);
+                Uri currentTripUri = TripsContract.buildProfileUri(ContentUris.withAppendedId(TripEntry.CONTENT_URI, id), driverProfile);
                 intent.setData(currentTripUri);
 
+                // The trips around it in the list, so the editor can read ahead and step through them
+                int first = Math.max(0, position - TripEditorActivity.NEIGHBOUR_WINDOW);
+                int last = Math.min(adapterView.getCount() - 1, position + TripEditorActivity.NEIGHBOUR_WINDOW);
+                long[] tripIds = new long[last - first + 1];
+                for (int i = 0; i < tripIds.length; i++)
+                    tripIds[i] = adapterView.getItemIdAtPosition(first + i);
+                intent.putExtra(TripEditorActivity.EXTRA_TRIP_IDS, tripIds);
+                intent.putExtra(TripEditorActivity.EXTRA_POSITION, position - first);
+
                 // Launch the {@link TripEditorActivity} to display the data for the current item.
                 startActivity(intent);
             }
         });
 
-        // Launch the loader
-        LoaderManager.getInstance(this).initLoader(TRIP_LIST_LOADER, null, this).forceLoad();
+        // Long press starts selecting trips, to close or submit them together
+        tripPackListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        tripPackListView.setMultiChoiceModeListener(new AbsListView.MultiChoiceModeListener() {
+            @Override
+            public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked) {
+                mode.setTitle(getString(R.string.trips_selected_fmt, tripPackListView.getCheckedItemCount()));
+            }
+
+            @Override
+            public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                mode.getMenuInflater().inflate(R.menu.trip_selection_menu, menu);
+                return true;
+            }
+
+            @Override
+            public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                return false;
+            }
+
+            @Override
+            public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                switch (item.getItemId()) {
+                    case R.id.action_close_trips:
+                        transitionTrips(tripPackListView.getCheckedItemIds(), TripEntry.STATE_CLOSED);
+                        mode.finish();
+                        return true;
+                    case R.id.action_submit_trips:
+                        transitionTrips(tripPackListView.getCheckedItemIds(), TripEntry.STATE_SUBMITTED);
+                        mode.finish();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+
+            @Override
+            public void onDestroyActionMode(ActionMode mode) {
+            }
+        });
+
+        // Launch the loader, it starts loading along with the activity
+        LoaderManager.getInstance(this).initLoader(TRIP_LIST_LOADER, null, this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacksAndMessages(null);
     }
 
     @Override
@@ -97,24 +192,150 @@ public class MainActivity extends AppCompatActivity implements android.support.v
             case R.id.action_delete_all_trips:
                 deleteAllTrips();
                 return true;
+            case R.id.action_switch_driver:
+                chooseDriver();
+                return true;
             default: {
             }
         }
         return super.onOptionsItemSelected(item);
     }
 
-    @SuppressLint("DefaultLocale")
+    /**
+     * Lets the user pick the driver from the profiles on the tablet, or add one.
+     */
+    private void chooseDriver() {
+        final List<String> profiles = DriverProfiles.list(this);
+        String[] names = new String[profiles.size() + 1];
+        for (int i = 0; i < profiles.size(); i++)
+            names[i] = driverName(profiles.get(i));
+        names[profiles.size()] = getString(R.string.add_driver);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.switch_driver)
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which < profiles.size())
+                            switchDriver(profiles.get(which));
+                        else
+                            addDriver();
+                    }
+                })
+                .show();
+    }
+
+    private void addDriver() {
+        final EditText nameEdit = new EditText(this);
+        nameEdit.setHint(R.string.hint_driver_name);
+        nameEdit.setSingleLine();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.add_driver)
+                .setView(nameEdit)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String profile = nameEdit.getText().toString().trim();
+                        // The default profile has no name of its own
+                        if (profile.isEmpty() || !TripsContract.isValidProfile(profile))
+                            Toast.makeText(MainActivity.this, R.string.invalid_driver_name, Toast.LENGTH_LONG).show();
+                        else
+                            switchDriver(profile);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Makes the profile the active one and lists its trips. Only its own database is read.
+     */
+    private void switchDriver(String profile) {
+        if (profile.equals(driverProfile))
+            return;
+        DriverProfiles.setActive(this, profile);
+        driverProfile = profile;
+        showDriver();
+        tripListCache = new TripListCache(this, driverProfile);
+        Cursor oldCursor = tripsCursorAdapter.swapCursor(tripListCache.load(TRIP_LIST_PROJECTION));
+        if (oldCursor instanceof MatrixCursor)
+            oldCursor.close();
+        LoaderManager.getInstance(this).restartLoader(TRIP_LIST_LOADER, null, this);
+    }
+
+    private void showDriver() {
+        if (getSupportActionBar() != null)
+            getSupportActionBar().setSubtitle(driverName(driverProfile));
+    }
+
+    private String driverName(String profile) {
+        return TripsContract.DEFAULT_PROFILE.equals(profile) ? getString(R.string.default_driver) : profile;
+    }
+
+    /**
+     * Moves the selected trips to the state in one provider call, submitted trips are dated today.
+     * Trips that can't make that move (for instance an assigned trip being submitted) are left as they are.
+     */
+    private void transitionTrips(long[] tripIds, int state) {
+        Calendar today = Calendar.getInstance();
+        Bundle extras = new Bundle();
+        extras.putLongArray(TripsContract.EXTRA_TRIP_IDS, tripIds);
+        extras.putInt(TripsContract.EXTRA_STATE, state);
+        extras.putString(TripsContract.EXTRA_DATE, EpochDays.format(EpochDays.fromCivil(today.get(Calendar.YEAR),
+                today.get(Calendar.MONTH) + 1, today.get(Calendar.DAY_OF_MONTH))));
+        extras.putString(TripsContract.EXTRA_PROFILE, driverProfile);
+        Bundle result = getContentResolver().call(TripEntry.CONTENT_URI, TripsContract.METHOD_TRANSITION_TRIPS, null, extras);
+        if (result != null)
+            Toast.makeText(this, getString(R.string.trips_transitioned_fmt, result.getInt(TripsContract.EXTRA_UPDATED),
+                    result.getInt(TripsContract.EXTRA_REJECTED)), Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Soft deletes every trip of the driver, with their stops, in one provider call made in the background:
+     * its UPDATE touches every trip. The trips can be restored from the snackbar until the provider purges them.
+     */
     private void deleteAllTrips() {
-        int tripsResult = getContentResolver().delete(TripEntry.CONTENT_URI, null, null);
-        int stopsResult = getContentResolver().delete(StopEntry.CONTENT_URI, null, null);
-        Toast.makeText(this, String.format("%d %s %d %s", tripsResult, "trips deleted.\n", stopsResult, "stops deleted."), Toast.LENGTH_LONG).show();
+        final ContentResolver resolver = getContentResolver();
+        final Bundle extras = new Bundle();
+        extras.putString(TripsContract.EXTRA_PROFILE, driverProfile);
+        BACKGROUND.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bundle result = resolver.call(TripEntry.CONTENT_URI, TripsContract.METHOD_SOFT_DELETE_TRIPS, null, extras);
+                if (result == null || result.getInt(TripsContract.EXTRA_UPDATED) == 0)
+                    return;
+                extras.putLong(TripsContract.EXTRA_DELETION, result.getLong(TripsContract.EXTRA_DELETION));
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showUndoDelete(result.getInt(TripsContract.EXTRA_UPDATED), extras);
+                    }
+                });
+            }
+        });
+    }
+
+    private void showUndoDelete(int tripCount, final Bundle extras) {
+        final ContentResolver resolver = getContentResolver();
+        Snackbar.make(findViewById(R.id.database_list_view), getString(R.string.trips_deleted_fmt, tripCount), Snackbar.LENGTH_LONG)
+                .setAction(R.string.undo, new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        BACKGROUND.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                resolver.call(TripEntry.CONTENT_URI, TripsContract.METHOD_UNDO_DELETE, null, extras);
+                            }
+                        });
+                    }
+                })
+                .show();
     }
 
     private void insertTripItem() {
         // Create a ContentValues object where column names are the keys.
         ContentValues TripValues = new ContentValues();
 
-        String maxString = TripsProvider.getMaximum(this.getBaseContext(), TripEntry.TABLE_NAME, TripEntry.COLUMN_TRIP_NUMBER);
+        String maxString = TripsProvider.getMaximum(this.getBaseContext(), driverProfile, TripEntry.TABLE_NAME, TripEntry.COLUMN_TRIP_NUMBER);
         if (maxString == null)
             maxString = "0";
         int nextTripNumber = Integer.parseInt(maxString) + 1;
@@ -135,45 +356,38 @@ public class MainActivity extends AppCompatActivity implements android.support.v
             stop_values.put(StopEntry.COLUMN_LOCATION, String.format("'location' %d", count));
             stop_values.put(StopEntry.COLUMN_DATE_COMPLETED, "2018-01-01");
             stop_values.put(StopEntry.COLUMN_HUB, 0);
-            stop_values.put(StopEntry.COLUMN_SORT_INDEX, count);
+            stop_values.put(StopEntry.COLUMN_SORT_INDEX, count * StopEntry.RANK_GAP);
             if (count == 1)
                 fromTo = String.format("'location' %d", count);
             else if (count == howManyToAdd)
                 fromTo = fromTo + " to " + String.format("'location' %d", count);
 
             // Insert the stop record into the stop table
-            @SuppressWarnings("unused") Uri newStopUri = getContentResolver().insert(StopEntry.CONTENT_URI, stop_values);
+            @SuppressWarnings("unused") Uri newStopUri = getContentResolver().insert(TripsContract.buildProfileUri(StopEntry.CONTENT_URI, driverProfile), stop_values);
         }
         fromTo = fromTo + " (" + howManyToAdd + " stops)";
         TripValues.put(TripEntry.COLUMN_FROM_TO, fromTo);
 
         // Insert the Trip record into the trip table
-        @SuppressWarnings("unused") Uri newTripUri = getContentResolver().insert(TripEntry.CONTENT_URI, TripValues);
+        @SuppressWarnings("unused") Uri newTripUri = getContentResolver().insert(TripsContract.buildProfileUri(TripEntry.CONTENT_URI, driverProfile), TripValues);
         Toast.makeText(this, String.format(getString(R.string.trip_added_fmt), nextTripNumber), Toast.LENGTH_SHORT).show();
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                TripEntry._ID,
-                TripEntry.COLUMN_TRIP_NUMBER,
-                TripEntry.COLUMN_STATE,
-                TripEntry.COLUMN_FROM_TO,
-                TripEntry.COLUMN_RECEIVED_DATE,
-                TripEntry.COLUMN_SUBMITTED_DATE,
-                TripEntry.COLUMN_HUB_INITIAL,
-                TripEntry.COLUMN_HUB_END};
-
         // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this, TripEntry.CONTENT_URI, projection, null, null, "CAST(" + TripEntry.COLUMN_TRIP_NUMBER + " AS FLOAT) DESC");
+        return new CursorLoader(this, TripsContract.buildProfileUri(TripEntry.CONTENT_URI, driverProfile), TRIP_LIST_PROJECTION, null, null, TripEntry.SORT_TRIP_NUMBER_DESC);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         cursor.moveToFirst();
         // Update {@link TripCursorAdapter} with this new cursor containing updated data
-        tripsCursorAdapter.swapCursor(cursor);
+        Cursor oldCursor = tripsCursorAdapter.swapCursor(cursor);
+        // The cached page isn't owned by the loader, close it here
+        if (oldCursor instanceof MatrixCursor)
+            oldCursor.close();
+        tripListCache.save(cursor);
     }
 
     @Override
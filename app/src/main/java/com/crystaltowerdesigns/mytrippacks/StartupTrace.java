@@ -0,0 +1,61 @@
+package com.crystaltowerdesigns.mytrippacks;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Cold start markers, so the time to the first trip on screen can be measured and tracked.
+ * <p>
+ * Each marker is logged once per process under the {@link #LOG_TAG} tag with the milliseconds
+ * since the process started, and also shows up as a (zero length) section in systrace.
+ */
+public final class StartupTrace {
+
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = "StartupTrace";
+
+    public static final int PROCESS_START = 0;
+    public static final int DB_OPEN = 1;
+    public static final int FIRST_QUERY = 2;
+    public static final int FIRST_BIND = 3;
+
+    private static final String[] MARKER_NAMES = {"process start", "db open", "first query", "first bind"};
+
+    /**
+     * Process start time, before API 24 the nearest we can get is this class being loaded,
+     * which happens when {@link com.crystaltowerdesigns.mytrippacks.data.TripsProvider} is created.
+     */
+    private static final long sProcessStart = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+            ? Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+
+    private static final boolean[] sMarked = new boolean[MARKER_NAMES.length];
+
+    // Constructor to prevent accidentally instantiating the StartupTrace class
+    private StartupTrace() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    /**
+     * Records a marker the first time it is reached, later calls are a cheap no-op.
+     *
+     * @param marker One of #PROCESS_START, #DB_OPEN, #FIRST_QUERY, #FIRST_BIND
+     */
+    public static void mark(int marker) {
+        synchronized (sMarked) {
+            if (sMarked[marker])
+                return;
+            sMarked[marker] = true;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - sProcessStart;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection("startup: " + MARKER_NAMES[marker]);
+            Trace.endSection();
+        }
+        Log.i(LOG_TAG, String.format("%s +%dms", MARKER_NAMES[marker], elapsed));
+    }
+}
@@ -1,13 +1,440 @@
 package com.crystaltowerdesigns.mytrippacks;
 
-import android.support.v7.app.AppCompatActivity;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
+import com.crystaltowerdesigns.mytrippacks.data.Validation;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows a trip with its stops for editing.
+ * <p>
+ * The trip and its stops are read with one query on a loader thread, and the trips either side of
+ * it in the list are read ahead in the background so stepping to them shows them at once.
+ * Edits are kept in memory and saved together, as one batch (one transaction), once typing
+ * pauses for {@link #SAVE_DELAY_MS}, or when the editor is left. Load and save times are logged.
+ */
+public class TripEditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = TripEditorActivity.class.getSimpleName();
+
+    /**
+     * long[], the _IDs of the trips around the opened one, in list order.
+     */
+    static final String EXTRA_TRIP_IDS = "trip_ids";
+
+    /**
+     * int, position of the opened trip in {@link #EXTRA_TRIP_IDS}.
+     */
+    static final String EXTRA_POSITION = "position";
+
+    /**
+     * Number of trips either side of the opened one to pass in {@link #EXTRA_TRIP_IDS}.
+     */
+    static final int NEIGHBOUR_WINDOW = 10;
+
+    private static final int TRIP_LOADER = 0;
+    private static final String ARG_TRIP_ID = "trip_id";
+    private static final String STATE_POSITION = "position";
 
-public class TripEditorActivity extends AppCompatActivity {
+    /**
+     * How long typing has to pause before the edits are saved.
+     */
+    private static final long SAVE_DELAY_MS = 750;
+
+    /**
+     * Saves and read-aheads, in the order they were asked for, so a read-ahead never misses a save.
+     */
+    private static final Executor BACKGROUND = Executors.newSingleThreadExecutor();
+
+    private final Handler mHandler = new Handler();
+
+    /**
+     * Unsaved edits by row URI. Main thread only.
+     */
+    private final Map<Uri, ContentValues> mPendingEdits = new LinkedHashMap<>();
+
+    /**
+     * Trips read ahead, by _ID. Main thread only.
+     */
+    private final LruCache<Long, TripSnapshot> mPrefetched = new LruCache<>(4);
+    private final Set<Long> mPrefetching = new HashSet<>();
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveEdits();
+        }
+    };
+
+    // The driver profile the trips belong to, from the URI the editor was opened with
+    private String mProfile;
+    private long[] mTripIds;
+    private int mPosition;
+    private long mLoadStarted;
+
+    // Set while the views are filled in, so the fill isn't taken for an edit
+    private boolean mBinding;
+
+    private TextView mTripNumberView;
+    private EditText mFromToEdit;
+    private EditText mHubStartEdit;
+    private EditText mHubEndEdit;
+    private LinearLayout mStopsContainer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_trip_editor);
+
+        mTripNumberView = findViewById(R.id.edit_tripNumber);
+        mFromToEdit = findViewById(R.id.edit_fromTo);
+        mHubStartEdit = findViewById(R.id.edit_hubStart);
+        mHubEndEdit = findViewById(R.id.edit_hubEnd);
+        mStopsContainer = findViewById(R.id.stops_container);
+
+        String profile = getIntent().getData() != null
+                ? getIntent().getData().getQueryParameter(TripsContract.PARAM_PROFILE) : null;
+        mProfile = profile != null ? profile : TripsContract.DEFAULT_PROFILE;
+        mTripIds = getIntent().getLongArrayExtra(EXTRA_TRIP_IDS);
+        mPosition = getIntent().getIntExtra(EXTRA_POSITION, 0);
+        if (mTripIds == null) {
+            mTripIds = new long[]{ContentUris.parseId(getIntent().getData())};
+            mPosition = 0;
+        }
+        if (savedInstanceState != null)
+            mPosition = savedInstanceState.getInt(STATE_POSITION, mPosition);
+
+        // Trip fields always belong to the trip being shown, so their watchers look it up when they fire
+        mFromToEdit.addTextChangedListener(new TripEditWatcher(mFromToEdit, TripEntry.COLUMN_FROM_TO, false));
+        mHubStartEdit.addTextChangedListener(new TripEditWatcher(mHubStartEdit, TripEntry.COLUMN_HUB_INITIAL, true));
+        mHubEndEdit.addTextChangedListener(new TripEditWatcher(mHubEndEdit, TripEntry.COLUMN_HUB_END, true));
+
+        mLoadStarted = SystemClock.elapsedRealtime();
+        LoaderManager.getInstance(this).initLoader(TRIP_LOADER, tripArgs(), this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_POSITION, mPosition);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Don't wait out the delay, the editor may not come back
+        saveEdits();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.editor_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_previous_trip).setEnabled(mPosition > 0);
+        menu.findItem(R.id.action_next_trip).setEnabled(mPosition < mTripIds.length - 1);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_previous_trip:
+                showTrip(mPosition - 1);
+                return true;
+            case R.id.action_next_trip:
+                showTrip(mPosition + 1);
+                return true;
+            default: {
+            }
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Moves to another trip in the list, shown straight away if it was read ahead.
+     */
+    private void showTrip(int position) {
+        if (position < 0 || position >= mTripIds.length)
+            return;
+        saveEdits();
+        mPosition = position;
+        // A focused field is left alone by bind(), and this one belongs to the trip being left
+        View focus = getCurrentFocus();
+        if (focus != null)
+            focus.clearFocus();
+        TripSnapshot prefetched = mPrefetched.remove(currentTripId());
+        if (prefetched != null)
+            bind(prefetched);
+        invalidateOptionsMenu();
+
+        // The loader reads it again either way, to follow later changes
+        mLoadStarted = SystemClock.elapsedRealtime();
+        LoaderManager.getInstance(this).restartLoader(TRIP_LOADER, tripArgs(), this);
+    }
+
+    private long currentTripId() {
+        return mTripIds[mPosition];
+    }
+
+    private Bundle tripArgs() {
+        Bundle args = new Bundle();
+        args.putLong(ARG_TRIP_ID, currentTripId());
+        return args;
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
+        // One query for the trip and its ordered stops, on the loader's background thread
+        return new CursorLoader(this, TripsContract.buildProfileUri(TripEntry.buildTripWithStopsUri(bundle.getLong(ARG_TRIP_ID)), mProfile),
+                null, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        TripSnapshot snapshot = TripSnapshot.from(cursor);
+        if (mLoadStarted != 0) {
+            Log.i(LOG_TAG, String.format("Loaded trip %d with %d stops in %dms", currentTripId(),
+                    snapshot != null ? snapshot.stops.size() : 0, SystemClock.elapsedRealtime() - mLoadStarted));
+            mLoadStarted = 0;
+        }
+        if (snapshot == null) {
+            // The trip was deleted
+            finish();
+            return;
+        }
+        bind(snapshot);
+        prefetchNeighbours();
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        // The views keep their last values
+    }
+
+    /**
+     * Fills in the views. A field the user is typing in is left alone.
+     */
+    private void bind(TripSnapshot snapshot) {
+        mBinding = true;
+        mTripNumberView.setText(getString(R.string.trip_number_fmt, snapshot.trip.getAsString(TripEntry.COLUMN_TRIP_NUMBER)));
+        setText(mFromToEdit, snapshot.trip.getAsString(TripEntry.COLUMN_FROM_TO));
+        setText(mHubStartEdit, snapshot.trip.getAsString(TripEntry.COLUMN_HUB_INITIAL));
+        setText(mHubEndEdit, snapshot.trip.getAsString(TripEntry.COLUMN_HUB_END));
+
+        // Reuse the stop rows when the same stops are shown again, so a reload doesn't steal the focus
+        boolean sameStops = mStopsContainer.getChildCount() == snapshot.stops.size();
+        for (int i = 0; sameStops && i < snapshot.stops.size(); i++)
+            sameStops = snapshot.stops.get(i).getAsLong(StopEntry.COLUMN_STOP_ID).equals(mStopsContainer.getChildAt(i).getTag());
+        if (!sameStops) {
+            mStopsContainer.removeAllViews();
+            LayoutInflater inflater = getLayoutInflater();
+            for (ContentValues stop : snapshot.stops) {
+                View row = inflater.inflate(R.layout.list_stop_edit_view, mStopsContainer, false);
+                long stopId = stop.getAsLong(StopEntry.COLUMN_STOP_ID);
+                row.setTag(stopId);
+                Uri stopUri = TripsContract.buildProfileUri(ContentUris.withAppendedId(StopEntry.CONTENT_URI, stopId), mProfile);
+                EditText locationEdit = row.findViewById(R.id.edit_stopLocation);
+                EditText hubEdit = row.findViewById(R.id.edit_stopHub);
+                locationEdit.addTextChangedListener(new EditWatcher(locationEdit, stopUri, StopEntry.COLUMN_LOCATION, false));
+                hubEdit.addTextChangedListener(new EditWatcher(hubEdit, stopUri, StopEntry.COLUMN_HUB, true));
+                mStopsContainer.addView(row);
+            }
+        }
+        for (int i = 0; i < snapshot.stops.size(); i++) {
+            View row = mStopsContainer.getChildAt(i);
+            setText((EditText) row.findViewById(R.id.edit_stopLocation), snapshot.stops.get(i).getAsString(StopEntry.COLUMN_LOCATION));
+            setText((EditText) row.findViewById(R.id.edit_stopHub), snapshot.stops.get(i).getAsString(StopEntry.COLUMN_HUB));
+        }
+        mBinding = false;
+    }
+
+    private static void setText(EditText editText, String value) {
+        if (!editText.hasFocus() && !TextUtils.equals(editText.getText(), value))
+            editText.setText(value);
+    }
+
+    /**
+     * Reads the trips either side of the current one in the background, unless they already have been.
+     */
+    private void prefetchNeighbours() {
+        final ContentResolver resolver = getContentResolver();
+        final String profile = mProfile;
+        for (int position = mPosition - 1; position <= mPosition + 1; position += 2) {
+            if (position < 0 || position >= mTripIds.length)
+                continue;
+            final long tripId = mTripIds[position];
+            if (mPrefetched.get(tripId) != null || !mPrefetching.add(tripId))
+                continue;
+            BACKGROUND.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long started = SystemClock.elapsedRealtime();
+                    final TripSnapshot snapshot = TripSnapshot.read(resolver, profile, tripId);
+                    Log.v(LOG_TAG, String.format("Read ahead trip %d in %dms", tripId, SystemClock.elapsedRealtime() - started));
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPrefetching.remove(tripId);
+                            if (snapshot != null)
+                                mPrefetched.put(tripId, snapshot);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds an edit to the pending ones and (re)starts the save delay.
+     */
+    private void queueEdit(Uri uri, String column, String value, boolean numeric) {
+        ContentValues values = mPendingEdits.get(uri);
+        if (values == null) {
+            values = new ContentValues();
+            mPendingEdits.put(uri, values);
+        }
+        if (numeric)
+            values.put(column, Long.parseLong(value));
+        else
+            values.put(column, value);
+        mHandler.removeCallbacks(mSaveRunnable);
+        mHandler.postDelayed(mSaveRunnable, SAVE_DELAY_MS);
+    }
+
+    /**
+     * Writes the pending edits as one batch, which the provider applies in one transaction.
+     */
+    private void saveEdits() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        if (mPendingEdits.isEmpty())
+            return;
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(mPendingEdits.size());
+        for (Map.Entry<Uri, ContentValues> edit : mPendingEdits.entrySet())
+            operations.add(ContentProviderOperation.newUpdate(edit.getKey()).withValues(edit.getValue()).build());
+        mPendingEdits.clear();
+        // The trip was read ahead before these edits, read it again when it is next needed
+        mPrefetched.remove(currentTripId());
+
+        final ContentResolver resolver = getContentResolver();
+        BACKGROUND.execute(new Runnable() {
+            @Override
+            public void run() {
+                long started = SystemClock.elapsedRealtime();
+                try {
+                    resolver.applyBatch(TripsContract.CONTENT_AUTHORITY, operations);
+                    Log.i(LOG_TAG, String.format("Saved %d rows in %dms", operations.size(), SystemClock.elapsedRealtime() - started));
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(LOG_TAG, "Unable to save the trip", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues an edit when the user changes a field. Values the provider would reject are
+     * flagged on the field and not queued.
+     */
+    private class EditWatcher implements TextWatcher {
+        private final EditText mEditText;
+        private final Uri mUri;
+        private final String mColumn;
+        private final boolean mNumeric;
+
+        EditWatcher(EditText editText, Uri uri, String column, boolean numeric) {
+            mEditText = editText;
+            mUri = uri;
+            mColumn = column;
+            mNumeric = numeric;
+        }
+
+        Uri getUri() {
+            return mUri;
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            if (mBinding)
+                return;
+            String value = s.toString();
+            boolean valid = mNumeric ? Validation.isValid(value, Validation.IS_WHOLE_NUMBER, Validation.IS_POSITIVE)
+                    : Validation.isValid(value, Validation.NOT_EMPTY);
+            if (!valid) {
+                mEditText.setError(String.format(getString(R.string.invalid_field_value_format), mColumn.toUpperCase()));
+                return;
+            }
+            queueEdit(getUri(), mColumn, value, mNumeric);
+        }
+    }
+
+    /**
+     * {@link EditWatcher} for the trip fields, which follow the trip being shown.
+     */
+    private class TripEditWatcher extends EditWatcher {
+
+        TripEditWatcher(EditText editText, String column, boolean numeric) {
+            super(editText, null, column, numeric);
+        }
+
+        @Override
+        Uri getUri() {
+            return TripsContract.buildProfileUri(ContentUris.withAppendedId(TripEntry.CONTENT_URI, currentTripId()), mProfile);
+        }
     }
 }
@@ -0,0 +1,151 @@
+package com.crystaltowerdesigns.mytrippacks;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A copy of the first page of the trip list, kept in the cache directory so the list
+ * can be shown immediately on a cold start while the database is still opening.
+ */
+class TripListCache {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = TripListCache.class.getSimpleName();
+
+    /**
+     * Number of rows kept, enough to fill the screen.
+     */
+    private static final int PAGE_SIZE = 30;
+
+    // A file per driver profile: FILE_PREFIX + profile + FILE_SUFFIX
+    private static final String FILE_PREFIX = "trip_list_page";
+    private static final String FILE_SUFFIX = ".bin";
+
+    // Bump if the file layout changes, older files are then ignored
+    private static final int FILE_VERSION = 1;
+
+    private final File mFile;
+
+    /**
+     * @param context App context.
+     * @param profile The driver profile whose trips are listed.
+     */
+    TripListCache(Context context, String profile) {
+        mFile = new File(context.getCacheDir(), FILE_PREFIX
+                + (TripsContract.DEFAULT_PROFILE.equals(profile) ? "" : "_" + profile) + FILE_SUFFIX);
+    }
+
+    /**
+     * Reads the cached page. Small enough to read on the main thread.
+     *
+     * @param projection Column names the page was saved with.
+     * @return A cursor holding the cached page, or null if there is none.
+     */
+    Cursor load(String[] projection) {
+        if (!mFile.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_VERSION || in.readInt() != projection.length)
+                return null;
+            for (String column : projection)
+                if (!column.equals(in.readUTF()))
+                    return null;
+
+            int rowCount = in.readInt();
+            MatrixCursor cursor = new MatrixCursor(projection, rowCount);
+            for (int row = 0; row < rowCount; row++) {
+                Object[] values = new Object[projection.length];
+                for (int column = 0; column < projection.length; column++)
+                    values[column] = in.readBoolean() ? in.readUTF() : null;
+                cursor.addRow(values);
+            }
+            return cursor;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to read the cached trip list", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copies the first page out of the cursor and writes it in the background.
+     * The cursor position is left unchanged.
+     *
+     * @param cursor Cursor containing trip data.
+     */
+    void save(Cursor cursor) {
+        final String[] columns = cursor.getColumnNames();
+        final int rowCount = Math.min(cursor.getCount(), PAGE_SIZE);
+        final String[][] rows = new String[rowCount][columns.length];
+        int position = cursor.getPosition();
+        for (int row = 0; row < rowCount && cursor.moveToPosition(row); row++)
+            for (int column = 0; column < columns.length; column++)
+                rows[row][column] = cursor.getString(column);
+        cursor.moveToPosition(position);
+
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(columns, rows);
+            }
+        });
+    }
+
+    private void write(String[] columns, String[][] rows) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(columns.length);
+            for (String column : columns)
+                out.writeUTF(column);
+            out.writeInt(rows.length);
+            for (String[] row : rows)
+                for (String value : row) {
+                    out.writeBoolean(value != null);
+                    if (value != null)
+                        out.writeUTF(value);
+                }
+            out.close();
+            out = null;
+            // Replace in one step, so a reader never sees a half written page
+            if (!temp.renameTo(mFile))
+                Log.w(LOG_TAG, "Unable to replace the cached trip list");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to write the cached trip list", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+}
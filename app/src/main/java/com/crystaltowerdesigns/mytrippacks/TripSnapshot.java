@@ -0,0 +1,74 @@
+package com.crystaltowerdesigns.mytrippacks;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A trip and its ordered stops, copied out of a {@link TripEntry#buildTripWithStopsUri(long)} cursor.
+ */
+class TripSnapshot {
+
+    /**
+     * The trip's columns (each row of the cursor repeats them).
+     */
+    final ContentValues trip;
+
+    /**
+     * The stops in stop order, their _ID is under {@link StopEntry#COLUMN_STOP_ID}.
+     */
+    final List<ContentValues> stops;
+
+    private TripSnapshot(ContentValues trip, List<ContentValues> stops) {
+        this.trip = trip;
+        this.stops = stops;
+    }
+
+    /**
+     * @param cursor Cursor from a {@link TripEntry#buildTripWithStopsUri(long)} query, the position is changed.
+     * @return The snapshot, or null if the trip doesn't exist.
+     */
+    static TripSnapshot from(Cursor cursor) {
+        if (!cursor.moveToFirst())
+            return null;
+        ContentValues trip = new ContentValues();
+        DatabaseUtils.cursorRowToContentValues(cursor, trip);
+        List<ContentValues> stops = new ArrayList<>(cursor.getCount());
+        int stopIdIndex = cursor.getColumnIndexOrThrow(StopEntry.COLUMN_STOP_ID);
+        do {
+            // A trip without stops comes back as one row with null stop columns
+            if (cursor.isNull(stopIdIndex))
+                continue;
+            ContentValues stop = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, stop);
+            stops.add(stop);
+        } while (cursor.moveToNext());
+        return new TripSnapshot(trip, stops);
+    }
+
+    /**
+     * Reads a trip with its stops, in one query. Runs on the calling thread.
+     *
+     * @param profile The driver profile the trip belongs to.
+     * @return The snapshot, or null if the trip doesn't exist.
+     */
+    static TripSnapshot read(ContentResolver resolver, String profile, long tripId) {
+        Cursor cursor = resolver.query(TripsContract.buildProfileUri(TripEntry.buildTripWithStopsUri(tripId), profile),
+                null, null, null, null);
+        if (cursor == null)
+            return null;
+        try {
+            return from(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -64,6 +64,8 @@ class TripsCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, final Context context, final Cursor cursor) {
+        StartupTrace.mark(StartupTrace.FIRST_BIND);
+
         // Find individual views that we want to modify in the list item layout
         TextView tripNumberTextView = view.findViewById(R.id.textView_tripNumber);
         TextView receivedDateTextView = view.findViewById(R.id.textView_receivedDate);
@@ -0,0 +1,112 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of aggregate query results (MAX, MIN, COUNT...) keyed by (table, column, function).
+ * <p>
+ * Each table has a write generation that {@link TripsProvider}'s write paths bump after every
+ * committed write. A cached result is only returned while its table is still on the generation
+ * the result was read at, so repeated reads between writes cost a map lookup.
+ */
+public final class AggregateCache {
+
+    private final ConcurrentHashMap<String, AtomicLong> mGenerations = new ConcurrentHashMap<>();
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Marker returned by {@link #get(String, String, String)} when there is no usable result,
+     * so that a cached null (for instance MAX over an empty table) is still a hit.
+     */
+    static final Object MISS = new Object();
+
+    /**
+     * @param table Name of the table.
+     * @return The table's current write generation. Read it before running the query to be cached.
+     */
+    long generation(String table) {
+        return generationOf(table).get();
+    }
+
+    /**
+     * Invalidates every cached result for the table. Call after the write has committed.
+     *
+     * @param table Name of the table that was written.
+     */
+    void invalidate(String table) {
+        generationOf(table).incrementAndGet();
+    }
+
+    /**
+     * @return The cached result, which may be null, or {@link #MISS}.
+     */
+    Object get(String table, String column, String function) {
+        Entry entry = mEntries.get(key(table, column, function));
+        if (entry != null && entry.generation == generation(table)) {
+            mHits.incrementAndGet();
+            return entry.value;
+        }
+        mMisses.incrementAndGet();
+        return MISS;
+    }
+
+    /**
+     * Stores a result.
+     *
+     * @param generation The table's generation read before the query ran. If the table was
+     *                   written since, the result is already stale and is never returned.
+     */
+    void put(String table, String column, String function, long generation, Object value) {
+        mEntries.put(key(table, column, function), new Entry(generation, value));
+    }
+
+    /**
+     * @return Number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return Number of lookups that had to query the database.
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHitCount();
+        long lookups = hits + getMissCount();
+        return String.format("AggregateCache{hits=%d, misses=%d, hitRate=%.1f%%, entries=%d}",
+                hits, lookups - hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups, mEntries.size());
+    }
+
+    private AtomicLong generationOf(String table) {
+        AtomicLong generation = mGenerations.get(table);
+        if (generation == null) {
+            AtomicLong existing = mGenerations.putIfAbsent(table, generation = new AtomicLong());
+            if (existing != null)
+                generation = existing;
+        }
+        return generation;
+    }
+
+    private static String key(String table, String column, String function) {
+        return table + '\u0000' + column + '\u0000' + function;
+    }
+
+    private static class Entry {
+        final long generation;
+        final Object value;
+
+        Entry(long generation, Object value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+}
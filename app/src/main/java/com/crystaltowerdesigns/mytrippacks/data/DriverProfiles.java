@@ -0,0 +1,53 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.List;
+
+/**
+ * The driver profiles on the device, and which one is using it now.
+ * <p>
+ * A profile is a database of its own (see {@link TripsContract#PARAM_PROFILE}); it exists once
+ * something has been written to it, so a new driver is added by switching to their name.
+ */
+public final class DriverProfiles {
+
+    private static final String PREFERENCES_NAME = "driver_profiles";
+    private static final String KEY_ACTIVE = "active";
+
+    // Constructor to prevent accidentally instantiating the DriverProfiles class
+    private DriverProfiles() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    /**
+     * @return The profile last switched to, or {@link TripsContract#DEFAULT_PROFILE}.
+     */
+    public static String getActive(Context context) {
+        String profile = preferences(context).getString(KEY_ACTIVE, TripsContract.DEFAULT_PROFILE);
+        return TripsContract.isValidProfile(profile) ? profile : TripsContract.DEFAULT_PROFILE;
+    }
+
+    /**
+     * @param profile A valid profile name, see {@link TripsContract#isValidProfile(String)}.
+     */
+    public static void setActive(Context context, String profile) {
+        if (!TripsContract.isValidProfile(profile))
+            throw new IllegalArgumentException("Invalid profile " + profile);
+        preferences(context).edit().putString(KEY_ACTIVE, profile).apply();
+    }
+
+    /**
+     * Lists the profiles from their database files, without opening them.
+     *
+     * @return {@link TripsContract#DEFAULT_PROFILE} first, then the others by name.
+     */
+    public static List<String> list(Context context) {
+        return TripsDbHelper.listProfiles(context);
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
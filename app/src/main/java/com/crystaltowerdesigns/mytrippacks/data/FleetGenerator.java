@@ -0,0 +1,209 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic fleet data for load, scale and soak testing.
+ * <p>
+ * The same seed and settings always produce the same trips. Each driver keeps their own hub
+ * (odometer) reading, so hub values increase from stop to stop and trip to trip for a driver,
+ * with an occasional gap between trips like a real fleet has. Trip states follow the timeline:
+ * old trips are mostly submitted, the most recent ones open or assigned. Every location has a
+ * fixed position within {@link #REGION}, so repeat visits share coordinates.
+ * <p>
+ * Rows are written through {@link ContentResolver#bulkInsert(Uri, ContentValues[])}
+ * in batches, so each batch is a single transaction in {@link TripsProvider}.
+ */
+public class FleetGenerator {
+
+    /**
+     * Number of trips written per bulk insert.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final int MIN_STOPS = 2;
+    private static final int MAX_STOPS = 12;
+    private static final int CUSTOMER_COUNT = 400;
+    private static final String[] CITIES = {"Springfield", "Riverside", "Franklin", "Greenville", "Bristol",
+            "Clinton", "Fairview", "Salem", "Madison", "Georgetown", "Arlington", "Ashland", "Dover", "Oxford"};
+
+    /**
+     * Box the synthetic locations are placed in, {min latitude, min longitude, max latitude, max longitude}.
+     */
+    public static final double[] REGION = {33.0, -97.0, 41.0, -85.0};
+
+    private final Random random;
+    private final int driverCount;
+    private final int firstTripNumber;
+    private final int firstReceivedDay;
+
+    /**
+     * @param seed              Seed for the random sequence, the same seed gives the same fleet.
+     * @param driverCount       Number of drivers the trips are spread across.
+     * @param firstTripNumber   Trip number of the first generated trip, the rest follow on sequentially.
+     * @param firstReceivedDate Date (yyyy-MM-dd) the first trips were received.
+     */
+    public FleetGenerator(long seed, int driverCount, int firstTripNumber, String firstReceivedDate) {
+        int firstReceivedDay = EpochDays.parse(firstReceivedDate);
+        if (driverCount < 1)
+            throw new IllegalArgumentException("driverCount must be at least 1");
+        if (firstReceivedDay == EpochDays.INVALID)
+            throw new IllegalArgumentException("Invalid firstReceivedDate " + firstReceivedDate);
+        this.random = new Random(seed);
+        this.driverCount = driverCount;
+        this.firstTripNumber = firstTripNumber;
+        this.firstReceivedDay = firstReceivedDay;
+    }
+
+    /**
+     * Generates the fleet and writes it through the provider.
+     *
+     * @param resolver  ContentResolver used for the bulk inserts.
+     * @param profile   The driver profile whose database the fleet goes into, see {@link TripsContract#PARAM_PROFILE}.
+     * @param tripCount Total number of trips to generate across all drivers.
+     * @param batchSize Number of trips per bulk insert, see {@link #DEFAULT_BATCH_SIZE}.
+     * @return The number of trips inserted.
+     * @throws IllegalStateException If the provider turns down a generated row. The batches before it are kept.
+     */
+    public int generate(ContentResolver resolver, String profile, int tripCount, int batchSize) {
+        Uri tripsUri = TripsContract.buildProfileUri(TripEntry.CONTENT_URI, profile);
+        Uri stopsUri = TripsContract.buildProfileUri(StopEntry.CONTENT_URI, profile);
+        Driver[] drivers = new Driver[driverCount];
+        for (int i = 0; i < driverCount; i++)
+            drivers[i] = new Driver(i);
+
+        int inserted = 0;
+        ArrayList<ContentValues> trips = new ArrayList<>(batchSize);
+        ArrayList<ContentValues> stops = new ArrayList<>(batchSize * MAX_STOPS);
+        for (int i = 0; i < tripCount; i++) {
+            Driver driver = drivers[random.nextInt(driverCount)];
+            trips.add(nextTrip(driver, firstTripNumber + i, (double) i / tripCount, stops));
+            if (trips.size() == batchSize || i == tripCount - 1) {
+                // Trips first, and their stops only once every trip is in, so a rejected row
+                // stops the run instead of leaving stops behind without their trip
+                int tripRows = resolver.bulkInsert(tripsUri, trips.toArray(new ContentValues[trips.size()]));
+                if (tripRows != trips.size())
+                    throw new IllegalStateException(String.format("The provider took %d of %d trips", tripRows, trips.size()));
+                int stopRows = resolver.bulkInsert(stopsUri, stops.toArray(new ContentValues[stops.size()]));
+                if (stopRows != stops.size())
+                    throw new IllegalStateException(String.format("The provider took %d of %d stops", stopRows, stops.size()));
+                inserted += tripRows;
+                trips.clear();
+                stops.clear();
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Builds one trip for the driver and adds its stops to the given list.
+     *
+     * @param progress How far through the whole run this trip is (0 to 1), used to pick its state.
+     */
+    private ContentValues nextTrip(Driver driver, int tripNumber, double progress, ArrayList<ContentValues> stops) {
+        // About 2% of trips start with a gap (unlogged miles) after the driver's previous trip
+        if (random.nextInt(50) == 0)
+            driver.hub += 1 + random.nextInt(40);
+        driver.day += random.nextInt(3);
+
+        long hubStart = driver.hub;
+        int stopCount = stopCount();
+        String firstLocation = null;
+        String lastLocation = null;
+        int stopDay = driver.day;
+        for (int stopIndex = 1; stopIndex <= stopCount; stopIndex++) {
+            String location = stopIndex == 1 || (stopIndex == stopCount && random.nextBoolean())
+                    ? driver.homeDepot : customer();
+            driver.hub += 5 + random.nextInt(stopIndex == 1 ? 60 : 280);
+            if (random.nextInt(4) == 0)
+                stopDay++;
+
+            ContentValues stop = new ContentValues();
+            stop.put(StopEntry.COLUMN_TRIP_NUMBER, tripNumber);
+            stop.put(StopEntry.COLUMN_LOCATION, location);
+            stop.put(StopEntry.COLUMN_DATE_COMPLETED, EpochDays.format(stopDay));
+            stop.put(StopEntry.COLUMN_HUB, driver.hub);
+            stop.put(StopEntry.COLUMN_SORT_INDEX, stopIndex * StopEntry.RANK_GAP);
+            putPosition(stop, location);
+            stops.add(stop);
+
+            if (stopIndex == 1)
+                firstLocation = location;
+            lastLocation = location;
+        }
+
+        int state = state(progress);
+        ContentValues trip = new ContentValues();
+        trip.put(TripEntry.COLUMN_TRIP_NUMBER, tripNumber);
+        trip.put(TripEntry.COLUMN_STATE, state);
+        trip.put(TripEntry.COLUMN_FROM_TO, firstLocation + " to " + lastLocation + " (" + stopCount + " stops)");
+        trip.put(TripEntry.COLUMN_RECEIVED_DATE, EpochDays.format(driver.day));
+        trip.put(TripEntry.COLUMN_HUB_INITIAL, hubStart);
+        trip.put(TripEntry.COLUMN_HUB_END, state == TripEntry.STATE_ASSIGNED ? 0 : driver.hub);
+        if (state == TripEntry.STATE_SUBMITTED)
+            trip.put(TripEntry.COLUMN_SUBMITTED_DATE, EpochDays.format(stopDay + 1 + random.nextInt(3)));
+        driver.day = stopDay;
+        return trip;
+    }
+
+    /**
+     * Mostly short routes, with a tail of long multi-drop routes.
+     */
+    private int stopCount() {
+        int count = MIN_STOPS;
+        while (count < MAX_STOPS && random.nextInt(3) != 0)
+            count++;
+        return count;
+    }
+
+    /**
+     * Picks a customer, skewed so a few customers get most of the visits.
+     */
+    private String customer() {
+        double skewed = random.nextDouble();
+        int customer = (int) (skewed * skewed * skewed * CUSTOMER_COUNT);
+        return String.format("Customer %03d, %s", customer, CITIES[customer % CITIES.length]);
+    }
+
+    /**
+     * Adds the location's position. It is derived from the location alone, not the random sequence,
+     * so the rest of the generated fleet is the same as before positions existed.
+     */
+    private static void putPosition(ContentValues stop, String location) {
+        Random position = new Random(location.hashCode());
+        stop.put(StopEntry.COLUMN_LATITUDE, REGION[0] + position.nextDouble() * (REGION[2] - REGION[0]));
+        stop.put(StopEntry.COLUMN_LONGITUDE, REGION[1] + position.nextDouble() * (REGION[3] - REGION[1]));
+    }
+
+    private int state(double progress) {
+        int roll = random.nextInt(100);
+        if (progress < 0.97)
+            return roll < 95 ? TripEntry.STATE_SUBMITTED : TripEntry.STATE_CLOSED;
+        if (progress < 0.99)
+            return roll < 60 ? TripEntry.STATE_CLOSED : TripEntry.STATE_OPEN;
+        return roll < 50 ? TripEntry.STATE_OPEN : TripEntry.STATE_ASSIGNED;
+    }
+
+    /**
+     * Running state of one driver: where their odometer and calendar are.
+     */
+    private class Driver {
+        final String homeDepot;
+        long hub;
+        int day;
+
+        Driver(int index) {
+            homeDepot = String.format("Depot %02d, %s", index % 40, CITIES[index % CITIES.length]);
+            hub = 50000 + random.nextInt(350000);
+            day = firstReceivedDay;
+        }
+    }
+}
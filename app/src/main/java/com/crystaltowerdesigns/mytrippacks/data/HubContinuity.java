@@ -0,0 +1,414 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.AnomalyEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hub (odometer) continuity checker.
+ * <p>
+ * Trips are chained in hub_start order: a trip's hub_start should equal the prior trip's hub_end.
+ * Stops are chained in stop_index order within their trip: arrival_hub should never go down.
+ * Hub values of zero mean "not recorded yet" and are skipped.
+ * <p>
+ * Each write is checked against its neighbours only, found with index lookups, and the
+ * {@link AnomalyEntry} table is updated for the rows whose neighbours changed.
+ * {@link #backfill(SQLiteDatabase)} rebuilds the whole table once, reading in parallel.
+ */
+final class HubContinuity {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = HubContinuity.class.getSimpleName();
+
+    /**
+     * {@link TripsDbHelper#METADATA_TABLE} key set once the backfill has run.
+     */
+    static final String BACKFILLED_KEY = "hub_continuity_backfilled";
+
+    private static final String TRIP_KINDS = AnomalyEntry.KIND_TRIP_GAP + "," + AnomalyEntry.KIND_TRIP_OVERLAP
+            + "," + AnomalyEntry.KIND_TRIP_REVERSED;
+
+    // Constructor to prevent accidentally instantiating the HubContinuity class
+    private HubContinuity() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    /**
+     * @return true if writing these values can change trip continuity.
+     */
+    static boolean affectsTrips(ContentValues values) {
+        return values.containsKey(TripEntry.COLUMN_HUB_INITIAL) || values.containsKey(TripEntry.COLUMN_HUB_END);
+    }
+
+    /**
+     * @return true if writing these values can change stop continuity.
+     */
+    static boolean affectsStops(ContentValues values) {
+        return values.containsKey(StopEntry.COLUMN_HUB) || values.containsKey(StopEntry.COLUMN_SORT_INDEX)
+                || values.containsKey(StopEntry.COLUMN_TRIP_NUMBER);
+    }
+
+    /**
+     * @return The _ID of the trip following the given one in hub order, or -1 if there is none.
+     */
+    static long tripSuccessor(SQLiteDatabase database, long tripId) {
+        long[] trip = readTrip(database, tripId);
+        if (trip == null || trip[0] <= 0)
+            return -1;
+        String hubStart = String.valueOf(trip[0]);
+        return firstLong(database, "SELECT " + TripEntry._ID + " FROM " + TripEntry.TABLE_NAME
+                        + " WHERE " + TripEntry.COLUMN_HUB_INITIAL + ">=? AND NOT (" + TripEntry.COLUMN_HUB_INITIAL + "=? AND "
+                        + TripEntry._ID + "<=?) ORDER BY " + TripEntry.COLUMN_HUB_INITIAL + ", " + TripEntry._ID + " LIMIT 1",
+                hubStart, hubStart, String.valueOf(tripId));
+    }
+
+    /**
+     * @return The _ID of the stop following the given one on its trip, or -1 if there is none.
+     */
+    static long stopSuccessor(SQLiteDatabase database, long stopId) {
+        Cursor cursor = database.query(StopEntry.TABLE_NAME, new String[]{StopEntry.COLUMN_TRIP_NUMBER, StopEntry.COLUMN_SORT_INDEX},
+                StopEntry._ID + "=?", new String[]{String.valueOf(stopId)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst())
+                return -1;
+            String sortIndex = cursor.getString(1);
+            return firstLong(database, "SELECT " + StopEntry._ID + " FROM " + StopEntry.TABLE_NAME
+                            + " WHERE " + StopEntry.COLUMN_TRIP_NUMBER + "=? AND " + StopEntry.COLUMN_SORT_INDEX + ">=? AND NOT ("
+                            + StopEntry.COLUMN_SORT_INDEX + "=? AND " + StopEntry._ID + "<=?) ORDER BY "
+                            + StopEntry.COLUMN_SORT_INDEX + ", " + StopEntry._ID + " LIMIT 1",
+                    cursor.getString(0), sortIndex, sortIndex, String.valueOf(stopId));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Re-checks a trip and the trip after it after a write.
+     *
+     * @param oldSuccessor The trip that followed it before the write (see {@link #tripSuccessor}), or -1.
+     */
+    static void refreshTripsAround(SQLiteDatabase database, long tripId, long oldSuccessor) {
+        refreshTrip(database, tripId);
+        long successor = tripSuccessor(database, tripId);
+        if (successor != -1)
+            refreshTrip(database, successor);
+        if (oldSuccessor != -1 && oldSuccessor != successor)
+            refreshTrip(database, oldSuccessor);
+    }
+
+    /**
+     * Re-checks a stop and the stop after it after a write.
+     *
+     * @param oldSuccessor The stop that followed it before the write (see {@link #stopSuccessor}), or -1.
+     */
+    static void refreshStopsAround(SQLiteDatabase database, long stopId, long oldSuccessor) {
+        refreshStop(database, stopId);
+        long successor = stopSuccessor(database, stopId);
+        if (successor != -1)
+            refreshStop(database, successor);
+        if (oldSuccessor != -1 && oldSuccessor != successor)
+            refreshStop(database, oldSuccessor);
+    }
+
+    /**
+     * Recomputes the anomalies reported on one trip, against the trip before it in hub order.
+     * A trip that no longer exists just has its anomalies removed.
+     */
+    static void refreshTrip(SQLiteDatabase database, long tripId) {
+        database.delete(AnomalyEntry.TABLE_NAME, AnomalyEntry.COLUMN_ROW_ID + "=? AND " + AnomalyEntry.COLUMN_KIND
+                + " IN (" + TRIP_KINDS + ")", new String[]{String.valueOf(tripId)});
+        long[] trip = readTrip(database, tripId);
+        if (trip == null)
+            return;
+        String tripNumber = DatabaseUtils.stringForQuery(database, "SELECT " + TripEntry.COLUMN_TRIP_NUMBER
+                + " FROM " + TripEntry.TABLE_NAME + " WHERE " + TripEntry._ID + "=?", new String[]{String.valueOf(tripId)});
+
+        long hubStart = trip[0];
+        long hubEnd = trip[1];
+        if (hubEnd > 0 && hubEnd < hubStart)
+            insert(database, AnomalyEntry.KIND_TRIP_REVERSED, tripId, tripNumber, hubStart, hubEnd);
+        if (hubStart <= 0)
+            return;
+
+        String hubStartArg = String.valueOf(hubStart);
+        long priorHubEnd = firstLong(database, "SELECT " + TripEntry.COLUMN_HUB_END + " FROM " + TripEntry.TABLE_NAME
+                        + " WHERE " + TripEntry.COLUMN_HUB_INITIAL + "<=? AND " + TripEntry.COLUMN_HUB_INITIAL + ">0 AND NOT ("
+                        + TripEntry.COLUMN_HUB_INITIAL + "=? AND " + TripEntry._ID + ">=?) ORDER BY "
+                        + TripEntry.COLUMN_HUB_INITIAL + " DESC, " + TripEntry._ID + " DESC LIMIT 1",
+                hubStartArg, hubStartArg, String.valueOf(tripId));
+        int kind = tripKind(priorHubEnd, hubStart);
+        if (kind != 0)
+            insert(database, kind, tripId, tripNumber, priorHubEnd, hubStart);
+    }
+
+    /**
+     * Recomputes the anomaly reported on one stop, against the stop before it on the same trip.
+     * A stop that no longer exists just has its anomaly removed.
+     */
+    static void refreshStop(SQLiteDatabase database, long stopId) {
+        database.delete(AnomalyEntry.TABLE_NAME, AnomalyEntry.COLUMN_ROW_ID + "=? AND " + AnomalyEntry.COLUMN_KIND + "="
+                + AnomalyEntry.KIND_STOP_REGRESSION, new String[]{String.valueOf(stopId)});
+        Cursor cursor = database.query(StopEntry.TABLE_NAME,
+                new String[]{StopEntry.COLUMN_TRIP_NUMBER, StopEntry.COLUMN_SORT_INDEX, StopEntry.COLUMN_HUB},
+                StopEntry._ID + "=?", new String[]{String.valueOf(stopId)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst() || cursor.getLong(2) <= 0)
+                return;
+            String tripNumber = cursor.getString(0);
+            String sortIndex = cursor.getString(1);
+            long hub = cursor.getLong(2);
+            long priorHub = firstLong(database, "SELECT " + StopEntry.COLUMN_HUB + " FROM " + StopEntry.TABLE_NAME
+                            + " WHERE " + StopEntry.COLUMN_TRIP_NUMBER + "=? AND " + StopEntry.COLUMN_SORT_INDEX + "<=? AND NOT ("
+                            + StopEntry.COLUMN_SORT_INDEX + "=? AND " + StopEntry._ID + ">=?) AND " + StopEntry.COLUMN_HUB + ">0 ORDER BY "
+                            + StopEntry.COLUMN_SORT_INDEX + " DESC, " + StopEntry._ID + " DESC LIMIT 1",
+                    tripNumber, sortIndex, sortIndex, String.valueOf(stopId));
+            if (priorHub > hub)
+                insert(database, AnomalyEntry.KIND_STOP_REGRESSION, stopId, tripNumber, priorHub, hub);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Recomputes the anomalies for all the stops of a trip, after its stops were reconciled as a whole.
+     */
+    static void refreshTripStops(SQLiteDatabase database, String tripNumber) {
+        database.delete(AnomalyEntry.TABLE_NAME, AnomalyEntry.COLUMN_TRIP_NUMBER + "=? AND " + AnomalyEntry.COLUMN_KIND + "="
+                + AnomalyEntry.KIND_STOP_REGRESSION, new String[]{tripNumber});
+        Cursor cursor = database.query(StopEntry.TABLE_NAME, new String[]{StopEntry._ID, StopEntry.COLUMN_HUB},
+                StopEntry.COLUMN_TRIP_NUMBER + "=?", new String[]{tripNumber}, null, null,
+                StopEntry.COLUMN_SORT_INDEX + ", " + StopEntry._ID);
+        try {
+            long priorHub = 0;
+            while (cursor.moveToNext()) {
+                long hub = cursor.getLong(1);
+                if (hub <= 0)
+                    continue;
+                if (priorHub > hub)
+                    insert(database, AnomalyEntry.KIND_STOP_REGRESSION, cursor.getLong(0), tripNumber, priorHub, hub);
+                priorHub = hub;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true once {@link #backfill(SQLiteDatabase)} has completed for this database.
+     */
+    static boolean isBackfilled(SQLiteDatabase database) {
+        return DatabaseUtils.queryNumEntries(database, TripsDbHelper.METADATA_TABLE,
+                TripsDbHelper.METADATA_KEY + "=?", new String[]{BACKFILLED_KEY}) > 0;
+    }
+
+    /**
+     * Rebuilds the whole anomalies table. The trip chain is one ordered pass, the stops are
+     * split into trip_number ranges and read on a small pool of threads (WAL allows parallel readers).
+     * Call from a background thread.
+     */
+    static void backfill(final SQLiteDatabase database) {
+        long startTime = System.currentTimeMillis();
+        final List<ContentValues> anomalies = new ArrayList<>();
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<ContentValues>>> results = new ArrayList<>();
+            results.add(pool.submit(new Callable<List<ContentValues>>() {
+                @Override
+                public List<ContentValues> call() {
+                    return scanTrips(database);
+                }
+            }));
+            String[] bounds = stopPartitionBounds(database, threads);
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                final String from = bounds[i];
+                final String to = bounds[i + 1];
+                results.add(pool.submit(new Callable<List<ContentValues>>() {
+                    @Override
+                    public List<ContentValues> call() {
+                        return scanStops(database, from, to);
+                    }
+                }));
+            }
+            for (Future<List<ContentValues>> result : results)
+                anomalies.addAll(result.get());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Hub continuity backfill failed", e);
+            return;
+        } finally {
+            pool.shutdown();
+        }
+
+        database.beginTransaction();
+        try {
+            database.delete(AnomalyEntry.TABLE_NAME, null, null);
+            for (ContentValues anomaly : anomalies)
+                database.insert(AnomalyEntry.TABLE_NAME, null, anomaly);
+            ContentValues done = new ContentValues();
+            done.put(TripsDbHelper.METADATA_KEY, BACKFILLED_KEY);
+            done.put(TripsDbHelper.METADATA_VALUE, String.valueOf(System.currentTimeMillis()));
+            database.insertWithOnConflict(TripsDbHelper.METADATA_TABLE, null, done, SQLiteDatabase.CONFLICT_REPLACE);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        Log.i(LOG_TAG, String.format("Backfill found %d anomalies in %dms", anomalies.size(), System.currentTimeMillis() - startTime));
+    }
+
+    private static List<ContentValues> scanTrips(SQLiteDatabase database) {
+        List<ContentValues> anomalies = new ArrayList<>();
+        Cursor cursor = database.query(TripEntry.TABLE_NAME,
+                new String[]{TripEntry._ID, TripEntry.COLUMN_TRIP_NUMBER, TripEntry.COLUMN_HUB_INITIAL, TripEntry.COLUMN_HUB_END},
+                null, null, null, null, TripEntry.COLUMN_HUB_INITIAL + ", " + TripEntry._ID);
+        try {
+            boolean first = true;
+            long priorHubEnd = 0;
+            while (cursor.moveToNext()) {
+                long tripId = cursor.getLong(0);
+                String tripNumber = cursor.getString(1);
+                long hubStart = cursor.getLong(2);
+                long hubEnd = cursor.getLong(3);
+                if (hubEnd > 0 && hubEnd < hubStart)
+                    anomalies.add(anomaly(AnomalyEntry.KIND_TRIP_REVERSED, tripId, tripNumber, hubStart, hubEnd));
+                if (hubStart <= 0)
+                    continue;
+                int kind = first ? 0 : tripKind(priorHubEnd, hubStart);
+                if (kind != 0)
+                    anomalies.add(anomaly(kind, tripId, tripNumber, priorHubEnd, hubStart));
+                priorHubEnd = hubEnd;
+                first = false;
+            }
+        } finally {
+            cursor.close();
+        }
+        return anomalies;
+    }
+
+    /**
+     * Scans the stops with from <= trip_number < to (a null bound is open), in trip and stop order.
+     */
+    private static List<ContentValues> scanStops(SQLiteDatabase database, String from, String to) {
+        List<ContentValues> anomalies = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        String selection = null;
+        if (from != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, StopEntry.COLUMN_TRIP_NUMBER + ">=?");
+            args.add(from);
+        }
+        if (to != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, StopEntry.COLUMN_TRIP_NUMBER + "<?");
+            args.add(to);
+        }
+        Cursor cursor = database.query(StopEntry.TABLE_NAME,
+                new String[]{StopEntry._ID, StopEntry.COLUMN_TRIP_NUMBER, StopEntry.COLUMN_HUB},
+                selection, args.toArray(new String[args.size()]), null, null,
+                StopEntry.COLUMN_TRIP_NUMBER + ", " + StopEntry.COLUMN_SORT_INDEX + ", " + StopEntry._ID);
+        try {
+            String priorTripNumber = null;
+            long priorHub = 0;
+            while (cursor.moveToNext()) {
+                String tripNumber = cursor.getString(1);
+                long hub = cursor.getLong(2);
+                if (!tripNumber.equals(priorTripNumber)) {
+                    priorTripNumber = tripNumber;
+                    priorHub = 0;
+                }
+                if (hub <= 0)
+                    continue;
+                if (priorHub > hub)
+                    anomalies.add(anomaly(AnomalyEntry.KIND_STOP_REGRESSION, cursor.getLong(0), tripNumber, priorHub, hub));
+                priorHub = hub;
+            }
+        } finally {
+            cursor.close();
+        }
+        return anomalies;
+    }
+
+    /**
+     * Picks trip_number values splitting the stops into roughly equal ranges.
+     * The first and last bounds are null (open ended).
+     */
+    private static String[] stopPartitionBounds(SQLiteDatabase database, int partitions) {
+        long stopCount = DatabaseUtils.queryNumEntries(database, StopEntry.TABLE_NAME);
+        List<String> bounds = new ArrayList<>();
+        bounds.add(null);
+        for (int i = 1; i < partitions; i++) {
+            Cursor cursor = database.query(StopEntry.TABLE_NAME, new String[]{StopEntry.COLUMN_TRIP_NUMBER}, null, null,
+                    null, null, StopEntry.COLUMN_TRIP_NUMBER, (stopCount * i / partitions) + ",1");
+            try {
+                // Ranges are split on trip_number, so a trip's stops never straddle two ranges
+                if (cursor.moveToFirst() && !cursor.getString(0).equals(bounds.get(bounds.size() - 1)))
+                    bounds.add(cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+        }
+        bounds.add(null);
+        return bounds.toArray(new String[bounds.size()]);
+    }
+
+    /**
+     * @return The trip kind for a prior trip's hub_end followed by this hub_start, or 0 if they line up
+     * (or the prior trip has no hub_end yet).
+     */
+    private static int tripKind(long priorHubEnd, long hubStart) {
+        if (priorHubEnd <= 0 || priorHubEnd == hubStart)
+            return 0;
+        return priorHubEnd < hubStart ? AnomalyEntry.KIND_TRIP_GAP : AnomalyEntry.KIND_TRIP_OVERLAP;
+    }
+
+    /**
+     * @return {hub_start, hub_end} of the trip, or null if it doesn't exist.
+     */
+    private static long[] readTrip(SQLiteDatabase database, long tripId) {
+        Cursor cursor = database.query(TripEntry.TABLE_NAME, new String[]{TripEntry.COLUMN_HUB_INITIAL, TripEntry.COLUMN_HUB_END},
+                TripEntry._ID + "=?", new String[]{String.valueOf(tripId)}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? new long[]{cursor.getLong(0), cursor.getLong(1)} : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The first column of the first row, or -1 if there are no rows.
+     */
+    private static long firstLong(SQLiteDatabase database, String sql, String... args) {
+        Cursor cursor = database.rawQuery(sql, args);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void insert(SQLiteDatabase database, int kind, long rowId, String tripNumber, long expectedHub, long actualHub) {
+        database.insert(AnomalyEntry.TABLE_NAME, null, anomaly(kind, rowId, tripNumber, expectedHub, actualHub));
+    }
+
+    private static ContentValues anomaly(int kind, long rowId, String tripNumber, long expectedHub, long actualHub) {
+        ContentValues values = new ContentValues();
+        values.put(AnomalyEntry.COLUMN_KIND, kind);
+        values.put(AnomalyEntry.COLUMN_ROW_ID, rowId);
+        values.put(AnomalyEntry.COLUMN_TRIP_NUMBER, tripNumber);
+        values.put(AnomalyEntry.COLUMN_EXPECTED_HUB, expectedHub);
+        values.put(AnomalyEntry.COLUMN_ACTUAL_HUB, actualHub);
+        return values;
+    }
+}
@@ -0,0 +1,191 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
+import com.crystaltowerdesigns.mytrippacks.storage.TripIndex;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a {@link TripIndex} of one database in step with the provider's writes.
+ * <p>
+ * The index is built in the background the first time it is asked for. After that each write
+ * re-reads the trips it touched, by _ID; a write by selection, whose rows aren't known, has the
+ * index rebuilt instead. Re-reading and applying happen under one lock, so whichever write
+ * refreshes last reads the database last, and the index ends up with the latest committed rows.
+ */
+final class LiveTripIndex {
+
+    private static final String LOG_TAG = LiveTripIndex.class.getSimpleName();
+
+    /**
+     * Most _IDs in one re-read, well under SQLite's limit on a statement's length.
+     */
+    private static final int IDS_PER_QUERY = 500;
+
+    /**
+     * Rows read per query while building, a page fits in one cursor window.
+     */
+    private static final int ROWS_PER_PAGE = 2000;
+
+    private static final String[] COLUMNS = {TripEntry._ID, TripEntry.COLUMN_TRIP_NUMBER, TripEntry.COLUMN_STATE,
+            TripEntry.COLUMN_HUB_INITIAL, TripEntry.COLUMN_HUB_END, TripEntry.COLUMN_RECEIVED_DAY,
+            TripEntry.COLUMN_SUBMITTED_DAY};
+
+    private static final Executor BUILDER = Executors.newSingleThreadExecutor();
+
+    private final TripsDbHelper mHelper;
+
+    /**
+     * Held while the index is rebuilt or refreshed, not while it is read.
+     */
+    private final Object mRefreshLock = new Object();
+
+    /**
+     * Set while a build is waiting to run.
+     */
+    private final AtomicBoolean mBuildQueued = new AtomicBoolean();
+
+    /**
+     * Null until the first build is done.
+     */
+    private volatile TripIndex mIndex;
+
+    /**
+     * Set once the index has been asked for, until then writes don't look at it.
+     */
+    private volatile boolean mRequested;
+
+    LiveTripIndex(TripsDbHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * @return The index, or null while the first build runs.
+     */
+    TripIndex get() {
+        TripIndex index = mIndex;
+        if (index == null) {
+            mRequested = true;
+            scheduleBuild();
+        }
+        return index;
+    }
+
+    /**
+     * Re-reads the trips after a write. Call once the write has committed, or from inside the
+     * transaction of a batch that calls {@link #invalidate()} if it rolls back.
+     *
+     * @param ids _IDs of the trips added, changed or deleted.
+     */
+    void refresh(long... ids) {
+        if (!mRequested || ids.length == 0)
+            return;
+        synchronized (mRefreshLock) {
+            // Checked under the lock: a build running now read the database before this write, so
+            // it waits for the build; without an index yet, the build to come reads this write
+            TripIndex index = mIndex;
+            if (index == null)
+                return;
+            SQLiteDatabase database = mHelper.getReadableDatabase();
+            for (int start = 0; start < ids.length; start += IDS_PER_QUERY) {
+                long[] chunk = Arrays.copyOfRange(ids, start, Math.min(ids.length, start + IDS_PER_QUERY));
+                Arrays.sort(chunk);
+                // Without repeats, so each _ID read marks its one slot as found
+                int distinct = 0;
+                for (int i = 0; i < chunk.length; i++)
+                    if (i == 0 || chunk[i] != chunk[i - 1])
+                        chunk[distinct++] = chunk[i];
+                chunk = Arrays.copyOf(chunk, distinct);
+                StringBuilder idList = new StringBuilder();
+                for (long id : chunk)
+                    idList.append(idList.length() == 0 ? "" : ",").append(id);
+                boolean[] found = new boolean[chunk.length];
+                Cursor cursor = database.query(TripEntry.TABLE_NAME, COLUMNS, TripEntry._ID + " IN (" + idList + ") AND "
+                        + TripsDbHelper.LIVE_TRIPS_SELECTION, null, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        put(index, cursor);
+                        found[Arrays.binarySearch(chunk, cursor.getLong(0))] = true;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                // The trips not found were deleted, or soft deleted
+                for (int i = 0; i < chunk.length; i++)
+                    if (!found[i])
+                        index.remove(chunk[i]);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index in the background after a write whose trips aren't known.
+     */
+    void invalidate() {
+        // Also while the first build runs, it may have read the database before this write
+        if (mRequested)
+            scheduleBuild();
+    }
+
+    private void scheduleBuild() {
+        if (!mBuildQueued.compareAndSet(false, true))
+            return;
+        BUILDER.execute(new Runnable() {
+            @Override
+            public void run() {
+                mBuildQueued.set(false);
+                // A helper closed since has no database to read, its index is no longer wanted
+                if (!mHelper.reacquire())
+                    return;
+                try {
+                    build();
+                } finally {
+                    mHelper.release();
+                }
+            }
+        });
+    }
+
+    private void build() {
+        synchronized (mRefreshLock) {
+            long started = System.nanoTime();
+            SQLiteDatabase database = mHelper.getReadableDatabase();
+            TripIndex index = new TripIndex((int) DatabaseUtils.queryNumEntries(database, TripEntry.TABLE_NAME));
+            // Paged by _ID rather than one cursor, whose window refills would re-run the query at an
+            // offset that a concurrent delete shifts. Writes during the build wait for the lock
+            long lastId = 0;
+            int pageSize;
+            do {
+                Cursor cursor = database.query(TripEntry.TABLE_NAME, COLUMNS, TripEntry._ID + ">" + lastId + " AND "
+                        + TripsDbHelper.LIVE_TRIPS_SELECTION, null, null, null, TripEntry._ID, String.valueOf(ROWS_PER_PAGE));
+                try {
+                    pageSize = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        put(index, cursor);
+                        lastId = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } while (pageSize == ROWS_PER_PAGE);
+            mIndex = index;
+            Log.d(LOG_TAG, String.format("Indexed %d trips of profile '%s' in %d ms", index.size(), mHelper.getProfile(),
+                    (System.nanoTime() - started) / 1000000));
+        }
+    }
+
+    private static void put(TripIndex index, Cursor cursor) {
+        index.put(cursor.getLong(0), TripIndex.tripNumberKey(cursor.getString(1)), cursor.getInt(2),
+                cursor.getLong(3), cursor.getLong(4),
+                cursor.isNull(5) ? TripIndex.NO_DAY : cursor.getInt(5),
+                cursor.isNull(6) ? TripIndex.NO_DAY : cursor.getInt(6));
+    }
+}
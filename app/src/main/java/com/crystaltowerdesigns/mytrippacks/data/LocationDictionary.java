@@ -0,0 +1,98 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteTransactionListener;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.LocationEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns stop location text into {@link LocationEntry} ids, adding new locations as they are seen.
+ * <p>
+ * Drivers return to the same depots and customers over and over, so the ids are kept in memory
+ * and most stops are written without a lookup. Only use it inside a write transaction started with
+ * {@link SQLiteDatabase#beginTransactionWithListener(SQLiteTransactionListener)} and this as the
+ * listener: a location added by a transaction that rolls back is gone again, so the remembered ids
+ * are dropped before the rollback lets the next writer in.
+ */
+final class LocationDictionary implements SQLiteTransactionListener {
+
+    /**
+     * Most locations kept in memory, past this the ids are dropped and looked up again as needed.
+     */
+    private static final int MAX_CACHED = 4096;
+
+    private final Map<String, Long> mIds = new HashMap<>();
+
+    /**
+     * Replaces {@link StopEntry#COLUMN_LOCATION} in the values with its {@link StopEntry#COLUMN_LOCATION_ID}.
+     * A null location becomes a null id, which the stops table then rejects.
+     *
+     * @param database Database with a write transaction open.
+     * @param values   The stop values, changed in place.
+     */
+    void internValues(SQLiteDatabase database, ContentValues values) {
+        if (!values.containsKey(StopEntry.COLUMN_LOCATION))
+            return;
+        String location = values.getAsString(StopEntry.COLUMN_LOCATION);
+        values.remove(StopEntry.COLUMN_LOCATION);
+        if (location != null)
+            values.put(StopEntry.COLUMN_LOCATION_ID, intern(database, location));
+        else
+            values.putNull(StopEntry.COLUMN_LOCATION_ID);
+    }
+
+    /**
+     * @param database Database with a write transaction open.
+     * @param location Location text.
+     * @return The id of the location, added to the table if it is new.
+     */
+    long intern(SQLiteDatabase database, String location) {
+        synchronized (mIds) {
+            Long id = mIds.get(location);
+            if (id != null)
+                return id;
+        }
+
+        long id;
+        Cursor cursor = database.query(LocationEntry.TABLE_NAME, new String[]{LocationEntry.COLUMN_LOCATION_ID},
+                LocationEntry.COLUMN_LOCATION + "=?", new String[]{location}, null, null, null);
+        try {
+            id = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+        if (id == -1) {
+            ContentValues values = new ContentValues();
+            values.put(LocationEntry.COLUMN_LOCATION, location);
+            id = database.insertOrThrow(LocationEntry.TABLE_NAME, null, values);
+        }
+
+        synchronized (mIds) {
+            if (mIds.size() >= MAX_CACHED)
+                mIds.clear();
+            mIds.put(location, id);
+        }
+        return id;
+    }
+
+    @Override
+    public void onBegin() {
+    }
+
+    @Override
+    public void onCommit() {
+    }
+
+    @Override
+    public void onRollback() {
+        synchronized (mIds) {
+            mIds.clear();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Weekly or monthly hub (odometer) mileage, for driver pay.
+ * <p>
+ * The trips and their stops are read through {@link TripsProvider} as two cursors, both in trip_number
+ * order (each served by its unique key), and joined as they stream past, so every row is seen once and
+ * nothing is held per row. Each period keeps a running count, mean and variance (Welford's method) and
+ * its few longest and shortest trips, from which the outliers are picked once the run is over.
+ * Memory grows with the number of periods, not the number of trips.
+ * <p>
+ * A trip is counted in the period it was received. Closed and submitted trips are paid on
+ * hub_end - hub_start; assigned and open trips are reported separately, as the miles up to their
+ * latest stop's arrival hub.
+ */
+public final class MileageReport {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = MileageReport.class.getSimpleName();
+
+    /**
+     * Period lengths. Weeks start on Monday.
+     */
+    public static final int WEEK = 1;
+    public static final int MONTH = 2;
+
+    /**
+     * A paid trip this many standard deviations from its period's mean is an outlier.
+     */
+    private static final double OUTLIER_SIGMAS = 3.0;
+
+    /**
+     * Fewest paid trips a period needs before any of them is called an outlier.
+     */
+    private static final int MIN_TRIPS_FOR_OUTLIERS = 8;
+
+    /**
+     * Longest and shortest trips kept per period as outlier candidates, so at most this many
+     * outliers are reported either side.
+     */
+    private static final int OUTLIER_CANDIDATES = 3;
+
+    private static final String[] TRIP_PROJECTION = {TripEntry.COLUMN_TRIP_NUMBER, TripEntry.COLUMN_STATE,
+            TripEntry.COLUMN_RECEIVED_DAY, TripEntry.COLUMN_HUB_INITIAL, TripEntry.COLUMN_HUB_END};
+    private static final String[] STOP_PROJECTION = {StopEntry.COLUMN_TRIP_NUMBER, StopEntry.COLUMN_HUB};
+
+    /**
+     * Columns of {@link #toTable(List)} and {@link #writeCsv(List, Appendable)}.
+     */
+    private static final String[] COLUMNS = {"period_start", "period_end", "trips", "stops", "miles",
+            "mean_miles", "stddev_miles", "min_miles", "max_miles", "open_trips", "open_miles", "outliers"};
+
+    private final int mPeriod;
+    private final Map<Integer, Accumulator> mPeriods = new TreeMap<>();
+
+    /**
+     * @param period {@link #WEEK} or {@link #MONTH}.
+     */
+    public MileageReport(int period) {
+        if (period != WEEK && period != MONTH)
+            throw new IllegalArgumentException("Unknown period " + period);
+        mPeriod = period;
+    }
+
+    /**
+     * Reads a profile's trips and stops and totals them. Runs on the calling thread, keep it off the main one.
+     *
+     * @param resolver ContentResolver to read through.
+     * @param profile  The driver profile to report on.
+     * @param fromDate First received date (yyyy-MM-dd) to include, or null for no lower bound.
+     * @param toDate   Last received date (yyyy-MM-dd) to include, or null for no upper bound.
+     * @return The periods that had trips, oldest first.
+     */
+    public List<Period> run(ContentResolver resolver, String profile, String fromDate, String toDate) {
+        long started = SystemClock.elapsedRealtime();
+        mPeriods.clear();
+
+        Uri tripsUri = TripsContract.buildProfileUri(
+                TripsContract.buildDateRangeUri(TripEntry.CONTENT_URI, fromDate, toDate), profile);
+        // Only the stops of the trips in the range
+        String stopSelection = null;
+        List<String> stopSelectionArgs = new ArrayList<>();
+        if (fromDate != null || toDate != null) {
+            String[] dates = {fromDate, toDate};
+            String[] operators = {">=?", "<=?"};
+            StringBuilder range = new StringBuilder();
+            for (int i = 0; i < dates.length; i++) {
+                if (dates[i] == null)
+                    continue;
+                int day = EpochDays.parse(dates[i]);
+                if (day == EpochDays.INVALID)
+                    throw new IllegalArgumentException("Invalid date " + dates[i]);
+                range.append(range.length() == 0 ? "" : " AND ").append(TripEntry.COLUMN_RECEIVED_DAY).append(operators[i]);
+                stopSelectionArgs.add(String.valueOf(day));
+            }
+            stopSelection = StopEntry.COLUMN_TRIP_NUMBER + " IN (SELECT " + TripEntry.COLUMN_TRIP_NUMBER
+                    + " FROM " + TripEntry.TABLE_NAME + " WHERE " + range + ")";
+        }
+
+        Cursor trips = resolver.query(tripsUri, TRIP_PROJECTION, null, null, TripEntry.COLUMN_TRIP_NUMBER);
+        Cursor stops = resolver.query(TripsContract.buildProfileUri(StopEntry.CONTENT_URI, profile), STOP_PROJECTION,
+                stopSelection, stopSelectionArgs.toArray(new String[stopSelectionArgs.size()]),
+                StopEntry.COLUMN_TRIP_NUMBER + ", " + StopEntry.COLUMN_SORT_INDEX);
+        int tripCount = 0;
+        try {
+            if (trips == null || stops == null)
+                return Collections.emptyList();
+            boolean hasStop = stops.moveToNext();
+            while (trips.moveToNext()) {
+                String tripNumber = trips.getString(0);
+                // Skip the stops of trips that aren't reported (no trip row, or outside the range)
+                while (hasStop && stops.getString(0).compareTo(tripNumber) < 0)
+                    hasStop = stops.moveToNext();
+                int stopCount = 0;
+                long lastArrivalHub = 0;
+                while (hasStop && stops.getString(0).equals(tripNumber)) {
+                    stopCount++;
+                    lastArrivalHub = stops.getLong(1);
+                    hasStop = stops.moveToNext();
+                }
+                if (trips.isNull(2))
+                    continue;
+                add(trips.getInt(2), tripNumber, trips.getInt(1), trips.getLong(3), trips.getLong(4), stopCount, lastArrivalHub);
+                tripCount++;
+            }
+        } finally {
+            if (trips != null)
+                trips.close();
+            if (stops != null)
+                stops.close();
+        }
+
+        List<Period> periods = periods();
+        Log.i(LOG_TAG, String.format(Locale.US, "Reported %d trips in %d periods in %dms",
+                tripCount, periods.size(), SystemClock.elapsedRealtime() - started));
+        return periods;
+    }
+
+    /**
+     * Adds one trip to its period.
+     *
+     * @param receivedDay    Epoch day the trip was received.
+     * @param stopCount      Number of stops the trip has.
+     * @param lastArrivalHub Arrival hub of the trip's last stop, if it has any.
+     */
+    void add(int receivedDay, String tripNumber, int state, long hubStart, long hubEnd, int stopCount, long lastArrivalHub) {
+        int start = mPeriod == WEEK ? EpochDays.startOfWeek(receivedDay) : EpochDays.startOfMonth(receivedDay);
+        Accumulator accumulator = mPeriods.get(start);
+        if (accumulator == null) {
+            accumulator = new Accumulator(start);
+            mPeriods.put(start, accumulator);
+        }
+        if (state == TripEntry.STATE_CLOSED || state == TripEntry.STATE_SUBMITTED) {
+            accumulator.addPaid(tripNumber, hubEnd - hubStart, stopCount);
+        } else {
+            accumulator.openTrips++;
+            if (stopCount > 0 && lastArrivalHub > hubStart)
+                accumulator.openMiles += lastArrivalHub - hubStart;
+        }
+    }
+
+    /**
+     * @return The periods added so far, oldest first.
+     */
+    List<Period> periods() {
+        List<Period> periods = new ArrayList<>(mPeriods.size());
+        for (Accumulator accumulator : mPeriods.values())
+            periods.add(accumulator.toPeriod());
+        return periods;
+    }
+
+    /**
+     * Lays the periods out as rows of text cells, the column names first, for a table on screen or
+     * in a {@link android.graphics.pdf.PdfDocument}.
+     */
+    public static List<String[]> toTable(List<Period> periods) {
+        List<String[]> rows = new ArrayList<>(periods.size() + 1);
+        rows.add(COLUMNS.clone());
+        for (Period period : periods) {
+            StringBuilder outliers = new StringBuilder();
+            for (Outlier outlier : period.outliers)
+                outliers.append(outliers.length() == 0 ? "" : " ").append(outlier.tripNumber).append(':').append(outlier.miles);
+            rows.add(new String[]{
+                    EpochDays.format(period.startDay),
+                    EpochDays.format(period.endDay - 1),
+                    String.valueOf(period.trips),
+                    String.valueOf(period.stops),
+                    String.valueOf(period.miles),
+                    String.format(Locale.US, "%.1f", period.meanMiles),
+                    String.format(Locale.US, "%.1f", period.stdDevMiles),
+                    String.valueOf(period.minMiles),
+                    String.valueOf(period.maxMiles),
+                    String.valueOf(period.openTrips),
+                    String.valueOf(period.openMiles),
+                    outliers.toString()});
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the periods as CSV (RFC 4180), a header line first.
+     */
+    public static void writeCsv(List<Period> periods, Appendable out) throws IOException {
+        for (String[] row : toTable(periods)) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0)
+                    out.append(',');
+                appendCsvField(out, row[i]);
+            }
+            out.append("\r\n");
+        }
+    }
+
+    private static void appendCsvField(Appendable out, String field) throws IOException {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+            out.append(field);
+            return;
+        }
+        out.append('"').append(field.replace("\"", "\"\"")).append('"');
+    }
+
+    /**
+     * The totals of one week or month.
+     */
+    public static final class Period {
+        /**
+         * Epoch days, the first day of the period and the first day after it.
+         */
+        public final int startDay;
+        public final int endDay;
+
+        /**
+         * Closed and submitted trips, their stops and hub miles.
+         */
+        public final int trips;
+        public final int stops;
+        public final long miles;
+        public final double meanMiles;
+        public final double stdDevMiles;
+        public final long minMiles;
+        public final long maxMiles;
+
+        /**
+         * Assigned and open trips, and their miles so far.
+         */
+        public final int openTrips;
+        public final long openMiles;
+
+        /**
+         * Paid trips far from the period's mean, longest first.
+         */
+        public final List<Outlier> outliers;
+
+        Period(int startDay, int endDay, int trips, int stops, long miles, double meanMiles, double stdDevMiles,
+               long minMiles, long maxMiles, int openTrips, long openMiles, List<Outlier> outliers) {
+            this.startDay = startDay;
+            this.endDay = endDay;
+            this.trips = trips;
+            this.stops = stops;
+            this.miles = miles;
+            this.meanMiles = meanMiles;
+            this.stdDevMiles = stdDevMiles;
+            this.minMiles = minMiles;
+            this.maxMiles = maxMiles;
+            this.openTrips = openTrips;
+            this.openMiles = openMiles;
+            this.outliers = outliers;
+        }
+    }
+
+    /**
+     * A paid trip whose miles are out of line with the rest of its period.
+     */
+    public static final class Outlier {
+        public final String tripNumber;
+        public final long miles;
+        /**
+         * Standard deviations from the period's mean, negative for short trips.
+         */
+        public final double sigmas;
+
+        Outlier(String tripNumber, long miles, double sigmas) {
+            this.tripNumber = tripNumber;
+            this.miles = miles;
+            this.sigmas = sigmas;
+        }
+    }
+
+    /**
+     * Running totals of one period.
+     */
+    private final class Accumulator {
+        final int startDay;
+        int trips;
+        int stops;
+        long miles;
+        double mean;
+        double sumOfSquares; // of the differences from the mean, Welford's M2
+        long minMiles = Long.MAX_VALUE;
+        long maxMiles = Long.MIN_VALUE;
+        int openTrips;
+        long openMiles;
+
+        // Outlier candidates, longest and shortest first
+        final List<Outlier> longest = new ArrayList<>(OUTLIER_CANDIDATES + 1);
+        final List<Outlier> shortest = new ArrayList<>(OUTLIER_CANDIDATES + 1);
+
+        Accumulator(int startDay) {
+            this.startDay = startDay;
+        }
+
+        void addPaid(String tripNumber, long tripMiles, int stopCount) {
+            trips++;
+            stops += stopCount;
+            miles += tripMiles;
+            double delta = tripMiles - mean;
+            mean += delta / trips;
+            sumOfSquares += delta * (tripMiles - mean);
+            minMiles = Math.min(minMiles, tripMiles);
+            maxMiles = Math.max(maxMiles, tripMiles);
+            keep(longest, new Outlier(tripNumber, tripMiles, 0), true);
+            keep(shortest, new Outlier(tripNumber, tripMiles, 0), false);
+        }
+
+        private void keep(List<Outlier> candidates, Outlier candidate, boolean longestFirst) {
+            int i = candidates.size();
+            while (i > 0 && (longestFirst ? candidate.miles > candidates.get(i - 1).miles
+                    : candidate.miles < candidates.get(i - 1).miles))
+                i--;
+            if (i < OUTLIER_CANDIDATES) {
+                candidates.add(i, candidate);
+                if (candidates.size() > OUTLIER_CANDIDATES)
+                    candidates.remove(OUTLIER_CANDIDATES);
+            }
+        }
+
+        Period toPeriod() {
+            double stdDev = trips > 1 ? Math.sqrt(sumOfSquares / (trips - 1)) : 0;
+            List<Outlier> outliers = new ArrayList<>();
+            if (trips >= MIN_TRIPS_FOR_OUTLIERS && stdDev > 0) {
+                for (Outlier candidate : longest)
+                    addIfOutlier(outliers, candidate, stdDev);
+                for (int i = shortest.size() - 1; i >= 0; i--)
+                    addIfOutlier(outliers, shortest.get(i), stdDev);
+            }
+            int endDay = mPeriod == WEEK ? startDay + 7 : EpochDays.startOfNextMonth(startDay);
+            return new Period(startDay, endDay, trips, stops, miles, trips > 0 ? mean : 0, stdDev,
+                    trips > 0 ? minMiles : 0, trips > 0 ? maxMiles : 0, openTrips, openMiles, outliers);
+        }
+
+        private void addIfOutlier(List<Outlier> outliers, Outlier candidate, double stdDev) {
+            double sigmas = (candidate.miles - mean) / stdDev;
+            if (Math.abs(sigmas) > OUTLIER_SIGMAS)
+                outliers.add(new Outlier(candidate.tripNumber, candidate.miles, sigmas));
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TelemetryEntry;
+import com.crystaltowerdesigns.mytrippacks.storage.TelemetryLog;
+import com.crystaltowerdesigns.mytrippacks.storage.TelemetrySummary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Takes a profile's hub and position readings into a {@link TelemetryLog} and moves them into the
+ * {@link TelemetryEntry} table in batches, summed up per stop.
+ * <p>
+ * One recorder per profile for the life of the process, the log file must not be mapped twice.
+ * The database's helper is acquired for each flush, so a profile whose helper left the pool meanwhile
+ * just has it opened again. The last reading flushed is stored in the same transaction as the summaries,
+ * so a crash between the commit and {@link TelemetryLog#markFlushed(long)} doesn't count readings twice.
+ */
+final class TelemetryRecorder {
+
+    private static final String LOG_TAG = TelemetryRecorder.class.getSimpleName();
+
+    /**
+     * {@link TripsDbHelper#METADATA_TABLE} key of the last reading stored in the summaries.
+     */
+    static final String FLUSHED_SEQ_KEY = "telemetry_flushed_seq";
+
+    /**
+     * Readings the log holds: 8192 of 56 bytes, over two hours at one a second.
+     */
+    private static final int LOG_CAPACITY = 8192;
+
+    /**
+     * Readings per transaction.
+     */
+    private static final int READINGS_PER_FLUSH = 1000;
+
+    private static final long FLUSH_INTERVAL_SECONDS = 30;
+
+    /**
+     * Name of the log file of the default profile, others are LOG_PREFIX + profile + LOG_SUFFIX.
+     */
+    private static final String LOG_NAME = "telemetry.log";
+    private static final String LOG_PREFIX = "telemetry_";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final String MERGE_SUMMARY = "UPDATE " + TelemetryEntry.TABLE_NAME + " SET "
+            + TelemetryEntry.COLUMN_READINGS + " = " + TelemetryEntry.COLUMN_READINGS + " + ?1, "
+            + TelemetryEntry.COLUMN_FIRST_READING_TIME + " = MIN(" + TelemetryEntry.COLUMN_FIRST_READING_TIME + ", ?2), "
+            + TelemetryEntry.COLUMN_LAST_READING_TIME + " = MAX(" + TelemetryEntry.COLUMN_LAST_READING_TIME + ", ?3), "
+            // MIN and MAX of a null are null, so either side missing leaves the other
+            + TelemetryEntry.COLUMN_MIN_HUB + " = COALESCE(MIN(" + TelemetryEntry.COLUMN_MIN_HUB + ", ?4), "
+            + TelemetryEntry.COLUMN_MIN_HUB + ", ?4), "
+            + TelemetryEntry.COLUMN_MAX_HUB + " = COALESCE(MAX(" + TelemetryEntry.COLUMN_MAX_HUB + ", ?5), "
+            + TelemetryEntry.COLUMN_MAX_HUB + ", ?5), "
+            + TelemetryEntry.COLUMN_LATITUDE + " = COALESCE(?6, " + TelemetryEntry.COLUMN_LATITUDE + "), "
+            + TelemetryEntry.COLUMN_LONGITUDE + " = COALESCE(?7, " + TelemetryEntry.COLUMN_LONGITUDE + ") "
+            + "WHERE " + TelemetryEntry.COLUMN_STOP_ID + " = ?8";
+
+    /**
+     * Readings of a stop deleted before they were flushed are dropped.
+     */
+    private static final String INSERT_SUMMARY = "INSERT INTO " + TelemetryEntry.TABLE_NAME + " ("
+            + TelemetryEntry.COLUMN_READINGS + ", " + TelemetryEntry.COLUMN_FIRST_READING_TIME + ", "
+            + TelemetryEntry.COLUMN_LAST_READING_TIME + ", " + TelemetryEntry.COLUMN_MIN_HUB + ", "
+            + TelemetryEntry.COLUMN_MAX_HUB + ", " + TelemetryEntry.COLUMN_LATITUDE + ", "
+            + TelemetryEntry.COLUMN_LONGITUDE + ", " + TelemetryEntry.COLUMN_STOP_ID + ") "
+            + "SELECT ?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8 WHERE EXISTS (SELECT 1 FROM " + StopEntry.TABLE_NAME
+            + " WHERE " + StopEntry._ID + " = ?8)";
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor();
+
+    private static final Map<String, TelemetryRecorder> sRecorders = new HashMap<>();
+
+    private final Context mContext;
+    private final String mProfile;
+
+    /**
+     * Opened on the first reading.
+     */
+    private TelemetryLog mLog;
+
+    /**
+     * Set while a flush is waiting to run, besides the periodic one.
+     */
+    private final AtomicBoolean mFlushQueued = new AtomicBoolean();
+
+    private TelemetryRecorder(Context context, String profile) {
+        mContext = context;
+        mProfile = profile;
+    }
+
+    /**
+     * @param profile a valid profile name, see {@link TripsContract#isValidProfile(String)}
+     * @return The profile's recorder, created on first use.
+     */
+    static TelemetryRecorder getInstance(Context context, String profile) {
+        if (!TripsContract.isValidProfile(profile))
+            throw new IllegalArgumentException("Invalid profile " + profile);
+        synchronized (sRecorders) {
+            TelemetryRecorder recorder = sRecorders.get(profile);
+            if (recorder == null) {
+                recorder = new TelemetryRecorder(context.getApplicationContext(), profile);
+                sRecorders.put(profile, recorder);
+            }
+            return recorder;
+        }
+    }
+
+    /**
+     * Appends a reading to the log. Doesn't touch the database, the flusher does that.
+     *
+     * @return false if the reading was dropped, the log being full or unusable.
+     */
+    boolean record(long stopId, long time, long hub, double latitude, double longitude) {
+        TelemetryLog log = openLog();
+        if (log == null)
+            return false;
+        boolean appended = log.append(stopId, time, hub, latitude, longitude);
+        if (!appended)
+            Log.w(LOG_TAG, "Telemetry log of profile '" + mProfile + "' is full, " + log.getDropped() + " readings dropped");
+        // Flush early rather than wait for the next tick and risk filling up
+        if (log.getPendingCount() >= log.getCapacity() / 2)
+            scheduleFlush();
+        return appended;
+    }
+
+    /**
+     * @return The log, opening it and starting the periodic flush the first time; null if it can't be opened.
+     */
+    private synchronized TelemetryLog openLog() {
+        if (mLog != null)
+            return mLog;
+        try {
+            mLog = TelemetryLog.open(new File(mContext.getFilesDir(), logName(mProfile)), LOG_CAPACITY);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to open the telemetry log of profile '" + mProfile + "'", e);
+            return null;
+        }
+        // Readings recovered from before a restart go in with the first tick
+        FLUSHER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return mLog;
+    }
+
+    /**
+     * @return Name of the profile's log file, in the app's files directory.
+     */
+    private static String logName(String profile) {
+        return TripsContract.DEFAULT_PROFILE.equals(profile) ? LOG_NAME : LOG_PREFIX + profile + LOG_SUFFIX;
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushQueued.compareAndSet(false, true))
+            return;
+        FLUSHER.execute(new Runnable() {
+            @Override
+            public void run() {
+                mFlushQueued.set(false);
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Moves the pending readings into the summaries, on the flusher's thread.
+     */
+    private void flush() {
+        TelemetryLog log = mLog;
+        if (log.getPendingCount() == 0)
+            return;
+        TripsDbHelper helper = TripsDbHelper.acquire(mContext, mProfile);
+        try {
+            SQLiteDatabase database = helper.getWritableDatabase();
+            int flushed = 0;
+            List<TelemetryLog.Reading> readings;
+            while (!(readings = log.pending(READINGS_PER_FLUSH)).isEmpty()) {
+                flushed += flushBatch(database, log, readings);
+            }
+            log.sync();
+            if (flushed > 0)
+                mContext.getContentResolver().notifyChange(TelemetryEntry.CONTENT_URI, null);
+        } catch (RuntimeException e) {
+            // The readings stay in the log for the next tick
+            Log.e(LOG_TAG, "Unable to flush the telemetry of profile '" + mProfile + "'", e);
+        } finally {
+            helper.release();
+        }
+    }
+
+    /**
+     * Merges one batch of readings into the summaries and records the last one as stored.
+     *
+     * @return Readings stored, fewer than given if some were stored before a crash.
+     */
+    private static int flushBatch(SQLiteDatabase database, TelemetryLog log, List<TelemetryLog.Reading> readings) {
+        long lastSeq = readings.get(readings.size() - 1).seq;
+        int first;
+        database.beginTransaction();
+        try {
+            first = TelemetryLog.firstUnstored(readings, readFlushedSeq(database));
+            // Nothing to write if the whole batch went in before a crash, only the log is behind
+            if (first < readings.size()) {
+                SQLiteStatement merge = database.compileStatement(MERGE_SUMMARY);
+                SQLiteStatement insert = database.compileStatement(INSERT_SUMMARY);
+                try {
+                    for (TelemetrySummary summary : TelemetrySummary.summarize(readings.subList(first, readings.size()))) {
+                        bindSummary(merge, summary);
+                        if (merge.executeUpdateDelete() == 0) {
+                            bindSummary(insert, summary);
+                            insert.executeInsert();
+                        }
+                    }
+                } finally {
+                    merge.close();
+                    insert.close();
+                }
+
+                ContentValues flushed = new ContentValues();
+                flushed.put(TripsDbHelper.METADATA_KEY, FLUSHED_SEQ_KEY);
+                flushed.put(TripsDbHelper.METADATA_VALUE, String.valueOf(lastSeq));
+                database.insertWithOnConflict(TripsDbHelper.METADATA_TABLE, null, flushed, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        // Only once committed, a failed commit throws above and leaves the readings pending
+        log.markFlushed(lastSeq);
+        return readings.size() - first;
+    }
+
+    /**
+     * @return The last reading stored in the summaries, 0 before the first flush.
+     */
+    private static long readFlushedSeq(SQLiteDatabase database) {
+        String value = DatabaseUtils.stringForQuery(database, "SELECT COALESCE(MAX(" + TripsDbHelper.METADATA_VALUE
+                + "), '0') FROM " + TripsDbHelper.METADATA_TABLE + " WHERE " + TripsDbHelper.METADATA_KEY + "=?",
+                new String[]{FLUSHED_SEQ_KEY});
+        return Long.parseLong(value);
+    }
+
+    private static void bindSummary(SQLiteStatement statement, TelemetrySummary summary) {
+        statement.clearBindings();
+        statement.bindLong(1, summary.getReadings());
+        statement.bindLong(2, summary.getFirstTime());
+        statement.bindLong(3, summary.getLastTime());
+        if (summary.getMinHub() != TelemetryLog.NO_HUB) {
+            statement.bindLong(4, summary.getMinHub());
+            statement.bindLong(5, summary.getMaxHub());
+        }
+        if (summary.hasPosition()) {
+            statement.bindDouble(6, summary.getLatitude());
+            statement.bindDouble(7, summary.getLongitude());
+        }
+        statement.bindLong(8, summary.getStopId());
+    }
+}
@@ -1,11 +1,17 @@
 package com.crystaltowerdesigns.mytrippacks.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 
+import com.crystaltowerdesigns.mytrippacks.storage.TripSchema;
+
 /**
  * API Contract for the Trip Pack app.
+ * <p>
+ * The table and column names come from {@link TripSchema}, which the desktop store shares.
  */
 public final class TripsContract {
     /**
@@ -27,6 +33,311 @@ public final class TripsContract {
      */
     public static final String PATH_STOPS = "mystops";
 
+    /**
+     * Possible path appended to {@link TripEntry#CONTENT_URI} followed by a state value.
+     * For instance, content://com.crystaltowerdesigns.mytrippacks/mytrippacks/state/101 lists the open trips.
+     */
+    public static final String PATH_STATE = "state";
+
+    /**
+     * Possible path appended to {@link TripEntry#CONTENT_URI} to list only the assigned and open trips.
+     */
+    public static final String PATH_ACTIVE = "active";
+
+    /**
+     * Possible path (appended to base content URI for possible URI's)
+     * For instance, content://com.crystaltowerdesigns.mytrippacks/hubanomalies lists the
+     * hub (odometer) continuity problems found in the trips and stops.
+     */
+    public static final String PATH_ANOMALIES = "hubanomalies";
+
+    /**
+     * Possible path (appended to base content URI for possible URI's)
+     * For instance, content://com.crystaltowerdesigns.mytrippacks/locations lists the
+     * distinct stop locations.
+     */
+    public static final String PATH_LOCATIONS = "locations";
+
+    /**
+     * Possible path (appended to base content URI for possible URI's)
+     * For instance, content://com.crystaltowerdesigns.mytrippacks/stoptelemetry lists the
+     * hub and position readings recorded on the way to each stop, summarized per stop.
+     */
+    public static final String PATH_TELEMETRY = "stoptelemetry";
+
+    /**
+     * Possible path appended to a single trip URI to read the trip together with its stops.
+     *
+     * @see TripEntry#buildTripWithStopsUri(long)
+     */
+    public static final String PATH_TRIP_STOPS = "stops";
+
+    /**
+     * Possible path appended to {@link StopEntry#CONTENT_URI} to list the stops nearest a position.
+     *
+     * @see StopEntry#buildNearestUri(double, double, int, boolean)
+     */
+    public static final String PATH_NEAREST = "nearest";
+
+    /**
+     * Possible path appended to {@link StopEntry#CONTENT_URI} to list the stops inside a latitude/longitude box.
+     *
+     * @see StopEntry#buildWithinUri(double, double, double, double, boolean)
+     */
+    public static final String PATH_WITHIN = "within";
+
+    /**
+     * Query parameter (yyyy-MM-dd, inclusive) for the start of a date range.
+     * Applies to {@link TripEntry#COLUMN_RECEIVED_DAY} for trips and
+     * {@link StopEntry#COLUMN_COMPLETED_DAY} for stops.
+     */
+    public static final String PARAM_DATE_FROM = "date_from";
+
+    /**
+     * Query parameter (yyyy-MM-dd, inclusive) for the end of a date range.
+     *
+     * @see #PARAM_DATE_FROM
+     */
+    public static final String PARAM_DATE_TO = "date_to";
+
+    /**
+     * Query parameters (decimal degrees) for the position of a {@link #PATH_NEAREST} query.
+     */
+    public static final String PARAM_LATITUDE = "lat";
+    public static final String PARAM_LONGITUDE = "lon";
+
+    /**
+     * Query parameter, the number of stops a {@link #PATH_NEAREST} query returns.
+     */
+    public static final String PARAM_LIMIT = "limit";
+
+    /**
+     * Query parameters (decimal degrees, inclusive) for the corners of a {@link #PATH_WITHIN} box.
+     */
+    public static final String PARAM_MIN_LATITUDE = "min_lat";
+    public static final String PARAM_MIN_LONGITUDE = "min_lon";
+    public static final String PARAM_MAX_LATITUDE = "max_lat";
+    public static final String PARAM_MAX_LONGITUDE = "max_lon";
+
+    /**
+     * Query parameter, "true" limits a {@link #PATH_NEAREST} or {@link #PATH_WITHIN} query to the stops
+     * of trips in {@link TripEntry#STATE_ASSIGNED} or {@link TripEntry#STATE_OPEN}.
+     */
+    public static final String PARAM_OPEN_ONLY = "open";
+
+    /**
+     * Query parameter naming the driver profile a URI reads or writes. Every profile has a database
+     * of its own, a URI without the parameter goes to {@link #DEFAULT_PROFILE}.
+     *
+     * @see #buildProfileUri(Uri, String)
+     */
+    public static final String PARAM_PROFILE = "profile";
+
+    /**
+     * The profile of URIs without {@link #PARAM_PROFILE}. Its database is the one the app had
+     * before profiles existed.
+     */
+    public static final String DEFAULT_PROFILE = "";
+
+    /**
+     * Longest profile name, see {@link #isValidProfile(String)}.
+     */
+    public static final int MAX_PROFILE_LENGTH = 32;
+
+    /**
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} method that moves a stop
+     * within its trip. Extras: {@link #EXTRA_STOP_ID} and {@link #EXTRA_AFTER_STOP_ID}, both required.
+     * The result holds the new {@link StopEntry#COLUMN_SORT_INDEX} under {@link #EXTRA_SORT_INDEX}.
+     */
+    public static final String METHOD_MOVE_STOP = "move_stop";
+
+    /**
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} method that inserts or
+     * updates trip packs keyed by {@link TripEntry#COLUMN_TRIP_NUMBER}, for re-syncing from dispatch.
+     * Extras: {@link #EXTRA_TRIPS} and {@link #EXTRA_STOPS}, at least one of them; every stop's trip has to be
+     * in {@link #EXTRA_TRIPS}, or the call throws IllegalArgumentException. Stops are matched by
+     * ({@link StopEntry#COLUMN_TRIP_NUMBER}, {@link StopEntry#COLUMN_SORT_INDEX}); for each trip that has
+     * stops in the extras, stored stops that are not in the extras are removed.
+     * The rows' _ID and {@link TripEntry#COLUMN_DELETED_AT} values are ignored, so rows read by
+     * {@link #METHOD_READ_TRIPS}, from this profile or another, can be sent as they are.
+     * Rows that are already up to date are not written. The whole call is one transaction.
+     * The result holds {@link #EXTRA_INSERTED}, {@link #EXTRA_UPDATED}, {@link #EXTRA_UNCHANGED} and
+     * {@link #EXTRA_REJECTED} trip counts.
+     */
+    public static final String METHOD_UPSERT_PACKS = "upsert_packs";
+
+    /**
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} method that totals the
+     * trips of every driver profile, reading all their databases in one query.
+     * The result holds {@link #EXTRA_PROFILES}, and at the same positions {@link #EXTRA_TRIP_COUNTS}
+     * and {@link #EXTRA_MILES}.
+     */
+    public static final String METHOD_PROFILE_TOTALS = "profile_totals";
+
+    /**
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} method that moves many trips
+     * to a new state at once. Extras: {@link #EXTRA_TRIP_IDS} and {@link #EXTRA_STATE}, both required, {@link #EXTRA_DATE}
+     * (the submitted date, needed for {@link TripEntry#STATE_SUBMITTED}) and optionally {@link #EXTRA_PROFILE}.
+     * <p>
+     * Trips move forward one state at a time: assigned to open, open to closed, closed to submitted;
+     * a closed trip may also be opened again. Trips that are not in a state the target can be reached
+     * from, or are soft deleted, are left alone. The trips are written in one transaction with one change notification.
+     * The result holds the {@link #EXTRA_UPDATED} and {@link #EXTRA_REJECTED} trip counts.
+     */
+    public static final String METHOD_TRANSITION_TRIPS = "transition_trips";
+
+    /**
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} method that reads trips with
+     * their stops from one read transaction, so a write landing in the middle can't tear the result.
+     * Extras, all optional: {@link #EXTRA_TRIP_IDS}, {@link #EXTRA_DATE_FROM} and {@link #EXTRA_DATE_TO}
+     * (received date range) select the trips, {@link #EXTRA_AFTER_TRIP_ID} and {@link #EXTRA_LIMIT} page
+     * through them in _ID order, and {@link #EXTRA_PROFILE}.
+     * <p>
+     * The result holds {@link #EXTRA_TRIPS} and, ordered by trip and stop index, {@link #EXTRA_STOPS} with
+     * their {@link StopEntry#COLUMN_LOCATION} text, the same shape {@link #METHOD_UPSERT_PACKS} takes.
+     * When more trips match it also holds {@link #EXTRA_AFTER_TRIP_ID} for the next page, which is
+     * consistent in itself but read in a transaction of its own.
+     */
+    public static final String METHOD_READ_TRIPS = "read_trips";
+
+    /**
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} method that soft deletes trips
+     * with one UPDATE, their stops going with them. The UPDATE touches every trip deleted, call it off the
+     * main thread. Extras: {@link #EXTRA_TRIP_IDS}, or none for every trip,
+     * and optionally {@link #EXTRA_PROFILE}.
+     * <p>
+     * The trips disappear from reads at once. For {@link #UNDO_WINDOW_MILLIS} they can be restored with
+     * {@link #METHOD_UNDO_DELETE}, then a background purge deletes them and their stops in small batches.
+     * A soft deleted trip's number stays taken until it is purged; upserting the trip again restores it.
+     * The result holds the {@link #EXTRA_UPDATED} trip count and the {@link #EXTRA_DELETION} to undo.
+     */
+    public static final String METHOD_SOFT_DELETE_TRIPS = "soft_delete_trips";
+
+    /**
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} method that restores the
+     * trips of a {@link #METHOD_SOFT_DELETE_TRIPS}, with their stops. Extras: {@link #EXTRA_DELETION} and
+     * optionally {@link #EXTRA_PROFILE}. The result holds the {@link #EXTRA_UPDATED} count of trips restored,
+     * 0 once they have been purged.
+     */
+    public static final String METHOD_UNDO_DELETE = "undo_delete";
+
+    /**
+     * How long soft deleted trips can be restored before the purge may delete them.
+     */
+    public static final long UNDO_WINDOW_MILLIS = 30000;
+
+    /**
+     * Most trips, and the default, in one {@link #METHOD_READ_TRIPS} page, which keeps the result
+     * well inside the binder transaction limit.
+     */
+    public static final int MAX_READ_TRIPS = 100;
+
+    /**
+     * String, a yyyy-MM-dd date, the first day of a range.
+     */
+    public static final String EXTRA_DATE_FROM = "date_from";
+
+    /**
+     * String, a yyyy-MM-dd date, the last day of a range.
+     */
+    public static final String EXTRA_DATE_TO = "date_to";
+
+    /**
+     * long, identifies one {@link #METHOD_SOFT_DELETE_TRIPS} to {@link #METHOD_UNDO_DELETE}.
+     */
+    public static final String EXTRA_DELETION = "deletion";
+
+    /**
+     * long, read only the trips with a larger _ID.
+     */
+    public static final String EXTRA_AFTER_TRIP_ID = "after_trip_id";
+
+    /**
+     * int, the most rows to return.
+     */
+    public static final String EXTRA_LIMIT = "limit";
+
+    /**
+     * long array, trip _IDs.
+     */
+    public static final String EXTRA_TRIP_IDS = "trip_ids";
+
+    /**
+     * int, one of the TripEntry STATE_ values.
+     */
+    public static final String EXTRA_STATE = "state";
+
+    /**
+     * String, a yyyy-MM-dd date.
+     */
+    public static final String EXTRA_DATE = "date";
+
+    /**
+     * String, the profile a {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}
+     * method works on. Without it the method works on {@link #DEFAULT_PROFILE}.
+     */
+    public static final String EXTRA_PROFILE = "profile";
+
+    /**
+     * String array, profile names.
+     */
+    public static final String EXTRA_PROFILES = "profiles";
+
+    /**
+     * long array, number of trips per profile.
+     */
+    public static final String EXTRA_TRIP_COUNTS = "trip_counts";
+
+    /**
+     * long array, hub (odometer) miles of the closed and submitted trips per profile.
+     */
+    public static final String EXTRA_MILES = "miles";
+
+    /**
+     * ArrayList of ContentValues, one per trip.
+     */
+    public static final String EXTRA_TRIPS = "trips";
+
+    /**
+     * ArrayList of ContentValues, the stops of the trips in {@link #EXTRA_TRIPS}.
+     */
+    public static final String EXTRA_STOPS = "stops";
+
+    /**
+     * int, number of trips added.
+     */
+    public static final String EXTRA_INSERTED = "inserted";
+
+    /**
+     * int, number of trips (or their stops) changed.
+     */
+    public static final String EXTRA_UPDATED = "updated";
+
+    /**
+     * int, number of trips that were already up to date.
+     */
+    public static final String EXTRA_UNCHANGED = "unchanged";
+
+    /**
+     * int, number of trips that failed validation and were skipped.
+     */
+    public static final String EXTRA_REJECTED = "rejected";
+
+    /**
+     * long, the _ID of the stop to move.
+     */
+    public static final String EXTRA_STOP_ID = "stop_id";
+
+    /**
+     * long, the _ID of the stop to place the moved stop after, or 0 to make it the first stop.
+     */
+    public static final String EXTRA_AFTER_STOP_ID = "after_stop_id";
+
+    /**
+     * long, a {@link StopEntry#COLUMN_SORT_INDEX} value.
+     */
+    public static final String EXTRA_SORT_INDEX = "sort_index";
+
     /**
      * CONTENT_AUTHORITY is used for the base URI's to contact the content provider.
      */
@@ -37,6 +348,55 @@ public final class TripsContract {
         throw new AssertionError("No instances for you!");
     }
 
+    /**
+     * Builds a URI restricted to a date range, for instance the trips received last week.
+     *
+     * @param contentUri {@link TripEntry#CONTENT_URI} or {@link StopEntry#CONTENT_URI}
+     * @param fromDate   First date (yyyy-MM-dd) to include, or null for no lower bound.
+     * @param toDate     Last date (yyyy-MM-dd) to include, or null for no upper bound.
+     * @return The content URI with the range query parameters appended.
+     */
+    public static Uri buildDateRangeUri(Uri contentUri, String fromDate, String toDate) {
+        Uri.Builder builder = contentUri.buildUpon();
+        if (fromDate != null)
+            builder.appendQueryParameter(PARAM_DATE_FROM, fromDate);
+        if (toDate != null)
+            builder.appendQueryParameter(PARAM_DATE_TO, toDate);
+        return builder.build();
+    }
+
+    /**
+     * Builds a URI that reads or writes a driver profile's database.
+     *
+     * @param contentUri Any content URI of this contract.
+     * @param profile    The profile, {@link #DEFAULT_PROFILE} leaves the URI as it is.
+     * @return The content URI with the profile query parameter appended.
+     */
+    public static Uri buildProfileUri(Uri contentUri, String profile) {
+        if (!isValidProfile(profile))
+            throw new IllegalArgumentException("Invalid profile " + profile);
+        if (DEFAULT_PROFILE.equals(profile))
+            return contentUri;
+        return contentUri.buildUpon().appendQueryParameter(PARAM_PROFILE, profile).build();
+    }
+
+    /**
+     * Profile names become part of a file name: letters, digits, space, '_' and '-', at most
+     * {@link #MAX_PROFILE_LENGTH} of them, not starting or ending with a space.
+     *
+     * @return true if the name can be used as a profile.
+     */
+    public static boolean isValidProfile(String profile) {
+        if (profile == null || profile.length() > MAX_PROFILE_LENGTH || !profile.trim().equals(profile))
+            return false;
+        for (int i = 0; i < profile.length(); i++) {
+            char c = profile.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == ' ' || c == '_' || c == '-'))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Trips Table Definition
      * {@link BaseColumns}
@@ -46,10 +406,25 @@ public final class TripsContract {
     public static final class TripEntry implements BaseColumns {
 
         /**
-         * The content URI to access the trip pack data in the provider
+         * The content URI to access the trip pack data in the provider. A delete on it, or on one trip's
+         * URI, soft deletes the trips as {@link TripsContract#METHOD_SOFT_DELETE_TRIPS} does and returns
+         * their count.
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_TRIPS);
 
+        /**
+         * The content URI for the trips in {@link #STATE_ASSIGNED} or {@link #STATE_OPEN}.
+         */
+        public static final Uri ACTIVE_CONTENT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_ACTIVE);
+
+        /**
+         * Prefix of the cursor extras holding the number of trips in each state.
+         * Cursors from {@link #ACTIVE_CONTENT_URI} and {@link #buildStateUri(int)} carry them.
+         *
+         * @see #getStateCount(Bundle, int)
+         */
+        public static final String EXTRA_STATE_COUNT_PREFIX = "state_count_";
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of trip pack items.
          */
@@ -66,7 +441,7 @@ public final class TripsContract {
          * Name of database table for trip pack items
          */
         @SuppressWarnings("SpellCheckingInspection")
-        public final static String TABLE_NAME = "trips";
+        public final static String TABLE_NAME = TripSchema.TRIPS;
 
         /**
          * Unique ID number for the trip pack item (only use in the database table).
@@ -80,14 +455,21 @@ public final class TripsContract {
          * <p>
          * Type: TEXT
          */
-        public final static String COLUMN_TRIP_NUMBER = "trip_number";
+        public final static String COLUMN_TRIP_NUMBER = TripSchema.TRIP_NUMBER;
+
+        /**
+         * Sort orders by the trip number read as a number. The provider sorts the trips, or the trips
+         * of a state, by these through its in-memory index rather than in SQLite.
+         */
+        public final static String SORT_TRIP_NUMBER = "CAST(" + COLUMN_TRIP_NUMBER + " AS FLOAT)";
+        public final static String SORT_TRIP_NUMBER_DESC = SORT_TRIP_NUMBER + " DESC";
 
         /**
          * from_to, Trip Summary (From and to locations)
          * <p>
          * Type: TEXT
          */
-        public final static String COLUMN_FROM_TO = "from_to";
+        public final static String COLUMN_FROM_TO = TripSchema.FROM_TO;
 
         /**
          * hub_start is the hub reading upon start of trip.
@@ -95,7 +477,7 @@ public final class TripsContract {
          * <p>
          * Type: INTEGER
          */
-        public final static String COLUMN_HUB_INITIAL = "hub_start";
+        public final static String COLUMN_HUB_INITIAL = TripSchema.HUB_START;
 
         /**
          * hub_end is the hub reading upon end of trip.
@@ -103,17 +485,71 @@ public final class TripsContract {
          * <p>
          * Type: INTEGER
          */
-        public final static String COLUMN_HUB_END = "hub_end";
+        public final static String COLUMN_HUB_END = TripSchema.HUB_END;
+
+
+        public final static String COLUMN_STATE = TripSchema.STATE;
+        public final static String COLUMN_SUBMITTED_DATE = TripSchema.SUBMITTED_DATE;
+        public final static String COLUMN_RECEIVED_DATE = TripSchema.RECEIVED_DATE;
+
+        /**
+         * submitted_day is {@link #COLUMN_SUBMITTED_DATE} as days since 1970-01-01.
+         * Maintained by the provider, writing either column keeps the other in step.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SUBMITTED_DAY = TripSchema.SUBMITTED_DAY;
+
+        /**
+         * received_day is {@link #COLUMN_RECEIVED_DATE} as days since 1970-01-01.
+         * Maintained by the provider, writing either column keeps the other in step.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_RECEIVED_DAY = TripSchema.RECEIVED_DAY;
 
+        /**
+         * deleted_at is when the trip was soft deleted, in milliseconds since 1970-01-01, null otherwise.
+         * Set by {@link TripsContract#METHOD_SOFT_DELETE_TRIPS} and by deletes on the trip URIs; the provider
+         * leaves soft deleted trips, and their stops, out of every read until they are restored or purged.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DELETED_AT = TripSchema.DELETED_AT;
+
+        public final static int STATE_ASSIGNED = TripSchema.STATE_ASSIGNED;
+        public final static int STATE_OPEN = TripSchema.STATE_OPEN;
+        public final static int STATE_CLOSED = TripSchema.STATE_CLOSED;
+        public final static int STATE_SUBMITTED = TripSchema.STATE_SUBMITTED;
+
+        /**
+         * Builds a URI reading a trip and its stops in one query, one row per stop in stop order
+         * (a single row with null stop columns for a trip without stops). Each row holds the
+         * trip's columns and the stop's columns, with the stop's _ID under {@link StopEntry#COLUMN_STOP_ID}.
+         *
+         * @param id _ID of the trip.
+         * @return The content URI for the trip with its stops.
+         */
+        public static Uri buildTripWithStopsUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon().appendPath(PATH_TRIP_STOPS).build();
+        }
 
-        public final static String COLUMN_STATE = "state";
-        public final static String COLUMN_SUBMITTED_DATE = "submitted_date";
-        public final static String COLUMN_RECEIVED_DATE = "received_date";
+        /**
+         * @param state One of the STATE_ values.
+         * @return The content URI for the trips in the given state.
+         */
+        public static Uri buildStateUri(int state) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_STATE).appendPath(String.valueOf(state)).build();
+        }
 
-        public final static int STATE_ASSIGNED = 100;
-        public final static int STATE_OPEN = 101;
-        public final static int STATE_CLOSED = 102;
-        public final static int STATE_SUBMITTED = 103;
+        /**
+         * @param extras The extras of a state filtered cursor.
+         * @param state  One of the STATE_ values.
+         * @return The number of trips in the given state, across the whole table.
+         */
+        public static int getStateCount(Bundle extras, int state) {
+            return extras.getInt(EXTRA_STATE_COUNT_PREFIX + state, 0);
+        }
     }
 
     /**
@@ -125,7 +561,8 @@ public final class TripsContract {
     public static final class StopEntry implements BaseColumns {
 
         /**
-         * The content URI to access the trip pack data in the provider
+         * The content URI to access the trip pack data in the provider. A delete on it, or on one stop's
+         * URI, deletes the stops at once; unlike trips they aren't soft deleted and can't be restored.
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STOPS);
 
@@ -145,7 +582,7 @@ public final class TripsContract {
          * Name of database table for trip pack items
          */
         @SuppressWarnings("SpellCheckingInspection")
-        public final static String TABLE_NAME = "stops";
+        public final static String TABLE_NAME = TripSchema.STOPS;
 
         /**
          * Unique ID number for the trip pack item (only use in the database table).
@@ -159,21 +596,39 @@ public final class TripsContract {
          * <p>
          * Type: TEXT
          */
-        public final static String COLUMN_TRIP_NUMBER = "trip_number";
+        public final static String COLUMN_TRIP_NUMBER = TripSchema.TRIP_NUMBER;
 
         /**
          * Stop Location, the location of the stop.
+         * Stored once in the {@link LocationEntry} table, the provider looks the text up on
+         * writes and joins it back in on reads. Filter updates and deletes on
+         * {@link #COLUMN_LOCATION_ID} instead, the text is not a column of the stops table.
          * <p>
          * Type: TEXT
          */
-        public final static String COLUMN_LOCATION = "location";
+        public final static String COLUMN_LOCATION = LocationEntry.COLUMN_LOCATION;
+
+        /**
+         * location_id is the {@link LocationEntry} row holding {@link #COLUMN_LOCATION}.
+         * Maintained by the provider from the location text.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOCATION_ID = LocationEntry.COLUMN_LOCATION_ID;
 
         /**
          * stop_index controls the order of stops for each trip.
+         * Values are spaced {@link #RANK_GAP} apart, so a stop can be moved
+         * between two others by rewriting only its own stop_index.
          * <p>
          * Type: INTEGER
          */
-        public final static String COLUMN_SORT_INDEX = "stop_index";
+        public final static String COLUMN_SORT_INDEX = TripSchema.STOP_INDEX;
+
+        /**
+         * Spacing between the {@link #COLUMN_SORT_INDEX} values of consecutive new stops.
+         */
+        public final static int RANK_GAP = TripSchema.RANK_GAP;
 
         /**
          * arrival_hub is the hub value upon stop arrival
@@ -181,14 +636,280 @@ public final class TripsContract {
          * <p>
          * Type: INTEGER
          */
-        public final static String COLUMN_HUB = "arrival_hub";
+        public final static String COLUMN_HUB = TripSchema.ARRIVAL_HUB;
 
         /**
          * date_completed is the date the stop was completed.
          * <p>
          * Type: TEXT
          */
-        public final static String COLUMN_DATE_COMPLETED = "date_completed";
+        public final static String COLUMN_DATE_COMPLETED = TripSchema.DATE_COMPLETED;
+
+        /**
+         * completed_day is {@link #COLUMN_DATE_COMPLETED} as days since 1970-01-01.
+         * Maintained by the provider, writing either column keeps the other in step.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COMPLETED_DAY = TripSchema.COMPLETED_DAY;
+
+        /**
+         * latitude and longitude of the stop in decimal degrees, optional.
+         * Write both together, or neither.
+         * <p>
+         * Type: REAL
+         */
+        public final static String COLUMN_LATITUDE = TripSchema.LATITUDE;
+        public final static String COLUMN_LONGITUDE = TripSchema.LONGITUDE;
+
+        /**
+         * geo_cell is the {@link GeoGrid} cell of the stop's coordinates, null without coordinates.
+         * Maintained by the provider from {@link #COLUMN_LATITUDE} and {@link #COLUMN_LONGITUDE}.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_GEO_CELL = TripSchema.GEO_CELL;
+
+        /**
+         * The stop's _ID in {@link TripEntry#buildTripWithStopsUri(long)} results, where _ID is the trip's.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOP_ID = "stop_id";
+
+        /**
+         * Distance in meters from the queried position, only in {@link #buildNearestUri} results.
+         * <p>
+         * Type: REAL
+         */
+        public final static String COLUMN_DISTANCE = "distance";
+
+        /**
+         * Builds a URI for the stops nearest a position, nearest first.
+         * Stops without coordinates are left out.
+         *
+         * @param latitude  Position latitude.
+         * @param longitude Position longitude.
+         * @param limit     Number of stops to return.
+         * @param openOnly  true to only consider the stops of assigned and open trips.
+         * @return The content URI for the nearest stops.
+         */
+        public static Uri buildNearestUri(double latitude, double longitude, int limit, boolean openOnly) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_NEAREST)
+                    .appendQueryParameter(PARAM_LATITUDE, String.valueOf(latitude))
+                    .appendQueryParameter(PARAM_LONGITUDE, String.valueOf(longitude))
+                    .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                    .appendQueryParameter(PARAM_OPEN_ONLY, String.valueOf(openOnly))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the stops inside a latitude/longitude box. The box may not cross the 180th meridian.
+         *
+         * @param openOnly true to only include the stops of assigned and open trips.
+         * @return The content URI for the stops in the box.
+         */
+        public static Uri buildWithinUri(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+                                         boolean openOnly) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_WITHIN)
+                    .appendQueryParameter(PARAM_MIN_LATITUDE, String.valueOf(minLatitude))
+                    .appendQueryParameter(PARAM_MIN_LONGITUDE, String.valueOf(minLongitude))
+                    .appendQueryParameter(PARAM_MAX_LATITUDE, String.valueOf(maxLatitude))
+                    .appendQueryParameter(PARAM_MAX_LONGITUDE, String.valueOf(maxLongitude))
+                    .appendQueryParameter(PARAM_OPEN_ONLY, String.valueOf(openOnly))
+                    .build();
+        }
     }
-}
 
+    /**
+     * Locations Table Definition
+     * Inner class that defines constant values for the locations table.
+     * Each entry is one distinct stop location, shared by every stop made there.
+     * The provider adds locations as stops are written, it is read only to clients.
+     */
+    public static final class LocationEntry {
+
+        /**
+         * The content URI to access the locations in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_LOCATIONS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of locations.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+
+        /**
+         * Name of database table for locations
+         */
+        public final static String TABLE_NAME = TripSchema.LOCATIONS;
+
+        /**
+         * Unique ID number for the location. Named like the stops column referring to it,
+         * so the two tables join with USING and the stops' own _ID stays unambiguous.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOCATION_ID = TripSchema.LOCATION_ID;
+
+        /**
+         * The location text, unique.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_LOCATION = TripSchema.LOCATION;
+    }
+
+    /**
+     * Stop Telemetry Table Definition
+     * Inner class that defines constant values for the stop telemetry table.
+     * Each entry sums up the readings recorded for one stop through
+     * {@link TripsProvider#recordTelemetry}. Readings reach the table in batches, a few seconds
+     * after they are recorded. The provider writes the table, it is read only to clients.
+     */
+    public static final class TelemetryEntry {
+
+        /**
+         * The content URI to access the stop telemetry in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_TELEMETRY);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of stop telemetry.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TELEMETRY;
+
+        /**
+         * Name of database table for stop telemetry
+         */
+        public final static String TABLE_NAME = TripSchema.STOP_TELEMETRY;
+
+        /**
+         * The {@link StopEntry#_ID} the readings are for, one row per stop.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOP_ID = TripSchema.STOP_ID;
+
+        /**
+         * Number of readings.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_READINGS = TripSchema.READINGS;
+
+        /**
+         * Time of the earliest and the latest reading, milliseconds since 1970-01-01.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_FIRST_READING_TIME = TripSchema.FIRST_READING_TIME;
+        public final static String COLUMN_LAST_READING_TIME = TripSchema.LAST_READING_TIME;
+
+        /**
+         * Lowest and highest hub read, null if no reading had a hub.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MIN_HUB = TripSchema.MIN_HUB;
+        public final static String COLUMN_MAX_HUB = TripSchema.MAX_HUB;
+
+        /**
+         * Position of the latest reading with a fix, in decimal degrees, null without one.
+         * <p>
+         * Type: REAL
+         */
+        public final static String COLUMN_LATITUDE = TripSchema.LATITUDE;
+        public final static String COLUMN_LONGITUDE = TripSchema.LONGITUDE;
+    }
+
+    /**
+     * Hub Anomalies Table Definition
+     * {@link BaseColumns}
+     * Inner class that defines constant values for the hub anomalies table.
+     * Each entry is a break in hub (odometer) continuity between a trip or stop and the one before it.
+     * The provider keeps the table up to date as trips and stops are written, it is read only to clients.
+     */
+    public static final class AnomalyEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the hub anomalies in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_ANOMALIES);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of hub anomalies.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ANOMALIES;
+
+        /**
+         * Name of database table for hub anomalies
+         */
+        public final static String TABLE_NAME = TripSchema.ANOMALIES;
+
+        /**
+         * Unique ID number for the anomaly (only use in the database table).
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * What kind of break this is, one of the KIND_ values.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_KIND = TripSchema.KIND;
+
+        /**
+         * The _ID of the trip (for the KIND_TRIP_ kinds) or stop (for the KIND_STOP_ kinds) the break was found at.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ROW_ID = TripSchema.ROW_ID;
+
+        /**
+         * Trip Number the trip or stop belongs to.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_TRIP_NUMBER = TripSchema.TRIP_NUMBER;
+
+        /**
+         * The hub value continuity expects, for instance the hub_end of the prior trip.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_EXPECTED_HUB = TripSchema.EXPECTED_HUB;
+
+        /**
+         * The hub value found.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ACTUAL_HUB = TripSchema.ACTUAL_HUB;
+
+        /**
+         * hub_start is after the prior trip's hub_end, miles that no trip accounts for.
+         */
+        public final static int KIND_TRIP_GAP = 1;
+
+        /**
+         * hub_start is before the prior trip's hub_end, the trips overlap.
+         */
+        public final static int KIND_TRIP_OVERLAP = 2;
+
+        /**
+         * hub_end is before the trip's own hub_start.
+         */
+        public final static int KIND_TRIP_REVERSED = 3;
+
+        /**
+         * arrival_hub is lower than the previous stop's arrival_hub on the same trip.
+         */
+        public final static int KIND_STOP_REGRESSION = 4;
+    }
+}
@@ -1,36 +1,373 @@
 package com.crystaltowerdesigns.mytrippacks.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import com.crystaltowerdesigns.mytrippacks.StartupTrace;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.LocationEntry;
 import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
 import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+import com.crystaltowerdesigns.mytrippacks.storage.TripSchema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Database helper for inventory.
  * Handles database creation and version control.
+ * <p>
+ * Each driver profile has its own database file with the same schema, so one driver's trips
+ * are never read past to find another's. The helpers are opened on demand and pooled.
  */
 class TripsDbHelper extends SQLiteOpenHelper {
 
     /**
-     * Name of the database file
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = TripsDbHelper.class.getSimpleName();
+
+    /**
+     * Name of the database file of the default profile
      */
     private static final String DATABASE_NAME = "trips.db";
 
     /**
-     * Database version. Increment with each new version.
+     * Other profiles' files are named PROFILE_DATABASE_PREFIX + profile + DATABASE_SUFFIX
+     */
+    private static final String PROFILE_DATABASE_PREFIX = "trips_";
+    private static final String DATABASE_SUFFIX = ".db";
+
+    /**
+     * Most profile databases kept open at once. Opening one again costs a few milliseconds,
+     * keeping them all open costs memory and file handles for drivers who are not on the tablet.
+     */
+    private static final int MAX_OPEN_PROFILES = 3;
+
+    /**
+     * Most databases SQLite lets one connection attach (SQLITE_MAX_ATTACHED).
+     */
+    static final int MAX_ATTACHED = 10;
+
+    /**
+     * Trips of all the databases attached by {@link #openReport(Context, List)}, without the soft deleted ones.
+     */
+    static final String REPORT_TRIPS = "report_trips";
+
+    /**
+     * Column of {@link #REPORT_TRIPS}, the position of the row's profile in the list given to
+     * {@link #openReport(Context, List)}.
+     */
+    static final String REPORT_PROFILE_INDEX = "profile_index";
+
+    /**
+     * Database version. Increment {@link TripSchema#VERSION} with each new version.
+     */
+    private static final int DATABASE_VERSION = TripSchema.VERSION;
+
+    /**
+     * Selection for the assigned and open trips. Written out literally (no arguments)
+     * so SQLite can match it against the partial index.
+     */
+    static final String ACTIVE_STATES_SELECTION = TripSchema.ACTIVE_STATES_SELECTION;
+
+    /**
+     * Selections for the trips, and the stops of the trips, that are not soft deleted.
+     */
+    static final String LIVE_TRIPS_SELECTION = TripSchema.LIVE_TRIPS_SELECTION;
+    static final String LIVE_STOPS_SELECTION = TripSchema.LIVE_STOPS_SELECTION;
+
+    /**
+     * Name of the key/value table holding the database's own bookkeeping.
+     */
+    static final String METADATA_TABLE = TripSchema.METADATA;
+    static final String METADATA_KEY = TripSchema.METADATA_KEY;
+    static final String METADATA_VALUE = TripSchema.METADATA_VALUE;
+
+    /**
+     * The pooled helpers, least recently used first. The eldest leaves the pool once there are more than
+     * {@link #MAX_OPEN_PROFILES}, and is closed when its last user releases it: a transaction, a loader's
+     * cursor or background work may still be reading or writing it. Guards every helper's user count.
+     */
+    private static final Map<String, TripsDbHelper> sHelpers =
+            new LinkedHashMap<String, TripsDbHelper>(MAX_OPEN_PROFILES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TripsDbHelper> eldest) {
+                    if (size() <= MAX_OPEN_PROFILES)
+                        return false;
+                    TripsDbHelper helper = eldest.getValue();
+                    if (helper.mUsers == 0) {
+                        helper.closeUnpooled();
+                    } else {
+                        Log.d(LOG_TAG, "Closing the database of profile '" + eldest.getKey() + "' once released");
+                        sReleasing.put(eldest.getKey(), helper);
+                    }
+                    return true;
+                }
+            };
+
+    /**
+     * Helpers out of the pool that are still in use, by profile. Asked for again before their last user
+     * releases them, they go back in the pool rather than have the file opened a second time.
+     */
+    private static final Map<String, TripsDbHelper> sReleasing = new HashMap<>();
+
+    private final String mProfile;
+
+    /**
+     * Callers of {@link #acquire(Context, String)} that haven't released the helper yet.
+     */
+    private int mUsers;
+
+    /**
+     * Set once the helper has been closed, it can't be acquired any more.
+     */
+    private boolean mClosed;
+
+    /**
+     * Caches over this database's contents, they go when the helper does.
+     */
+    private final AggregateCache mAggregateCache = new AggregateCache();
+    private final LocationDictionary mLocations = new LocationDictionary();
+
+    /**
+     * Set while a hub continuity backfill of this database is waiting to run.
+     */
+    private final AtomicBoolean mContinuityBackfillQueued = new AtomicBoolean();
+
+    /**
+     * Set while a purge of this database's soft deleted trips is waiting to run.
+     */
+    private final AtomicBoolean mPurgeQueued = new AtomicBoolean();
+
+    /**
+     * In-memory columns of the trips table, built on first use.
      */
-    private static final int DATABASE_VERSION = 1;
+    private final LiveTripIndex mTripIndex = new LiveTripIndex(this);
 
     /**
      * Constructs a new instance of {@link TripsDbHelper}.
      *
      * @param context app context
+     * @param profile the driver profile the database belongs to
+     */
+    private TripsDbHelper(Context context, String profile) {
+        super(context, databaseName(profile), null, DATABASE_VERSION);
+        mProfile = profile;
+        // Readers (the list loader) don't wait behind writers
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * The process wide helper of a profile, opened on first use. Sharing one helper means the
+     * database is opened (and created or upgraded) only once, instead of for every caller.
+     * Each call is paired with a {@link #release()} once the caller is done with the database,
+     * including the cursors read from it; until then the helper stays open.
+     *
+     * @param context app context
+     * @param profile a valid profile name, see {@link TripsContract#isValidProfile(String)}
+     * @return The shared {@link TripsDbHelper} of the profile.
      */
-    public TripsDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    static TripsDbHelper acquire(Context context, String profile) {
+        if (!TripsContract.isValidProfile(profile))
+            throw new IllegalArgumentException("Invalid profile " + profile);
+        synchronized (sHelpers) {
+            TripsDbHelper helper = sHelpers.get(profile);
+            if (helper == null) {
+                helper = sReleasing.remove(profile);
+                if (helper == null)
+                    helper = new TripsDbHelper(context.getApplicationContext(), profile);
+                // Counted before it goes in, the eviction the put may cause then never picks it
+                helper.mUsers++;
+                sHelpers.put(profile, helper);
+            } else {
+                helper.mUsers++;
+            }
+            return helper;
+        }
+    }
+
+    /**
+     * Acquires this helper again, for work that kept hold of it, such as a queued background task.
+     *
+     * @return false if the helper has been closed meanwhile, then it is not acquired.
+     */
+    boolean reacquire() {
+        synchronized (sHelpers) {
+            if (mClosed)
+                return false;
+            mUsers++;
+            return true;
+        }
+    }
+
+    /**
+     * Ends a use begun with {@link #acquire(Context, String)} or {@link #reacquire()}. The helper is
+     * closed when it has left the pool and this was its last user.
+     */
+    void release() {
+        synchronized (sHelpers) {
+            if (mUsers == 0)
+                throw new IllegalStateException("Helper of profile '" + mProfile + "' released more often than acquired");
+            if (--mUsers == 0 && sReleasing.get(mProfile) == this) {
+                sReleasing.remove(mProfile);
+                closeUnpooled();
+            }
+        }
+    }
+
+    /**
+     * Closes a helper that has left the pool and has no users. Called holding the pool's lock.
+     */
+    private void closeUnpooled() {
+        Log.d(LOG_TAG, "Closing the database of profile '" + mProfile + "'");
+        mClosed = true;
+        close();
+    }
+
+    /**
+     * @return Name of the profile's database file.
+     */
+    private static String databaseName(String profile) {
+        return TripsContract.DEFAULT_PROFILE.equals(profile) ? DATABASE_NAME
+                : PROFILE_DATABASE_PREFIX + profile + DATABASE_SUFFIX;
+    }
+
+    /**
+     * Finds the profiles from the database files, without opening any of them.
+     *
+     * @return The default profile first, then the others by name.
+     */
+    static List<String> listProfiles(Context context) {
+        List<String> profiles = new ArrayList<>();
+        for (String name : context.databaseList()) {
+            if (!name.startsWith(PROFILE_DATABASE_PREFIX) || !name.endsWith(DATABASE_SUFFIX))
+                continue;
+            String profile = name.substring(PROFILE_DATABASE_PREFIX.length(), name.length() - DATABASE_SUFFIX.length());
+            if (!profile.isEmpty() && TripsContract.isValidProfile(profile))
+                profiles.add(profile);
+        }
+        Collections.sort(profiles, String.CASE_INSENSITIVE_ORDER);
+        profiles.add(0, TripsContract.DEFAULT_PROFILE);
+        return profiles;
+    }
+
+    /**
+     * Opens an in-memory database with the profiles' databases attached, for reports across drivers.
+     * Their trips are in the temporary view {@link #REPORT_TRIPS}, with {@link #REPORT_PROFILE_INDEX}
+     * telling them apart. The pooled helpers are not used, ATTACH would turn off their write ahead log.
+     * The caller closes the database.
+     *
+     * @param profiles At most {@link #MAX_ATTACHED} profiles, with existing databases.
+     */
+    static SQLiteDatabase openReport(Context context, List<String> profiles) {
+        if (profiles.size() > MAX_ATTACHED)
+            throw new IllegalArgumentException("At most " + MAX_ATTACHED + " profiles can be attached");
+        SQLiteDatabase report = attachProfiles(context, profiles);
+        try {
+            // A shard nobody has opened since the app was updated still has the old schema,
+            // opening it through its helper upgrades it
+            boolean upgraded = false;
+            for (int i = 0; i < profiles.size(); i++) {
+                if (DatabaseUtils.longForQuery(report, "PRAGMA shard" + i + ".user_version", null) != DATABASE_VERSION) {
+                    TripsDbHelper helper = acquire(context, profiles.get(i));
+                    try {
+                        helper.getWritableDatabase();
+                    } finally {
+                        helper.release();
+                    }
+                    upgraded = true;
+                }
+            }
+            if (upgraded) {
+                report.close();
+                report = attachProfiles(context, profiles);
+            }
+
+            StringBuilder view = new StringBuilder("CREATE TEMP VIEW " + REPORT_TRIPS + " AS ");
+            for (int i = 0; i < profiles.size(); i++) {
+                if (i > 0)
+                    view.append(" UNION ALL ");
+                view.append("SELECT ").append(i).append(" AS ").append(REPORT_PROFILE_INDEX)
+                        .append(", * FROM shard").append(i).append(".").append(TripEntry.TABLE_NAME)
+                        .append(" WHERE ").append(TripSchema.LIVE_TRIPS_SELECTION);
+            }
+            if (!profiles.isEmpty())
+                report.execSQL(view.toString());
+            return report;
+        } catch (RuntimeException e) {
+            report.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return An in-memory database with the profiles' databases attached as shard0, shard1...
+     */
+    private static SQLiteDatabase attachProfiles(Context context, List<String> profiles) {
+        SQLiteDatabase report = SQLiteDatabase.create(null);
+        try {
+            for (int i = 0; i < profiles.size(); i++) {
+                String path = context.getDatabasePath(databaseName(profiles.get(i))).getPath();
+                report.execSQL("ATTACH DATABASE ? AS shard" + i, new Object[]{path});
+            }
+            return report;
+        } catch (RuntimeException e) {
+            report.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The profile the database belongs to.
+     */
+    String getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * @return Aggregate results of this database, see {@link AggregateCache}.
+     */
+    AggregateCache getAggregateCache() {
+        return mAggregateCache;
+    }
+
+    /**
+     * @return Location ids of this database, for its stop write paths.
+     */
+    LocationDictionary getLocations() {
+        return mLocations;
+    }
+
+    /**
+     * @return Set while a hub continuity backfill of this database is waiting to run.
+     */
+    AtomicBoolean getContinuityBackfillQueued() {
+        return mContinuityBackfillQueued;
+    }
+
+    /**
+     * @return Set while a purge of this database's soft deleted trips is waiting to run.
+     */
+    AtomicBoolean getPurgeQueued() {
+        return mPurgeQueued;
+    }
+
+    LiveTripIndex getTripIndex() {
+        return mTripIndex;
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        StartupTrace.mark(StartupTrace.DB_OPEN);
     }
 
     /**
@@ -41,36 +378,267 @@ class TripsDbHelper extends SQLiteOpenHelper {
 
         // TODO: verify validation against any table changes
 
-        String SQL_CREATE_TRIPS_TABLE = "CREATE TABLE " + TripEntry.TABLE_NAME + " ("
-                + TripEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + TripEntry.COLUMN_TRIP_NUMBER + " TEXT NOT NULL, "
-                + TripEntry.COLUMN_FROM_TO + " TEXT NOT NULL, "
-                + TripEntry.COLUMN_RECEIVED_DATE + " TEXT NOT NULL, "
-                + TripEntry.COLUMN_SUBMITTED_DATE + " TEXT, "
-                + TripEntry.COLUMN_STATE + " INTEGER NOT NULL, "
-                + TripEntry.COLUMN_HUB_INITIAL + " INTEGER NOT NULL, "
-                + TripEntry.COLUMN_HUB_END + " INTEGER NOT NULL);";
         try {
-            db.execSQL(SQL_CREATE_TRIPS_TABLE);
+            db.execSQL(TripSchema.CREATE_TRIPS_TABLE);
         } catch (Exception e) {
             Log.v("SQL ERROR", e.toString());
         }
 
+        createLocationsTable(db);
+        createStopsTable(db);
+        addStopCoordinates(db);
+
+        createDateIndexes(db);
+        createStateIndexes(db);
+        createUniqueKeys(db);
+        createContinuityTables(db);
+        createStopLocationIndex(db);
+        createTelemetryTable(db);
+        addTripDeletedAt(db);
+    }
+
+    /**
+     * Stops table, refers to its location by id since version 7.
+     */
+    private static void createStopsTable(SQLiteDatabase db) {
+
         // TODO: verify validation against any table changes
 
-        String SQL_CREATE_STOPS_TABLE = "CREATE TABLE " + StopEntry.TABLE_NAME + " ("
-                + StopEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + StopEntry.COLUMN_TRIP_NUMBER + " TEXT NOT NULL, "
-                + StopEntry.COLUMN_LOCATION + " TEXT NOT NULL, "
-                + StopEntry.COLUMN_HUB + " INTEGER NOT NULL, "
-                + StopEntry.COLUMN_SORT_INDEX + " INTEGER NOT NULL, "
-                + StopEntry.COLUMN_DATE_COMPLETED + " TEXT NOT NULL);";
         try {
-            db.execSQL(SQL_CREATE_STOPS_TABLE);
+            db.execSQL(TripSchema.CREATE_STOPS_TABLE);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Dictionary of the distinct stop locations, and the index finding the stops made at one.
+     */
+    private static void createLocationsTable(SQLiteDatabase db) {
+        try {
+            db.execSQL(TripSchema.CREATE_LOCATIONS_TABLE);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Index for the stops made at a location.
+     */
+    private static void createStopLocationIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL(TripSchema.CREATE_STOP_LOCATION_INDEX);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Optional stop coordinates, and the index on their grid cell for the nearest and box queries.
+     */
+    private static void addStopCoordinates(SQLiteDatabase db) {
+        for (String statement : TripSchema.ADD_STOP_COORDINATES)
+            db.execSQL(statement);
+        try {
+            db.execSQL(TripSchema.CREATE_GEO_CELL_INDEX);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Indexes on the epoch-day columns so date range queries don't scan the tables.
+     */
+    private static void createDateIndexes(SQLiteDatabase db) {
+        try {
+            for (String statement : TripSchema.CREATE_DATE_INDEXES)
+                db.execSQL(statement);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Indexes for the state filtered trip lists.
+     * The partial index keeps the active trips small and fast no matter how much closed history exists.
+     */
+    private static void createStateIndexes(SQLiteDatabase db) {
+        try {
+            db.execSQL(TripSchema.CREATE_STATE_INDEX);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+        // Partial indexes need SQLite 3.8 (API 21), older devices fall back on the composite index
+        try {
+            db.execSQL(TripSchema.CREATE_ACTIVE_INDEX);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Index serving the ordered stop list of a trip, and the neighbour lookups when a stop is moved.
+     */
+    private static void createStopOrderIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL(TripSchema.CREATE_STOP_ORDER_INDEX);
         } catch (Exception e) {
             Log.v("SQL ERROR", e.toString());
         }
+    }
 
+    /**
+     * Unique keys for re-syncing packs: one trip per trip_number, one stop per (trip_number, stop_index).
+     * The unique stop index also serves the ordered stop list in place of the version 4 index.
+     */
+    private static void createUniqueKeys(SQLiteDatabase db) {
+        try {
+            for (String statement : TripSchema.CREATE_UNIQUE_KEYS)
+                db.execSQL(statement);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Tables for the hub continuity checker and the index it finds neighbouring trips with.
+     */
+    private static void createContinuityTables(SQLiteDatabase db) {
+        try {
+            db.execSQL(TripSchema.CREATE_ANOMALIES_TABLE);
+            db.execSQL(TripSchema.CREATE_METADATA_TABLE);
+            db.execSQL(TripSchema.CREATE_HUB_START_INDEX);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Per stop summaries of the telemetry readings, deleted with their stop.
+     */
+    private static void createTelemetryTable(SQLiteDatabase db) {
+        try {
+            db.execSQL(TripSchema.CREATE_STOP_TELEMETRY_TABLE);
+            db.execSQL(TripSchema.CREATE_STOP_TELEMETRY_TRIGGER);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Soft delete time of the trips, and the index finding the soft deleted ones.
+     */
+    private static void addTripDeletedAt(SQLiteDatabase db) {
+        db.execSQL(TripSchema.ADD_TRIP_DELETED_AT);
+        try {
+            db.execSQL(TripSchema.CREATE_DELETED_AT_INDEX);
+        } catch (Exception e) {
+            Log.v("SQL ERROR", e.toString());
+        }
+    }
+
+    /**
+     * Version 2 adds the epoch-day date columns, filled in from the existing yyyy-MM-dd text.
+     */
+    private static void upgradeToVersion2(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TripEntry.TABLE_NAME + " ADD COLUMN " + TripEntry.COLUMN_RECEIVED_DAY + " INTEGER");
+        db.execSQL("ALTER TABLE " + TripEntry.TABLE_NAME + " ADD COLUMN " + TripEntry.COLUMN_SUBMITTED_DAY + " INTEGER");
+        db.execSQL("ALTER TABLE " + StopEntry.TABLE_NAME + " ADD COLUMN " + StopEntry.COLUMN_COMPLETED_DAY + " INTEGER");
+        db.execSQL("UPDATE " + TripEntry.TABLE_NAME + " SET "
+                + TripEntry.COLUMN_RECEIVED_DAY + " = " + epochDayOf(TripEntry.COLUMN_RECEIVED_DATE) + ", "
+                + TripEntry.COLUMN_SUBMITTED_DAY + " = " + epochDayOf(TripEntry.COLUMN_SUBMITTED_DATE));
+        db.execSQL("UPDATE " + StopEntry.TABLE_NAME + " SET "
+                + StopEntry.COLUMN_COMPLETED_DAY + " = " + epochDayOf(StopEntry.COLUMN_DATE_COMPLETED));
+        createDateIndexes(db);
+    }
+
+    /**
+     * Version 3 adds the state indexes.
+     */
+    private static void upgradeToVersion3(SQLiteDatabase db) {
+        createStateIndexes(db);
+    }
+
+    /**
+     * Version 4 spaces out the stop order (1, 2, 3... becomes 1024, 2048, 3072...) and indexes it.
+     */
+    private static void upgradeToVersion4(SQLiteDatabase db) {
+        db.execSQL("UPDATE " + StopEntry.TABLE_NAME + " SET " + StopEntry.COLUMN_SORT_INDEX + " = "
+                + StopEntry.COLUMN_SORT_INDEX + " * " + StopEntry.RANK_GAP);
+        createStopOrderIndex(db);
+    }
+
+    /**
+     * Version 5 adds the hub continuity tables. The provider backfills them in the background.
+     */
+    private static void upgradeToVersion5(SQLiteDatabase db) {
+        createContinuityTables(db);
+    }
+
+    /**
+     * Version 6 makes trip_number, and trip_number with stop_index, unique.
+     * Duplicates left by earlier re-syncs are removed first, keeping the latest copy.
+     */
+    private static void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TripEntry.TABLE_NAME + " WHERE " + TripEntry._ID + " NOT IN (SELECT MAX("
+                + TripEntry._ID + ") FROM " + TripEntry.TABLE_NAME + " GROUP BY " + TripEntry.COLUMN_TRIP_NUMBER + ")");
+        db.execSQL("DELETE FROM " + StopEntry.TABLE_NAME + " WHERE " + StopEntry._ID + " NOT IN (SELECT MAX("
+                + StopEntry._ID + ") FROM " + StopEntry.TABLE_NAME + " GROUP BY " + StopEntry.COLUMN_TRIP_NUMBER + ", "
+                + StopEntry.COLUMN_SORT_INDEX + ")");
+        db.execSQL("DROP INDEX IF EXISTS stops_trip_number_stop_index_idx");
+        createUniqueKeys(db);
+        // Rows may have gone, have the provider rebuild the hub anomalies
+        db.delete(METADATA_TABLE, METADATA_KEY + "=?", new String[]{HubContinuity.BACKFILLED_KEY});
+    }
+
+    /**
+     * Version 7 moves the stop location text into the locations table. SQLite can't change a column
+     * in place, so the stops table is rebuilt with location_id (keeping every _id) and re-indexed.
+     */
+    private static void upgradeToVersion7(SQLiteDatabase db) {
+        createLocationsTable(db);
+        db.execSQL("INSERT OR IGNORE INTO " + LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_LOCATION + ") SELECT "
+                + StopEntry.COLUMN_LOCATION + " FROM " + StopEntry.TABLE_NAME + " ORDER BY " + StopEntry._ID);
+        db.execSQL("ALTER TABLE " + StopEntry.TABLE_NAME + " RENAME TO stops_v6");
+        createStopsTable(db);
+        String columns = StopEntry._ID + ", " + StopEntry.COLUMN_TRIP_NUMBER + ", " + StopEntry.COLUMN_HUB + ", "
+                + StopEntry.COLUMN_SORT_INDEX + ", " + StopEntry.COLUMN_DATE_COMPLETED + ", " + StopEntry.COLUMN_COMPLETED_DAY;
+        db.execSQL("INSERT INTO " + StopEntry.TABLE_NAME + " (" + columns + ", " + StopEntry.COLUMN_LOCATION_ID + ") SELECT "
+                + columns + ", " + StopEntry.COLUMN_LOCATION_ID + " FROM stops_v6 JOIN " + LocationEntry.TABLE_NAME
+                + " USING (" + StopEntry.COLUMN_LOCATION + ")");
+        // Dropping the old table also drops its indexes, which frees their names for the new ones
+        db.execSQL("DROP TABLE stops_v6");
+        createDateIndexes(db);
+        createUniqueKeys(db);
+        createStopLocationIndex(db);
+    }
+
+    /**
+     * Version 8 adds the optional stop coordinates.
+     */
+    private static void upgradeToVersion8(SQLiteDatabase db) {
+        addStopCoordinates(db);
+    }
+
+    /**
+     * Version 9 adds the stop telemetry summaries.
+     */
+    private static void upgradeToVersion9(SQLiteDatabase db) {
+        createTelemetryTable(db);
+    }
+
+    /**
+     * Version 10 adds soft delete.
+     */
+    private static void upgradeToVersion10(SQLiteDatabase db) {
+        addTripDeletedAt(db);
+    }
+
+    /**
+     * @return SQL expression converting a yyyy-MM-dd text column into days since 1970-01-01.
+     */
+    private static String epochDayOf(String dateColumn) {
+        return "CAST(julianday(" + dateColumn + ") - 2440587.5 AS INTEGER)";
     }
 
     /**
@@ -78,11 +646,24 @@ class TripsDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Upgrade version by wiping the database tables
-        if (newVersion != oldVersion) {
-            db.execSQL("DROP TABLE IF EXISTS " + TripEntry.TABLE_NAME);
-            db.execSQL("DROP TABLE IF EXISTS " + StopEntry.TABLE_NAME);
-            onCreate(db);
-        }
+        // Upgrade one version at a time so existing trips survive
+        if (oldVersion < 2)
+            upgradeToVersion2(db);
+        if (oldVersion < 3)
+            upgradeToVersion3(db);
+        if (oldVersion < 4)
+            upgradeToVersion4(db);
+        if (oldVersion < 5)
+            upgradeToVersion5(db);
+        if (oldVersion < 6)
+            upgradeToVersion6(db);
+        if (oldVersion < 7)
+            upgradeToVersion7(db);
+        if (oldVersion < 8)
+            upgradeToVersion8(db);
+        if (oldVersion < 9)
+            upgradeToVersion9(db);
+        if (oldVersion < 10)
+            upgradeToVersion10(db);
     }
 }
\ No newline at end of file
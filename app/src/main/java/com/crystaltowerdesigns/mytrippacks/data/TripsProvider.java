@@ -16,25 +16,51 @@
 package com.crystaltowerdesigns.mytrippacks.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.crystaltowerdesigns.mytrippacks.StartupTrace;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.AnomalyEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.LocationEntry;
 import com.crystaltowerdesigns.mytrippacks.data.TripsContract.StopEntry;
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TelemetryEntry;
 import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
+import com.crystaltowerdesigns.mytrippacks.storage.TelemetryLog;
+import com.crystaltowerdesigns.mytrippacks.storage.TripIndex;
+import com.crystaltowerdesigns.mytrippacks.storage.TripSchema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry.*;
 import static com.crystaltowerdesigns.mytrippacks.data.Validation.IS_DATE;
-import static com.crystaltowerdesigns.mytrippacks.data.Validation.IS_POSITIVE;
-import static com.crystaltowerdesigns.mytrippacks.data.Validation.NOT_EMPTY;
 import static com.crystaltowerdesigns.mytrippacks.data.Validation.NOT_NULL;
-import static com.crystaltowerdesigns.mytrippacks.data.Validation.isOneOf;
 import static com.crystaltowerdesigns.mytrippacks.data.Validation.isValid;
 
 /**
@@ -54,6 +80,14 @@ public class TripsProvider extends ContentProvider {
     private static final int ITEM_ID = 101;
     private static final int STOPS = 102;
     private static final int STOP_ID = 103;
+    private static final int ITEMS_BY_STATE = 104;
+    private static final int ACTIVE_ITEMS = 105;
+    private static final int ANOMALIES = 106;
+    private static final int LOCATIONS = 107;
+    private static final int STOPS_NEAREST = 108;
+    private static final int STOPS_WITHIN = 109;
+    private static final int ITEM_STOPS = 110;
+    private static final int TELEMETRY = 111;
 
 
     /**
@@ -67,14 +101,85 @@ public class TripsProvider extends ContentProvider {
     static {
         sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_TRIPS, ITEMS);
         sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_TRIPS + "/#", ITEM_ID);
+        sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_TRIPS + "/#/" + TripsContract.PATH_TRIP_STOPS, ITEM_STOPS);
+        sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_TRIPS + "/" + TripsContract.PATH_STATE + "/#", ITEMS_BY_STATE);
+        sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_TRIPS + "/" + TripsContract.PATH_ACTIVE, ACTIVE_ITEMS);
         sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_STOPS, STOPS);
         sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_STOPS + "/#", STOP_ID);
+        sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_STOPS + "/" + TripsContract.PATH_NEAREST, STOPS_NEAREST);
+        sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_STOPS + "/" + TripsContract.PATH_WITHIN, STOPS_WITHIN);
+        sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_ANOMALIES, ANOMALIES);
+        sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_LOCATIONS, LOCATIONS);
+        sUriMatcher.addURI(TripsContract.CONTENT_AUTHORITY, TripsContract.PATH_TELEMETRY, TELEMETRY);
+    }
+
+    /**
+     * The stops with their location text joined back in. The join column has the same name in both
+     * tables, so the stops' columns (_id included) can be used in a selection unqualified.
+     */
+    private static final String STOPS_WITH_LOCATIONS = StopEntry.TABLE_NAME + " JOIN " + LocationEntry.TABLE_NAME
+            + " USING (" + StopEntry.COLUMN_LOCATION_ID + ")";
+
+    /**
+     * Stop columns returned by {@link TripsContract#METHOD_READ_TRIPS}: the location as text, as an upsert takes it.
+     */
+    private static final String[] READ_TRIPS_STOP_COLUMNS = {StopEntry._ID, StopEntry.COLUMN_TRIP_NUMBER,
+            StopEntry.COLUMN_LOCATION, StopEntry.COLUMN_HUB, StopEntry.COLUMN_SORT_INDEX, StopEntry.COLUMN_DATE_COMPLETED,
+            StopEntry.COLUMN_COMPLETED_DAY, StopEntry.COLUMN_LATITUDE, StopEntry.COLUMN_LONGITUDE};
+
+    /**
+     * A trip with its stops and their locations. Both joins are index lookups, and the stops
+     * come out of the (trip_number, stop_index) key already in order.
+     */
+    private static final String TRIP_WITH_STOPS = TripEntry.TABLE_NAME
+            + " LEFT JOIN " + StopEntry.TABLE_NAME + " ON " + StopEntry.TABLE_NAME + "." + StopEntry.COLUMN_TRIP_NUMBER
+            + " = " + TripEntry.TABLE_NAME + "." + TripEntry.COLUMN_TRIP_NUMBER
+            + " LEFT JOIN " + LocationEntry.TABLE_NAME + " ON " + LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_ID
+            + " = " + StopEntry.TABLE_NAME + "." + StopEntry.COLUMN_LOCATION_ID;
+
+    /**
+     * Result columns of {@link #TRIP_WITH_STOPS}, qualified where trips and stops share a column name.
+     */
+    private static final Map<String, String> sTripWithStopsColumns = new HashMap<>();
+
+    static {
+        String[] tripColumns = {TripEntry._ID, TripEntry.COLUMN_TRIP_NUMBER, TripEntry.COLUMN_FROM_TO,
+                TripEntry.COLUMN_HUB_INITIAL, TripEntry.COLUMN_HUB_END, TripEntry.COLUMN_STATE,
+                TripEntry.COLUMN_RECEIVED_DATE, TripEntry.COLUMN_RECEIVED_DAY,
+                TripEntry.COLUMN_SUBMITTED_DATE, TripEntry.COLUMN_SUBMITTED_DAY};
+        for (String column : tripColumns)
+            sTripWithStopsColumns.put(column, TripEntry.TABLE_NAME + "." + column + " AS " + column);
+        sTripWithStopsColumns.put(StopEntry.COLUMN_STOP_ID, StopEntry.TABLE_NAME + "." + StopEntry._ID + " AS " + StopEntry.COLUMN_STOP_ID);
+        String[] stopColumns = {StopEntry.COLUMN_LOCATION_ID, StopEntry.COLUMN_HUB, StopEntry.COLUMN_SORT_INDEX,
+                StopEntry.COLUMN_DATE_COMPLETED, StopEntry.COLUMN_COMPLETED_DAY,
+                StopEntry.COLUMN_LATITUDE, StopEntry.COLUMN_LONGITUDE};
+        for (String column : stopColumns)
+            sTripWithStopsColumns.put(column, StopEntry.TABLE_NAME + "." + column + " AS " + column);
+        sTripWithStopsColumns.put(StopEntry.COLUMN_LOCATION, LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION
+                + " AS " + StopEntry.COLUMN_LOCATION);
     }
 
     /**
-     * Database helper object
+     * Default and largest number of stops returned by a nearest query.
      */
-    private TripsDbHelper mDbHelper;
+    private static final int DEFAULT_NEAREST_LIMIT = 10;
+    private static final int MAX_NEAREST_LIMIT = 500;
+
+    /**
+     * Widest square, in rings of {@link GeoGrid} cells, a nearest query searches by cell.
+     * Past this the stops with coordinates are scanned instead.
+     */
+    private static final int MAX_NEAREST_RINGS = 64;
+
+    /**
+     * Soft deleted trips purged per transaction, so writers get the database between batches.
+     */
+    private static final int PURGE_BATCH = 200;
+
+    /**
+     * Serial executor for the provider's background work.
+     */
+    private static final ScheduledExecutorService BACKGROUND = Executors.newSingleThreadScheduledExecutor();
 
     /**
      * @param context     Necessary context
@@ -84,19 +189,20 @@ public class TripsProvider extends ContentProvider {
      * @return String value containing the result
      */
     public static String getMaximum(Context context, String TABLE_NAME, String column_name) {
-        TripsDbHelper mDbHelper2;
-        mDbHelper2 = new TripsDbHelper(context);
-        SQLiteDatabase database = mDbHelper2.getReadableDatabase();
-        Cursor cursor = database.query(TABLE_NAME, new String[]{"MAX(CAST(" + column_name + " AS FLOAT)) AS MAX"}, null, null, null, null, null);
-        String data = null;
-        if (cursor != null) {
-            cursor.moveToFirst();
-            int index = cursor.getColumnIndex("MAX");
-            data = cursor.getString(index);
-            cursor.close();
-        }
-        database.close();
-        return data;
+        return getMaximum(context, TripsContract.DEFAULT_PROFILE, TABLE_NAME, column_name);
+    }
+
+    /**
+     * @param context     Necessary context
+     * @param profile     The driver profile whose database is read
+     * @param TABLE_NAME  The table to retrieve the maximum value from
+     * @param column_name The column name for which you wish the maximum value returned
+     *
+     * @return String value containing the result
+     */
+    public static String getMaximum(Context context, String profile, String TABLE_NAME, String column_name) {
+        return queryAggregate(context, profile, TABLE_NAME, column_name, "MAX",
+                "MAX(CAST(" + column_name + " AS FLOAT))");
     }
 
     /**
@@ -106,33 +212,202 @@ public class TripsProvider extends ContentProvider {
      *
      * @return String value containing the result
      */
-    public static String getMinimum(Context context, String TABLE_NAME, String column_name) {// use the data type of the column
-        TripsDbHelper mDbHelper2;
-        mDbHelper2 = new TripsDbHelper(context);
-        SQLiteDatabase database = mDbHelper2.getReadableDatabase();
-        Cursor cursor = database.query(TABLE_NAME, new String[]{"MIN(" + column_name + ") AS MIN"}, null, null, null, null, null);
-        String data = null;
-        if (cursor != null) {
-            cursor.moveToFirst();
-            int index = cursor.getColumnIndex("MIN");
-            data = cursor.getString(index);
-            cursor.close();
+    public static String getMinimum(Context context, String TABLE_NAME, String column_name) {
+        return getMinimum(context, TripsContract.DEFAULT_PROFILE, TABLE_NAME, column_name);
+    }
+
+    /**
+     * @param context     Necessary context
+     * @param profile     The driver profile whose database is read
+     * @param TABLE_NAME  The table to retrieve the minimum value from
+     * @param column_name The column name for which you wish the minimum value returned
+     *
+     * @return String value containing the result
+     */
+    public static String getMinimum(Context context, String profile, String TABLE_NAME, String column_name) {// use the data type of the column
+        return queryAggregate(context, profile, TABLE_NAME, column_name, "MIN",
+                "MIN(" + column_name + ")");
+    }
+
+    /**
+     * @param context    Necessary context
+     * @param TABLE_NAME The table to count the rows of
+     *
+     * @return The number of rows in the table
+     */
+    public static long getCount(Context context, String TABLE_NAME) {
+        return getCount(context, TripsContract.DEFAULT_PROFILE, TABLE_NAME);
+    }
+
+    /**
+     * @param context    Necessary context
+     * @param profile    The driver profile whose database is read
+     * @param TABLE_NAME The table to count the rows of
+     *
+     * @return The number of rows in the table
+     */
+    public static long getCount(Context context, String profile, String TABLE_NAME) {
+        return Long.parseLong(queryAggregate(context, profile, TABLE_NAME, "*", "COUNT", "COUNT(*)"));
+    }
+
+    /**
+     * @return The aggregate cache of the profile's database, behind {@link #getMaximum}, {@link #getMinimum},
+     * {@link #getCount} and the per state trip counts, for its hit and miss statistics.
+     */
+    public static AggregateCache getAggregateCache(Context context, String profile) {
+        TripsDbHelper helper = TripsDbHelper.acquire(context, profile);
+        try {
+            return helper.getAggregateCache();
+        } finally {
+            helper.release();
+        }
+    }
+
+    /**
+     * Records a hub and position reading on the way to a stop, for instance every few seconds while
+     * driving. The reading goes into a log file, not the database; a background flusher sums the readings
+     * up per stop into {@link TelemetryEntry} every 30 seconds. The first call opens the log file.
+     *
+     * @param stopId    _ID of the stop the driver is heading to or at.
+     * @param time      Milliseconds since 1970-01-01.
+     * @param hub       Hub (odometer) value, or {@link TelemetryLog#NO_HUB}.
+     * @param latitude  Decimal degrees, NaN without a position fix.
+     * @param longitude Decimal degrees, NaN without a position fix.
+     * @return false if the reading was dropped, the log being full or unusable.
+     */
+    public static boolean recordTelemetry(Context context, String profile, long stopId, long time, long hub,
+                                          double latitude, double longitude) {
+        return TelemetryRecorder.getInstance(context, profile).record(stopId, time, hub, latitude, longitude);
+    }
+
+    /**
+     * Runs a single value aggregate query, or answers it from the database's {@link AggregateCache}
+     * if the table hasn't been written since it last ran. Soft deleted trips and their stops are left
+     * out, except from MAX: their trip numbers stay taken until purged, and MAX is used to pick the next.
+     */
+    private static String queryAggregate(Context context, String profile, String table, String column, String function,
+                                         String expression) {
+        TripsDbHelper helper = TripsDbHelper.acquire(context, profile);
+        try {
+            AggregateCache aggregateCache = helper.getAggregateCache();
+            Object cached = aggregateCache.get(table, column, function);
+            if (cached != AggregateCache.MISS)
+                return (String) cached;
+
+            long generation = aggregateCache.generation(table);
+            SQLiteDatabase database = helper.getReadableDatabase();
+            String selection = null;
+            if (!"MAX".equals(function)) {
+                if (TripEntry.TABLE_NAME.equals(table))
+                    selection = TripsDbHelper.LIVE_TRIPS_SELECTION;
+                else if (StopEntry.TABLE_NAME.equals(table))
+                    selection = TripsDbHelper.LIVE_STOPS_SELECTION;
+            }
+            Cursor cursor = database.query(table, new String[]{expression + " AS " + function}, selection, null, null, null, null);
+            String data = null;
+            if (cursor != null) {
+                cursor.moveToFirst();
+                int index = cursor.getColumnIndex(function);
+                data = cursor.getString(index);
+                cursor.close();
+            }
+            aggregateCache.put(table, column, function, generation, data);
+            return data;
+        } finally {
+            helper.release();
         }
-        database.close();
-        return data;
     }
 
     @Override
     public boolean onCreate() {
-        mDbHelper = new TripsDbHelper(getContext());
+        StartupTrace.mark(StartupTrace.PROCESS_START);
+        // Opening the database (and any create or upgrade) is left to a background thread,
+        // so it is ready, or well on its way, when the first query arrives
+        BACKGROUND.execute(new Runnable() {
+            @Override
+            public void run() {
+                //noinspection ConstantConditions
+                TripsDbHelper helper = TripsDbHelper.acquire(getContext(), DriverProfiles.getActive(getContext()));
+                try {
+                    prewarm(helper);
+                } finally {
+                    helper.release();
+                }
+            }
+        });
         return true;
     }
 
-    @SuppressWarnings("ConstantConditions")
+    /**
+     * @return The helper of the profile named in the URI, see {@link TripsContract#PARAM_PROFILE},
+     * acquired: the caller releases it.
+     */
+    private TripsDbHelper helperFor(Uri uri) {
+        //noinspection ConstantConditions
+        return TripsDbHelper.acquire(getContext(), profileOf(uri));
+    }
+
+    /**
+     * @return The profile named in the URI, or {@link TripsContract#DEFAULT_PROFILE}.
+     */
+    private static String profileOf(Uri uri) {
+        String profile = uri.getQueryParameter(TripsContract.PARAM_PROFILE);
+        return profile != null ? profile : TripsContract.DEFAULT_PROFILE;
+    }
+
+    /**
+     * @return The helper of the profile named in a call's extras, see {@link TripsContract#EXTRA_PROFILE},
+     * acquired: the caller releases it.
+     */
+    private TripsDbHelper helperFor(Bundle extras) {
+        String profile = extras != null ? extras.getString(TripsContract.EXTRA_PROFILE) : null;
+        //noinspection ConstantConditions
+        return TripsDbHelper.acquire(getContext(), profile != null ? profile : TripsContract.DEFAULT_PROFILE);
+    }
+
+    /**
+     * Opens the active driver's database and pulls the trips table pages and schema into the cache.
+     */
+    private void prewarm(TripsDbHelper helper) {
+        try {
+            SQLiteDatabase database = helper.getWritableDatabase();
+            DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM " + TripEntry.TABLE_NAME, null);
+        } catch (Exception e) {
+            // The first real query will open the database, and report the problem, instead
+            Log.e(LOG_TAG, "Unable to pre-warm the database", e);
+            return;
+        }
+        // One time scan of the data written before the continuity checker existed
+        if (!HubContinuity.isBackfilled(helper.getWritableDatabase()))
+            scheduleContinuityBackfill(helper);
+        // Trips soft deleted before the app last stopped
+        schedulePurge(helper, 0);
+    }
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        // The cursor reads from the database until it is closed, so it holds the helper until then
+        TripsDbHelper helper = helperFor(uri);
+        Cursor cursor;
+        try {
+            cursor = query(helper, uri, projection, selection, selectionArgs, sortOrder);
+        } catch (RuntimeException e) {
+            helper.release();
+            throw e;
+        }
+        if (cursor == null) {
+            helper.release();
+            return null;
+        }
+        return new HelperCursor(cursor, helper);
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private Cursor query(TripsDbHelper helper, Uri uri, String[] projection, String selection, String[] selectionArgs,
+                         String sortOrder) {
+        // Get the readable database of the URI's profile
+        SQLiteDatabase database = helper.getReadableDatabase();
+        StartupTrace.mark(StartupTrace.FIRST_QUERY);
 
         // This cursor will hold the result of the query
         Cursor cursor;
@@ -143,20 +418,95 @@ public class TripsProvider extends ContentProvider {
         // Query the appropriate table with the given parameters
         switch (match) {
             case ITEMS:
-                cursor = database.query(TripEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                selection = appendDateRange(uri, TripEntry.COLUMN_RECEIVED_DAY, selection);
+                selectionArgs = appendDateRangeArgs(uri, selectionArgs);
+                // Every live trip, the index holds just those
+                boolean allTrips = selection == null;
+                selection = DatabaseUtils.concatenateWhere(selection, TripsDbHelper.LIVE_TRIPS_SELECTION);
+                cursor = allTrips ? queryInIndexOrder(helper, projection, selection, selectionArgs, sortOrder, null) : null;
+                if (cursor == null)
+                    cursor = database.query(TripEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
                 break;
             case ITEM_ID:
-                selection = TripEntry._ID + "=?";
+                selection = TripEntry._ID + "=? AND " + TripsDbHelper.LIVE_TRIPS_SELECTION;
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 cursor = database.query(TripEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
                 break;
+            case ITEM_STOPS:
+                SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+                builder.setTables(TRIP_WITH_STOPS);
+                builder.setProjectionMap(sTripWithStopsColumns);
+                builder.appendWhere(TripEntry.TABLE_NAME + "." + TripEntry._ID + "=" + Long.parseLong(uri.getPathSegments().get(1))
+                        + " AND " + TripEntry.TABLE_NAME + "." + TripsDbHelper.LIVE_TRIPS_SELECTION);
+                cursor = builder.query(database, projection, selection, selectionArgs, null, null, sortOrder != null ? sortOrder
+                        : StopEntry.TABLE_NAME + "." + StopEntry.COLUMN_SORT_INDEX + ", " + StopEntry.TABLE_NAME + "." + StopEntry._ID);
+                // Trip changes notify the trip URI, which covers this one, stop changes don't
+                break;
+            case ITEMS_BY_STATE:
+                TripIndex.Filter stateFilter = selection == null
+                        ? new TripIndex.Filter().states((int) ContentUris.parseId(uri)) : null;
+                selection = DatabaseUtils.concatenateWhere(selection, TripEntry.COLUMN_STATE + "=? AND "
+                        + TripsDbHelper.LIVE_TRIPS_SELECTION);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{String.valueOf(ContentUris.parseId(uri))});
+                cursor = stateFilter != null ? queryInIndexOrder(helper, projection, selection, selectionArgs, sortOrder, stateFilter) : null;
+                if (cursor == null)
+                    cursor = database.query(TripEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = new StateCountsCursor(cursor, queryStateCounts(helper));
+                // Any trip change can move rows in or out of this list
+                cursor.setNotificationUri(getContext().getContentResolver(), TripEntry.CONTENT_URI);
+                return cursor;
+            case ACTIVE_ITEMS:
+                TripIndex.Filter activeFilter = selection == null
+                        ? new TripIndex.Filter().states(STATE_ASSIGNED, STATE_OPEN) : null;
+                selection = DatabaseUtils.concatenateWhere(selection, TripsDbHelper.ACTIVE_STATES_SELECTION + " AND "
+                        + TripsDbHelper.LIVE_TRIPS_SELECTION);
+                cursor = activeFilter != null ? queryInIndexOrder(helper, projection, selection, selectionArgs, sortOrder, activeFilter) : null;
+                if (cursor == null)
+                    cursor = database.query(TripEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = new StateCountsCursor(cursor, queryStateCounts(helper));
+                cursor.setNotificationUri(getContext().getContentResolver(), TripEntry.CONTENT_URI);
+                return cursor;
             case STOPS:
-                cursor = database.query(StopEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                selection = appendDateRange(uri, StopEntry.COLUMN_COMPLETED_DAY, selection);
+                selectionArgs = appendDateRangeArgs(uri, selectionArgs);
+                selection = DatabaseUtils.concatenateWhere(selection, TripsDbHelper.LIVE_STOPS_SELECTION);
+                cursor = database.query(STOPS_WITH_LOCATIONS, projection, selection, selectionArgs, null, null, sortOrder);
                 break;
             case STOP_ID:
-                selection = StopEntry._ID + "=?";
+                selection = StopEntry._ID + "=? AND " + TripsDbHelper.LIVE_STOPS_SELECTION;
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                cursor = database.query(StopEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = database.query(STOPS_WITH_LOCATIONS, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case ANOMALIES:
+                cursor = database.query(AnomalyEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case STOPS_NEAREST:
+                cursor = queryNearestStops(database, uri, projection, appendOpenOnly(uri, selection), selectionArgs, sortOrder);
+                break;
+            case STOPS_WITHIN:
+                double minLatitude = getCoordinate(uri, TripsContract.PARAM_MIN_LATITUDE);
+                double minLongitude = getCoordinate(uri, TripsContract.PARAM_MIN_LONGITUDE);
+                double maxLatitude = getCoordinate(uri, TripsContract.PARAM_MAX_LATITUDE);
+                double maxLongitude = getCoordinate(uri, TripsContract.PARAM_MAX_LONGITUDE);
+                if (!GeoGrid.isValid(minLatitude, minLongitude) || !GeoGrid.isValid(maxLatitude, maxLongitude)
+                        || minLatitude > maxLatitude || minLongitude > maxLongitude)
+                    throw new IllegalArgumentException("Invalid box in " + uri);
+                // The cells find the candidates through the index, the coordinates trim them to the box
+                selection = DatabaseUtils.concatenateWhere(appendOpenOnly(uri, selection), TripsDbHelper.LIVE_STOPS_SELECTION
+                        + " AND " + cellSelection(GeoGrid.boxRanges(minLatitude, minLongitude, maxLatitude, maxLongitude))
+                                + " AND " + StopEntry.COLUMN_LATITUDE + " BETWEEN ? AND ? AND "
+                                + StopEntry.COLUMN_LONGITUDE + " BETWEEN ? AND ?");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{String.valueOf(minLatitude),
+                        String.valueOf(maxLatitude), String.valueOf(minLongitude), String.valueOf(maxLongitude)});
+                cursor = database.query(STOPS_WITH_LOCATIONS, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case LOCATIONS:
+                cursor = database.query(LocationEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                // New locations only arrive with stops
+                cursor.setNotificationUri(getContext().getContentResolver(), StopEntry.CONTENT_URI);
+                return cursor;
+            case TELEMETRY:
+                cursor = database.query(TelemetryEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
@@ -169,161 +519,888 @@ public class TripsProvider extends ContentProvider {
         return cursor;
     }
 
-    @Override
-    public Uri insert(@NonNull Uri uri, ContentValues contentValues) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case ITEMS:
-            case STOPS:
-                return insertItem(match, uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+    /**
+     * Counts the trips in each state. Served from the (state, trip_number) index.
+     *
+     * @return Bundle keyed by {@link TripEntry#EXTRA_STATE_COUNT_PREFIX} + state.
+     */
+    private static Bundle queryStateCounts(TripsDbHelper helper) {
+        AggregateCache aggregateCache = helper.getAggregateCache();
+        Object cached = aggregateCache.get(TripEntry.TABLE_NAME, TripEntry.COLUMN_STATE, "COUNT");
+        if (cached != AggregateCache.MISS)
+            return new Bundle((Bundle) cached);
+
+        long generation = aggregateCache.generation(TripEntry.TABLE_NAME);
+        Bundle counts = new Bundle();
+        Cursor cursor = helper.getReadableDatabase().query(TripEntry.TABLE_NAME, new String[]{TripEntry.COLUMN_STATE, "COUNT(*)"},
+                TripsDbHelper.LIVE_TRIPS_SELECTION, null, TripEntry.COLUMN_STATE, null, null);
+        try {
+            while (cursor.moveToNext())
+                counts.putInt(TripEntry.EXTRA_STATE_COUNT_PREFIX + cursor.getInt(0), cursor.getInt(1));
+        } finally {
+            cursor.close();
         }
+        aggregateCache.put(TripEntry.TABLE_NAME, TripEntry.COLUMN_STATE, "COUNT", generation, counts);
+        return new Bundle(counts);
     }
 
     /**
-     * Insert a trip item into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Releases the helper of the database a query's cursor was read from once the cursor is closed.
      */
-    private Uri insertItem(int itemType, Uri uri, ContentValues values) {
-        Long id = Long.valueOf(-1);
-        // If there are no values to insert or there are invalid field contents, then don't try to update the database
-        if (validateFields(values)) {
-            Log.v("VALIDATION", "passes");
+    private static class HelperCursor extends CursorWrapper {
+        private TripsDbHelper mHelper;
+
+        HelperCursor(Cursor cursor, TripsDbHelper helper) {
+            super(cursor);
+            mHelper = helper;
         }
-        if (values.size() != 0 && validateFields(values)) {
 
-            // Get writable database
-            SQLiteDatabase database = mDbHelper.getWritableDatabase();
-            switch (itemType) {
-                case ITEMS:
-                    id = database.insert(TripEntry.TABLE_NAME, null, values);
-                    break;
-                case STOPS:
-                    id = database.insert(StopEntry.TABLE_NAME, null, values);
-                    break;
+        @Override
+        public void close() {
+            super.close();
+            // Closing twice is allowed, releasing twice isn't
+            synchronized (this) {
+                if (mHelper != null) {
+                    mHelper.release();
+                    mHelper = null;
+                }
             }
         }
+    }
 
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+    /**
+     * Sorts the trips by the profile's {@link TripIndex} instead of SQLite: the cursor reads the rows a
+     * page at a time by _ID, in the order of the index, so nothing is sorted and only the pages
+     * looked at are read.
+     *
+     * @param selection The trips the filter picks, applied by the query as well.
+     * @param filter    The trips to list, null for every live trip.
+     * @return The trips in order, or null to sort in SQLite: the sort isn't by trip number, the index
+     * isn't built yet, or it hasn't caught up with a write.
+     */
+    private static Cursor queryInIndexOrder(TripsDbHelper helper, String[] projection, String selection,
+                                            String[] selectionArgs, String sortOrder, TripIndex.Filter filter) {
+        boolean descending = TripEntry.SORT_TRIP_NUMBER_DESC.equals(sortOrder);
+        if (!descending && !TripEntry.SORT_TRIP_NUMBER.equals(sortOrder))
             return null;
+        if (projection != null && !Arrays.asList(projection).contains(TripEntry._ID))
+            return null;
+        TripIndex index = helper.getTripIndex().get();
+        if (index == null)
+            return null;
+
+        long[] ids = index.select(filter, TripIndex.SORT_TRIP_NUMBER, descending);
+        SQLiteDatabase database = helper.getReadableDatabase();
+        // A count is answered inside SQLite, no rows come out to tell whether the index is behind
+        if (DatabaseUtils.queryNumEntries(database, TripEntry.TABLE_NAME, selection, selectionArgs) != ids.length)
+            return null;
+        return new IndexOrderCursor(database, projection, selection, selectionArgs, ids);
+    }
+
+    /**
+     * Hands out the trips of a list of _IDs in the order of the list, reading them a page at a time
+     * with an _ID IN (...) query. Moving within a page reads nothing, moving to another page reads
+     * that page alone.
+     * <p>
+     * A trip deleted since the list was taken reads as nulls; the change notification has the list
+     * queried again.
+     */
+    private static class IndexOrderCursor extends AbstractCursor {
+
+        /**
+         * Trips read per query, well under SQLite's limit on a statement's length.
+         */
+        private static final int ROWS_PER_PAGE = 500;
+
+        private final SQLiteDatabase mDatabase;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final long[] mIds;
+        private String[] mColumnNames;
+        private int mPage = -1;
+        private Object[][] mRows;
+        private Object[] mRow;
+
+        IndexOrderCursor(SQLiteDatabase database, String[] projection, String selection, String[] selectionArgs,
+                         long[] ids) {
+            mDatabase = database;
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mIds = ids;
+            // The first page holds the column names as well, an empty list still reads them
+            readPage(0);
         }
 
-        // Notify all listeners that the data has changed for the trip content URI
-        //noinspection ConstantConditions
-        getContext().getContentResolver().notifyChange(uri, null);
+        private void readPage(int page) {
+            int first = page * ROWS_PER_PAGE;
+            int count = Math.max(0, Math.min(ROWS_PER_PAGE, mIds.length - first));
+            Map<Long, Integer> offsets = new HashMap<>(count * 2);
+            StringBuilder idList = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                offsets.put(mIds[first + i], i);
+                idList.append(i == 0 ? "" : ",").append(mIds[first + i]);
+            }
+            Object[][] rows = new Object[count][];
+            Cursor cursor = mDatabase.query(TripEntry.TABLE_NAME, mProjection, DatabaseUtils.concatenateWhere(
+                    TripEntry._ID + " IN (" + idList + ")", mSelection), mSelectionArgs, null, null, null);
+            try {
+                mColumnNames = cursor.getColumnNames();
+                int idColumn = cursor.getColumnIndexOrThrow(TripEntry._ID);
+                while (cursor.moveToNext()) {
+                    Object[] row = new Object[mColumnNames.length];
+                    for (int i = 0; i < row.length; i++) {
+                        switch (cursor.getType(i)) {
+                            case FIELD_TYPE_INTEGER:
+                                row[i] = cursor.getLong(i);
+                                break;
+                            case FIELD_TYPE_FLOAT:
+                                row[i] = cursor.getDouble(i);
+                                break;
+                            case FIELD_TYPE_STRING:
+                                row[i] = cursor.getString(i);
+                                break;
+                            case FIELD_TYPE_BLOB:
+                                row[i] = cursor.getBlob(i);
+                                break;
+                        }
+                    }
+                    rows[offsets.get(cursor.getLong(idColumn))] = row;
+                }
+            } finally {
+                cursor.close();
+            }
+            for (int i = 0; i < count; i++)
+                if (rows[i] == null)
+                    rows[i] = new Object[mColumnNames.length];
+            mRows = rows;
+            mPage = page;
+        }
 
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
-    }
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            int page = newPosition / ROWS_PER_PAGE;
+            if (page != mPage)
+                readPage(page);
+            mRow = mRows[newPosition - page * ROWS_PER_PAGE];
+            return true;
+        }
 
-    @Override
-    public int update(@NonNull Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case ITEMS:
-            case STOPS:
-                return updateItem(match, uri, contentValues, selection, selectionArgs);
-            case ITEM_ID:
-                // Extract the ID and set selection/selectionArgs
-                selection = TripEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateItem(match, uri, contentValues, selection, selectionArgs);
-            case STOP_ID:
-                // Extract the ID and set selection/selectionArgs
-                selection = StopEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateItem(match, uri, contentValues, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException(String.format("Update is not supported for %s", uri));
+        @Override
+        public int getCount() {
+            return mIds.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = value(column);
+            if (value == null)
+                return FIELD_TYPE_NULL;
+            if (value instanceof Long)
+                return FIELD_TYPE_INTEGER;
+            if (value instanceof Double)
+                return FIELD_TYPE_FLOAT;
+            return value instanceof byte[] ? FIELD_TYPE_BLOB : FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = value(column);
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = value(column);
+            if (value instanceof Number)
+                return ((Number) value).longValue();
+            try {
+                return value != null ? Long.parseLong(value.toString()) : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = value(column);
+            if (value instanceof Number)
+                return ((Number) value).doubleValue();
+            try {
+                return value != null ? Double.parseDouble(value.toString()) : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = value(column);
+            return value instanceof byte[] ? (byte[]) value : null;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return value(column) == null;
+        }
+
+        private Object value(int column) {
+            checkPosition();
+            return mRow[column];
         }
     }
 
     /**
-     * Update items specified in the selection and selection arguments.
-     * Return the updated row count.
+     * Carries the per state trip counts as cursor extras ({@link Cursor#setExtras(Bundle)} needs API 23).
      */
-    private int updateItem(int itemType, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // If there are no values to update or there are invalid field contents, then don't try to update the database
-        if (values.size() == 0 || !validateFields(values))
-            return 0;
+    private static class StateCountsCursor extends CursorWrapper {
+        private final Bundle mStateCounts;
 
-        // Otherwise, get writable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        StateCountsCursor(Cursor cursor, Bundle stateCounts) {
+            super(cursor);
+            mStateCounts = stateCounts;
+        }
 
-        int rowCount = 0;
-        // Perform update and return the row count of deleted rows
-        switch (itemType) {
-            case ITEM_ID:
-            case ITEMS:
-                rowCount = database.update(TripEntry.TABLE_NAME, values, selection, selectionArgs);
-                break;
-            case STOP_ID:
-            case STOPS:
-                rowCount = database.update(StopEntry.TABLE_NAME, values, selection, selectionArgs);
-                break;
+        @Override
+        public Bundle getExtras() {
+            return mStateCounts;
         }
-        if (rowCount > 0)
-            //noinspection ConstantConditions
-            getContext().getContentResolver().notifyChange(uri, null);
-        return rowCount;
     }
 
-    /** {@link}
+    /**
+     * Finds the stops nearest a position with a ring search over the {@link GeoGrid} cells: the square of
+     * cells around the position is widened until it holds enough stops, then widened once more to the
+     * distance of the furthest of them, since a nearer stop may sit in a corner the square missed.
+     * Only the stops in those cells are read, through the geo_cell index.
      *
-     * @param values ContentValues containing the fields and values to validate.
-     * @return boolean value indicating whether or not the fields were valid.
+     * @return The nearest stops, nearest first (unless sortOrder says otherwise), with a
+     * {@link StopEntry#COLUMN_DISTANCE} column.
      */
-    private boolean validateFields(ContentValues values) {
-        boolean allFieldsValid = true;
-        if (values.containsKey(COLUMN_RECEIVED_DATE))
-            allFieldsValid = allFieldsValid && isValid(this.getContext(), COLUMN_RECEIVED_DATE, values.getAsString(COLUMN_RECEIVED_DATE),
-                    NOT_NULL, IS_DATE);
+    private static Cursor queryNearestStops(SQLiteDatabase database, Uri uri, String[] projection, String selection,
+                                            String[] selectionArgs, String sortOrder) {
+        double latitude = getCoordinate(uri, TripsContract.PARAM_LATITUDE);
+        double longitude = getCoordinate(uri, TripsContract.PARAM_LONGITUDE);
+        if (!GeoGrid.isValid(latitude, longitude))
+            throw new IllegalArgumentException("Invalid position in " + uri);
+        int limit = DEFAULT_NEAREST_LIMIT;
+        String limitParam = uri.getQueryParameter(TripsContract.PARAM_LIMIT);
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit < 1 || limit > MAX_NEAREST_LIMIT)
+                throw new IllegalArgumentException("Invalid " + TripsContract.PARAM_LIMIT + " in " + uri);
+        }
 
-        if (values.containsKey(TripEntry.COLUMN_STATE))
-            allFieldsValid = allFieldsValid && isOneOf(this.getContext(), COLUMN_STATE, values.getAsInteger(COLUMN_STATE),
-                    STATE_ASSIGNED, STATE_OPEN, STATE_CLOSED, STATE_SUBMITTED);
+        int rings = 0;
+        List<StopDistance> candidates;
+        while (true) {
+            candidates = readStopDistances(database, latitude, longitude, GeoGrid.squareRanges(latitude, longitude, rings),
+                    selection, selectionArgs);
+            if (candidates.size() >= limit || rings >= MAX_NEAREST_RINGS)
+                break;
+            rings = rings == 0 ? 1 : Math.min(MAX_NEAREST_RINGS, rings * 2);
+        }
+        if (candidates.size() >= limit) {
+            Collections.sort(candidates);
+            int neededRings = GeoGrid.ringsFor(latitude, candidates.get(limit - 1).meters);
+            if (neededRings > rings)
+                candidates = readStopDistances(database, latitude, longitude,
+                        neededRings <= MAX_NEAREST_RINGS ? GeoGrid.squareRanges(latitude, longitude, neededRings) : null,
+                        selection, selectionArgs);
+        } else {
+            // Fewer stops than asked for near the position
+            candidates = readStopDistances(database, latitude, longitude, null, selection, selectionArgs);
+        }
+        Collections.sort(candidates);
+        candidates = candidates.subList(0, Math.min(limit, candidates.size()));
 
-        if (values.containsKey(TripEntry.COLUMN_SUBMITTED_DATE))
-            allFieldsValid = allFieldsValid && isValid(this.getContext(), COLUMN_SUBMITTED_DATE, values.getAsString(COLUMN_SUBMITTED_DATE),
-                    NOT_NULL, IS_DATE);
+        // Read the chosen stops, with their distance, in one query
+        StringBuilder ids = new StringBuilder();
+        StringBuilder distance = new StringBuilder("CASE " + StopEntry._ID);
+        for (StopDistance candidate : candidates) {
+            ids.append(ids.length() == 0 ? "" : ",").append(candidate.id);
+            distance.append(" WHEN ").append(candidate.id).append(" THEN ").append(candidate.meters);
+        }
+        distance.append(" END AS ").append(StopEntry.COLUMN_DISTANCE);
+        String[] columns = projection != null ? projection : new String[]{"*"};
+        columns = Arrays.copyOf(columns, columns.length + 1);
+        columns[columns.length - 1] = candidates.isEmpty() ? "NULL AS " + StopEntry.COLUMN_DISTANCE : distance.toString();
+        return database.query(STOPS_WITH_LOCATIONS, columns, StopEntry._ID + " IN (" + ids + ")", null, null, null,
+                sortOrder != null ? sortOrder : StopEntry.COLUMN_DISTANCE + ", " + StopEntry._ID);
+    }
 
-        if (values.containsKey(TripEntry.COLUMN_HUB_INITIAL)) {
-            int tI = values.getAsInteger(COLUMN_HUB_INITIAL);
-            allFieldsValid = allFieldsValid && isValid(this.getContext(), COLUMN_HUB_INITIAL, values.getAsInteger(COLUMN_HUB_INITIAL).toString(), IS_POSITIVE);
+    /**
+     * Reads the _ID and coordinates of the stops in the cells, or of every stop with coordinates if
+     * cellRanges is null, and works out their distance from the position.
+     */
+    private static List<StopDistance> readStopDistances(SQLiteDatabase database, double latitude, double longitude,
+                                                        long[] cellRanges, String selection, String[] selectionArgs) {
+        selection = DatabaseUtils.concatenateWhere(selection, TripsDbHelper.LIVE_STOPS_SELECTION + " AND "
+                + (cellRanges != null ? cellSelection(cellRanges) : StopEntry.COLUMN_GEO_CELL + " IS NOT NULL"));
+        Cursor cursor = database.query(STOPS_WITH_LOCATIONS,
+                new String[]{StopEntry._ID, StopEntry.COLUMN_LATITUDE, StopEntry.COLUMN_LONGITUDE},
+                selection, selectionArgs, null, null, null);
+        List<StopDistance> stops = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext())
+                stops.add(new StopDistance(cursor.getLong(0),
+                        GeoGrid.distanceMeters(latitude, longitude, cursor.getDouble(1), cursor.getDouble(2))));
+        } finally {
+            cursor.close();
         }
+        return stops;
+    }
 
-        if (values.containsKey(TripEntry.COLUMN_HUB_END)) {
-            int tI = values.getAsInteger(COLUMN_HUB_END);
-            allFieldsValid = allFieldsValid && isValid(this.getContext(), COLUMN_HUB_END, values.getAsInteger(COLUMN_HUB_END).toString(), IS_POSITIVE);
+    private static class StopDistance implements Comparable<StopDistance> {
+        final long id;
+        final double meters;
+
+        StopDistance(long id, double meters) {
+            this.id = id;
+            this.meters = meters;
         }
-        if (values.containsKey(TripEntry.COLUMN_TRIP_NUMBER))
-            allFieldsValid = allFieldsValid && isValid(this.getContext(), COLUMN_TRIP_NUMBER, values.getAsString(COLUMN_TRIP_NUMBER), NOT_EMPTY);
 
-        if (values.containsKey(TripEntry.COLUMN_FROM_TO))
-            allFieldsValid = allFieldsValid && isValid(this.getContext(), COLUMN_FROM_TO, values.getAsString(COLUMN_FROM_TO), NOT_EMPTY);
+        @Override
+        public int compareTo(@NonNull StopDistance other) {
+            int result = Double.compare(meters, other.meters);
+            return result != 0 ? result : (id < other.id ? -1 : (id == other.id ? 0 : 1));
+        }
+    }
 
-        return allFieldsValid;
+    /**
+     * @param cellRanges Pairs of first and last {@link GeoGrid} cells.
+     * @return A selection on the geo_cell column, one indexed range per pair. The cell numbers are
+     * written out, they come from {@link GeoGrid} and can run past the selection argument limit.
+     */
+    private static String cellSelection(long[] cellRanges) {
+        StringBuilder selection = new StringBuilder("(");
+        for (int i = 0; i < cellRanges.length; i += 2)
+            selection.append(i == 0 ? "" : " OR ").append(StopEntry.COLUMN_GEO_CELL).append(" BETWEEN ")
+                    .append(cellRanges[i]).append(" AND ").append(cellRanges[i + 1]);
+        return selection.append(")").toString();
     }
 
-    @Override
-    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
-        // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    /**
+     * Limits the selection to the stops of assigned and open trips if the URI asks for it with
+     * {@link TripsContract#PARAM_OPEN_ONLY}.
+     */
+    private static String appendOpenOnly(Uri uri, String selection) {
+        if (!Boolean.parseBoolean(uri.getQueryParameter(TripsContract.PARAM_OPEN_ONLY)))
+            return selection;
+        return DatabaseUtils.concatenateWhere(selection, StopEntry.COLUMN_TRIP_NUMBER + " IN (SELECT "
+                + TripEntry.COLUMN_TRIP_NUMBER + " FROM " + TripEntry.TABLE_NAME + " WHERE "
+                + TripsDbHelper.ACTIVE_STATES_SELECTION + ")");
+    }
 
-        int rowCount = 0;
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case ITEMS:
-                // Delete all rows that match the selection and selection args
+    /**
+     * @return The coordinate in the query parameter.
+     */
+    private static double getCoordinate(Uri uri, String param) {
+        String value = uri.getQueryParameter(param);
+        try {
+            if (value != null)
+                return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(String.format("Invalid %s in %s", param, uri));
+    }
+
+    /**
+     * Adds the {@link TripsContract#PARAM_DATE_FROM}/{@link TripsContract#PARAM_DATE_TO} range, if any,
+     * to the selection as an indexed comparison on the given epoch-day column.
+     */
+    private static String appendDateRange(Uri uri, String dayColumn, String selection) {
+        if (uri.getQueryParameter(TripsContract.PARAM_DATE_FROM) != null)
+            selection = DatabaseUtils.concatenateWhere(selection, dayColumn + ">=?");
+        if (uri.getQueryParameter(TripsContract.PARAM_DATE_TO) != null)
+            selection = DatabaseUtils.concatenateWhere(selection, dayColumn + "<=?");
+        return selection;
+    }
+
+    /**
+     * The selection arguments matching {@link #appendDateRange(Uri, String, String)}.
+     */
+    private static String[] appendDateRangeArgs(Uri uri, String[] selectionArgs) {
+        String[] params = {TripsContract.PARAM_DATE_FROM, TripsContract.PARAM_DATE_TO};
+        for (String param : params) {
+            String date = uri.getQueryParameter(param);
+            if (date == null)
+                continue;
+            int epochDay = EpochDays.parse(date);
+            if (epochDay == EpochDays.INVALID)
+                throw new IllegalArgumentException(String.format("Invalid %s in %s", param, uri));
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{String.valueOf(epochDay)});
+        }
+        return selectionArgs;
+    }
+
+    /**
+     * Fills in the columns the provider maintains: keeps the yyyy-MM-dd text columns and their
+     * epoch-day columns in step, whichever one was written, and a stop's grid cell in step with its
+     * coordinates. Values that don't parse are left for {@link #validateFields(ContentValues)} to reject.
+     */
+    private static void normalizeValues(int itemType, ContentValues values) {
+        switch (itemType) {
+            case ITEMS:
+            case ITEM_ID:
+                Validation.normalizeRow(TripSchema.TRIPS, values);
                 break;
+            case STOPS:
+            case STOP_ID:
+                Validation.normalizeRow(TripSchema.STOPS, values);
+                break;
+        }
+    }
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues contentValues) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case ITEMS:
+            case STOPS:
+                return insertItem(match, uri, contentValues);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert a trip item into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertItem(int itemType, Uri uri, ContentValues values) {
+        TripsDbHelper helper = helperFor(uri);
+        try {
+            return insertItem(helper, itemType, uri, values);
+        } finally {
+            helper.release();
+        }
+    }
+
+    private Uri insertItem(TripsDbHelper helper, int itemType, Uri uri, ContentValues values) {
+        Long id = Long.valueOf(-1);
+        normalizeValues(itemType, values);
+        // If there are no values to insert or there are invalid field contents, then don't try to update the database
+        if (values.size() != 0 && validateFields(values)) {
+
+            // Get writable database
+            SQLiteDatabase database = helper.getWritableDatabase();
+            database.beginTransactionWithListener(helper.getLocations());
+            try {
+                switch (itemType) {
+                    case ITEMS:
+                        id = database.insert(TripEntry.TABLE_NAME, null, values);
+                        break;
+                    case STOPS:
+                        helper.getLocations().internValues(database, values);
+                        id = database.insert(StopEntry.TABLE_NAME, null, values);
+                        break;
+                }
+                if (id != -1)
+                    refreshContinuity(database, itemType, id, -1);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        if (itemType == ITEMS)
+            helper.getTripIndex().refresh(id);
+
+        // Notify all listeners that the data has changed for the trip content URI
+        notifyTableChange(helper, tableFor(itemType), uri);
+        notifyAnomaliesChange(helper);
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Inserts all the rows in a single transaction with a single change notification.
+     * Rows that fail validation are skipped (without a toast per row). The rows are validated
+     * in parallel before the transaction starts, so the writer only inserts.
+     *
+     * @return The number of rows inserted.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        final String table;
+        switch (match) {
+            case ITEMS:
+                table = TripEntry.TABLE_NAME;
+                break;
+            case STOPS:
+                table = StopEntry.TABLE_NAME;
+                break;
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        boolean[] valid = Validation.validateRows(values, new Validation.RowValidator() {
+            @Override
+            public boolean isValid(ContentValues row) {
+                return Validation.checkRow(table, row);
+            }
+        });
+
+        int rowCount = 0;
+        long[] ids = new long[values.length];
+        TripsDbHelper helper = helperFor(uri);
+        try {
+            SQLiteDatabase database = helper.getWritableDatabase();
+            database.beginTransactionWithListener(helper.getLocations());
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    if (!valid[i])
+                        continue;
+                    ContentValues rowValues = values[i];
+                    if (match == STOPS)
+                        helper.getLocations().internValues(database, rowValues);
+                    long id = database.insert(table, null, rowValues);
+                    if (id != -1) {
+                        refreshContinuity(database, match, id, -1);
+                        ids[rowCount++] = id;
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            if (rowCount != values.length)
+                Log.e(LOG_TAG, String.format("Inserted %d of %d rows for %s", rowCount, values.length, uri));
+            if (rowCount > 0) {
+                if (match == ITEMS)
+                    helper.getTripIndex().refresh(Arrays.copyOf(ids, rowCount));
+                notifyTableChange(helper, table, uri);
+                notifyAnomaliesChange(helper);
+            }
+            return rowCount;
+        } finally {
+            helper.release();
+        }
+    }
+
+    /**
+     * Applies the operations in a single transaction, so a batch either lands completely or not at all.
+     * The transaction is on one database, so all the operations must be for the same profile.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (operations.isEmpty())
+            return new ContentProviderResult[0];
+        String profile = profileOf(operations.get(0).getUri());
+        for (ContentProviderOperation operation : operations)
+            if (!profile.equals(profileOf(operation.getUri())))
+                throw new IllegalArgumentException("A batch cannot span profiles: " + operation.getUri());
+        //noinspection ConstantConditions
+        TripsDbHelper helper = TripsDbHelper.acquire(getContext(), profile);
+        try {
+            AggregateCache aggregateCache = helper.getAggregateCache();
+            SQLiteDatabase database = helper.getWritableDatabase();
+            boolean committed = false;
+            database.beginTransactionWithListener(helper.getLocations());
+            try {
+                ContentProviderResult[] results = super.applyBatch(operations);
+                database.setTransactionSuccessful();
+                committed = true;
+                return results;
+            } finally {
+                database.endTransaction();
+                // The operations refreshed the trip index from inside this transaction
+                if (!committed)
+                    helper.getTripIndex().invalidate();
+                // The operations invalidated the cache before this outer transaction committed,
+                // so a reader may have cached a result from before the batch in the meantime
+                aggregateCache.invalidate(TripEntry.TABLE_NAME);
+                aggregateCache.invalidate(StopEntry.TABLE_NAME);
+                aggregateCache.invalidate(LocationEntry.TABLE_NAME);
+                aggregateCache.invalidate(AnomalyEntry.TABLE_NAME);
+            }
+        } finally {
+            helper.release();
+        }
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case ITEMS:
+                selection = DatabaseUtils.concatenateWhere(selection, TripsDbHelper.LIVE_TRIPS_SELECTION);
+                return updateItem(match, uri, contentValues, selection, selectionArgs);
+            case STOPS:
+                return updateItem(match, uri, contentValues, selection, selectionArgs);
             case ITEM_ID:
-                // Delete a single row given by the ID in the URI
-                selection = TripEntry._ID + "=?";
+                // Extract the ID and set selection/selectionArgs, a soft deleted trip can't be updated
+                selection = TripEntry._ID + "=? AND " + TripsDbHelper.LIVE_TRIPS_SELECTION;
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return updateItem(match, uri, contentValues, selection, selectionArgs);
+            case STOP_ID:
+                // Extract the ID and set selection/selectionArgs
+                selection = StopEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return updateItem(match, uri, contentValues, selection, selectionArgs);
+            default:
+                throw new IllegalArgumentException(String.format("Update is not supported for %s", uri));
+        }
+    }
+
+    /**
+     * Update items specified in the selection and selection arguments.
+     * Return the updated row count.
+     */
+    private int updateItem(int itemType, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        normalizeValues(itemType, values);
+        // If there are no values to update or there are invalid field contents, then don't try to update the database
+        if (values.size() == 0 || !validateFields(values))
+            return 0;
+
+        // Otherwise, get writable database to update the data
+        TripsDbHelper helper = helperFor(uri);
+        try {
+            return updateItem(helper, itemType, uri, values, selection, selectionArgs);
+        } finally {
+            helper.release();
+        }
+    }
+
+    private int updateItem(TripsDbHelper helper, int itemType, Uri uri, ContentValues values, String selection,
+                           String[] selectionArgs) {
+        SQLiteDatabase database = helper.getWritableDatabase();
+
+        // A single row is re-checked against its neighbours, a selection is re-checked in the background
+        boolean affectsContinuity = affectsContinuity(itemType, values);
+        long id = itemType == ITEM_ID || itemType == STOP_ID ? ContentUris.parseId(uri) : -1;
+
+        int rowCount = 0;
+        database.beginTransactionWithListener(helper.getLocations());
+        try {
+            long oldSuccessor = affectsContinuity && id != -1 ? continuitySuccessor(database, itemType, id) : -1;
+            // Perform update and return the row count of deleted rows
+            switch (itemType) {
+                case ITEM_ID:
+                case ITEMS:
+                    rowCount = database.update(TripEntry.TABLE_NAME, values, selection, selectionArgs);
+                    break;
+                case STOP_ID:
+                case STOPS:
+                    helper.getLocations().internValues(database, values);
+                    rowCount = database.update(StopEntry.TABLE_NAME, values, selection, selectionArgs);
+                    break;
+            }
+            if (rowCount > 0 && affectsContinuity && id != -1)
+                refreshContinuity(database, itemType, id, oldSuccessor);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (rowCount > 0 && affectsContinuity) {
+            if (id == -1)
+                scheduleContinuityBackfill(helper);
+            notifyAnomaliesChange(helper);
+        }
+        if (rowCount > 0) {
+            if (itemType == ITEM_ID)
+                helper.getTripIndex().refresh(id);
+            else if (itemType == ITEMS)
+                helper.getTripIndex().invalidate();
+            notifyTableChange(helper, tableFor(itemType), uri);
+        }
+        return rowCount;
+    }
+
+    private static boolean affectsContinuity(int itemType, ContentValues values) {
+        switch (itemType) {
+            case ITEMS:
+            case ITEM_ID:
+                return HubContinuity.affectsTrips(values);
+            case STOPS:
+            case STOP_ID:
+                return HubContinuity.affectsStops(values);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return The trip or stop that follows the given one, before it is written, or -1.
+     */
+    private static long continuitySuccessor(SQLiteDatabase database, int itemType, long id) {
+        switch (itemType) {
+            case ITEMS:
+            case ITEM_ID:
+                return HubContinuity.tripSuccessor(database, id);
+            case STOPS:
+            case STOP_ID:
+                return HubContinuity.stopSuccessor(database, id);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Re-checks hub continuity around a trip or stop that was just written.
+     */
+    private static void refreshContinuity(SQLiteDatabase database, int itemType, long id, long oldSuccessor) {
+        switch (itemType) {
+            case ITEMS:
+            case ITEM_ID:
+                HubContinuity.refreshTripsAround(database, id, oldSuccessor);
                 break;
+            case STOPS:
+            case STOP_ID:
+                HubContinuity.refreshStopsAround(database, id, oldSuccessor);
+                break;
+        }
+    }
+
+    /**
+     * Rebuilds the hub anomalies in the background, after writes that touched many rows.
+     * Requests made while one is already queued share it.
+     */
+    private void scheduleContinuityBackfill(final TripsDbHelper helper) {
+        if (!helper.getContinuityBackfillQueued().compareAndSet(false, true))
+            return;
+        BACKGROUND.execute(new Runnable() {
+            @Override
+            public void run() {
+                helper.getContinuityBackfillQueued().set(false);
+                // Through the pool, the helper may have been closed while this waited
+                //noinspection ConstantConditions
+                TripsDbHelper current = TripsDbHelper.acquire(getContext(), helper.getProfile());
+                try {
+                    HubContinuity.backfill(current.getWritableDatabase());
+                    notifyAnomaliesChange(current);
+                } finally {
+                    current.release();
+                }
+            }
+        });
+    }
+
+    private void notifyAnomaliesChange(TripsDbHelper helper) {
+        notifyTableChange(helper, AnomalyEntry.TABLE_NAME, AnomalyEntry.CONTENT_URI);
+    }
+
+    /**
+     * Called by every write path once its changes are committed: invalidates the table's cached
+     * aggregates and notifies the listeners of the URI. Observers match on the path only, so
+     * every profile's listeners of the URI hear of the change.
+     */
+    private void notifyTableChange(TripsDbHelper helper, String table, Uri uri) {
+        AggregateCache aggregateCache = helper.getAggregateCache();
+        aggregateCache.invalidate(table);
+        // New locations arrive with stops
+        if (StopEntry.TABLE_NAME.equals(table))
+            aggregateCache.invalidate(LocationEntry.TABLE_NAME);
+        //noinspection ConstantConditions
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * @return The table behind a URI matcher code.
+     */
+    private static String tableFor(int match) {
+        switch (match) {
+            case ITEMS:
+            case ITEM_ID:
+            case ITEMS_BY_STATE:
+            case ACTIVE_ITEMS:
+            case ITEM_STOPS:
+                return TripEntry.TABLE_NAME;
+            case STOPS:
+            case STOP_ID:
+            case STOPS_NEAREST:
+            case STOPS_WITHIN:
+                return StopEntry.TABLE_NAME;
+            case ANOMALIES:
+                return AnomalyEntry.TABLE_NAME;
+            case LOCATIONS:
+                return LocationEntry.TABLE_NAME;
+            case TELEMETRY:
+                return TelemetryEntry.TABLE_NAME;
+            default:
+                throw new IllegalArgumentException("No table for match " + match);
+        }
+    }
+
+    /** {@link}
+     *
+     * @param values ContentValues containing the fields and values to validate.
+     * @return boolean value indicating whether or not the fields were valid.
+     */
+    private boolean validateFields(ContentValues values) {
+        return validateFields(this.getContext(), values);
+    }
+
+    /**
+     * @param toastContext Context used for toasts. If toastContext is null then no Toast is shown.
+     * @param values       ContentValues containing the fields and values to validate.
+     * @return boolean value indicating whether or not the fields were valid.
+     */
+    private static boolean validateFields(Context toastContext, ContentValues values) {
+        return Validation.isValidRow(toastContext, values);
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        TripsDbHelper helper = helperFor(uri);
+        try {
+            return delete(helper, uri, selection, selectionArgs);
+        } finally {
+            helper.release();
+        }
+    }
+
+    private int delete(TripsDbHelper helper, Uri uri, String selection, String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        // Trips are soft deleted, the same as by METHOD_SOFT_DELETE_TRIPS, and purged after the undo window
+        if (match == ITEMS)
+            return softDeleteTrips(helper, selection, selectionArgs, null).getInt(TripsContract.EXTRA_UPDATED);
+        if (match == ITEM_ID)
+            return softDeleteTrips(helper, new long[]{ContentUris.parseId(uri)}).getInt(TripsContract.EXTRA_UPDATED);
+
+        // Get writable database
+        SQLiteDatabase database = helper.getWritableDatabase();
+
+        int rowCount = 0;
+        // Stops are deleted at once, only a trip's deletion can be undone
+        switch (match) {
             case STOPS:
                 // Delete all rows that match the selection and selection args
                 break;
@@ -336,20 +1413,778 @@ public class TripsProvider extends ContentProvider {
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
-        switch (match) {
-            case ITEM_ID:
-            case ITEMS:
-                rowCount = database.delete(TripEntry.TABLE_NAME, selection, selectionArgs);
+        long id = match == STOP_ID ? ContentUris.parseId(uri) : -1;
+        database.beginTransaction();
+        try {
+            long oldSuccessor = id != -1 ? continuitySuccessor(database, match, id) : -1;
+            rowCount = database.delete(StopEntry.TABLE_NAME, selection, selectionArgs);
+            if (rowCount > 0 && id != -1)
+                refreshContinuity(database, match, id, oldSuccessor);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (rowCount > 0) {
+            if (id == -1)
+                scheduleContinuityBackfill(helper);
+            notifyTableChange(helper, tableFor(match), uri);
+            notifyAnomaliesChange(helper);
+        }
+        return rowCount;
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        switch (method) {
+            case TripsContract.METHOD_PROFILE_TOTALS:
+                return queryProfileTotals();
+            case TripsContract.METHOD_MOVE_STOP:
+            case TripsContract.METHOD_UPSERT_PACKS:
+            case TripsContract.METHOD_TRANSITION_TRIPS:
+            case TripsContract.METHOD_READ_TRIPS:
+            case TripsContract.METHOD_SOFT_DELETE_TRIPS:
+            case TripsContract.METHOD_UNDO_DELETE:
+                TripsDbHelper helper = helperFor(extras);
+                try {
+                    return call(helper, method, extras);
+                } finally {
+                    helper.release();
+                }
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * The calls on one profile's database.
+     */
+    private Bundle call(TripsDbHelper helper, String method, Bundle extras) {
+        switch (method) {
+            case TripsContract.METHOD_MOVE_STOP:
+                if (extras == null || !extras.containsKey(TripsContract.EXTRA_STOP_ID)
+                        || !extras.containsKey(TripsContract.EXTRA_AFTER_STOP_ID))
+                    throw new IllegalArgumentException("No stop to move");
+                return moveStop(helper, extras.getLong(TripsContract.EXTRA_STOP_ID), extras.getLong(TripsContract.EXTRA_AFTER_STOP_ID));
+            case TripsContract.METHOD_UPSERT_PACKS:
+                if (extras == null || (!extras.containsKey(TripsContract.EXTRA_TRIPS)
+                        && !extras.containsKey(TripsContract.EXTRA_STOPS)))
+                    throw new IllegalArgumentException("No packs to upsert");
+                ArrayList<ContentValues> trips = extras.getParcelableArrayList(TripsContract.EXTRA_TRIPS);
+                ArrayList<ContentValues> stops = extras.getParcelableArrayList(TripsContract.EXTRA_STOPS);
+                return upsertPacks(helper, trips != null ? trips : new ArrayList<ContentValues>(),
+                        stops != null ? stops : new ArrayList<ContentValues>());
+            case TripsContract.METHOD_TRANSITION_TRIPS:
+                long[] tripIds = extras != null ? extras.getLongArray(TripsContract.EXTRA_TRIP_IDS) : null;
+                if (tripIds == null || !extras.containsKey(TripsContract.EXTRA_STATE))
+                    throw new IllegalArgumentException("No trips or state to transition to");
+                return transitionTrips(helper, tripIds,
+                        extras.getInt(TripsContract.EXTRA_STATE), extras.getString(TripsContract.EXTRA_DATE));
+            case TripsContract.METHOD_READ_TRIPS:
+                return readTrips(helper, extras != null ? extras : Bundle.EMPTY);
+            case TripsContract.METHOD_SOFT_DELETE_TRIPS:
+                return softDeleteTrips(helper, extras != null ? extras.getLongArray(TripsContract.EXTRA_TRIP_IDS) : null);
+            case TripsContract.METHOD_UNDO_DELETE:
+                if (extras == null || !extras.containsKey(TripsContract.EXTRA_DELETION))
+                    throw new IllegalArgumentException("No deletion to undo");
+                return undoDelete(helper, extras.getLong(TripsContract.EXTRA_DELETION));
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    /**
+     * Moves the trips to a new state with a single UPDATE. The target state and date are checked once,
+     * and each trip's current state is checked by the UPDATE's own selection.
+     *
+     * @see TripsContract#METHOD_TRANSITION_TRIPS
+     */
+    private Bundle transitionTrips(TripsDbHelper helper, long[] tripIds, int state, String date) {
+        String fromStates;
+        switch (state) {
+            case STATE_OPEN:
+                fromStates = STATE_ASSIGNED + "," + STATE_CLOSED;
                 break;
-            case STOP_ID:
-            case STOPS:
-                rowCount = database.delete(StopEntry.TABLE_NAME, selection, selectionArgs);
+            case STATE_CLOSED:
+                fromStates = String.valueOf(STATE_OPEN);
                 break;
+            case STATE_SUBMITTED:
+                fromStates = String.valueOf(STATE_CLOSED);
+                break;
+            default:
+                throw new IllegalArgumentException("Trips cannot be moved to state " + state);
         }
-        if (rowCount > 0)
-            //noinspection ConstantConditions
-            getContext().getContentResolver().notifyChange(uri, null);
-        return rowCount;
+        ContentValues values = new ContentValues();
+        values.put(TripEntry.COLUMN_STATE, state);
+        if (state == STATE_SUBMITTED) {
+            if (!isValid(date, NOT_NULL, IS_DATE))
+                throw new IllegalArgumentException("Invalid submitted date " + date);
+            values.put(TripEntry.COLUMN_SUBMITTED_DATE, date);
+            normalizeValues(ITEMS, values);
+        }
+
+        // The ids are numbers, so they go in the statement as they are, however many there are
+        long[] ids = tripIds.clone();
+        Arrays.sort(ids);
+        StringBuilder idList = new StringBuilder();
+        int distinct = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0 && ids[i] == ids[i - 1])
+                continue;
+            idList.append(distinct++ == 0 ? "" : ",").append(ids[i]);
+        }
+
+        int updated = 0;
+        if (distinct > 0) {
+            SQLiteDatabase database = helper.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                // Soft deleted trips count as rejected
+                updated = database.update(TripEntry.TABLE_NAME, values, TripEntry._ID + " IN (" + idList + ") AND "
+                        + TripEntry.COLUMN_STATE + " IN (" + fromStates + ") AND " + TripsDbHelper.LIVE_TRIPS_SELECTION, null);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+        if (updated > 0) {
+            helper.getTripIndex().refresh(ids);
+            notifyTableChange(helper, TripEntry.TABLE_NAME, TripEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(TripsContract.EXTRA_UPDATED, updated);
+        result.putInt(TripsContract.EXTRA_REJECTED, distinct - updated);
+        return result;
+    }
+
+    /**
+     * Flags the trips as deleted with one UPDATE, their stops are hidden along with them. The flag is the
+     * time of the delete, kept distinct from earlier deletes so it also identifies this one for undo.
+     *
+     * @param tripIds _IDs of the trips, null for every trip.
+     * @see TripsContract#METHOD_SOFT_DELETE_TRIPS
+     */
+    private Bundle softDeleteTrips(TripsDbHelper helper, long[] tripIds) {
+        String selection = null;
+        if (tripIds != null) {
+            // The ids are numbers, so they go in the statement as they are
+            StringBuilder idList = new StringBuilder();
+            for (long id : tripIds)
+                idList.append(idList.length() == 0 ? "" : ",").append(id);
+            selection = TripEntry._ID + " IN (" + (idList.length() > 0 ? idList : "NULL") + ")";
+        }
+        return softDeleteTrips(helper, selection, null, tripIds);
+    }
+
+    /**
+     * @param selection The trips to delete, null for every trip; those already deleted are left alone.
+     * @param tripIds   _IDs of the trips the selection picks, null if it isn't by _ID.
+     */
+    private Bundle softDeleteTrips(TripsDbHelper helper, String selection, String[] selectionArgs, long[] tripIds) {
+        selection = DatabaseUtils.concatenateWhere(selection, TripsDbHelper.LIVE_TRIPS_SELECTION);
+        long deletion;
+        int deleted;
+        SQLiteDatabase database = helper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            deletion = Math.max(System.currentTimeMillis(), DatabaseUtils.longForQuery(database, "SELECT COALESCE(MAX("
+                    + TripEntry.COLUMN_DELETED_AT + "), 0) + 1 FROM " + TripEntry.TABLE_NAME, null));
+            ContentValues values = new ContentValues();
+            values.put(TripEntry.COLUMN_DELETED_AT, deletion);
+            deleted = database.update(TripEntry.TABLE_NAME, values, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (deleted > 0) {
+            if (tripIds != null)
+                helper.getTripIndex().refresh(tripIds);
+            else
+                helper.getTripIndex().invalidate();
+            notifyTableChange(helper, TripEntry.TABLE_NAME, TripEntry.CONTENT_URI);
+            notifyTableChange(helper, StopEntry.TABLE_NAME, StopEntry.CONTENT_URI);
+            schedulePurge(helper, TripsContract.UNDO_WINDOW_MILLIS);
+        }
+        Bundle result = new Bundle();
+        result.putInt(TripsContract.EXTRA_UPDATED, deleted);
+        result.putLong(TripsContract.EXTRA_DELETION, deletion);
+        return result;
+    }
+
+    /**
+     * Clears the flag of the trips of one soft delete, an index lookup per trip. The stops were never
+     * flagged, they come back with their trip.
+     *
+     * @see TripsContract#METHOD_UNDO_DELETE
+     */
+    private Bundle undoDelete(TripsDbHelper helper, long deletion) {
+        ContentValues values = new ContentValues();
+        values.putNull(TripEntry.COLUMN_DELETED_AT);
+        int restored = helper.getWritableDatabase().update(TripEntry.TABLE_NAME, values,
+                TripEntry.COLUMN_DELETED_AT + "=?", new String[]{String.valueOf(deletion)});
+        if (restored > 0) {
+            helper.getTripIndex().invalidate();
+            notifyTableChange(helper, TripEntry.TABLE_NAME, TripEntry.CONTENT_URI);
+            notifyTableChange(helper, StopEntry.TABLE_NAME, StopEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(TripsContract.EXTRA_UPDATED, restored);
+        return result;
+    }
+
+    /**
+     * Purges the soft deleted trips once their undo window is over. Requests made while one is already
+     * queued share it; it queues the next purge itself if trips deleted later are left.
+     */
+    private void schedulePurge(final TripsDbHelper helper, long delayMillis) {
+        if (!helper.getPurgeQueued().compareAndSet(false, true))
+            return;
+        BACKGROUND.schedule(new Runnable() {
+            @Override
+            public void run() {
+                helper.getPurgeQueued().set(false);
+                // Through the pool, the helper may have been closed while this waited
+                //noinspection ConstantConditions
+                TripsDbHelper current = TripsDbHelper.acquire(getContext(), helper.getProfile());
+                try {
+                    long next = purgeSoftDeleted(current);
+                    if (next >= 0)
+                        schedulePurge(current, next);
+                } catch (RuntimeException e) {
+                    // The trips stay hidden, the next soft delete or start up tries again
+                    Log.e(LOG_TAG, "Unable to purge the deleted trips of profile '" + current.getProfile() + "'", e);
+                } finally {
+                    current.release();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes the trips soft deleted before the undo window, with their stops, {@link #PURGE_BATCH}
+     * trips to a transaction.
+     *
+     * @return Milliseconds until the next soft deleted trip can be purged, -1 if there is none.
+     */
+    private long purgeSoftDeleted(TripsDbHelper helper) {
+        SQLiteDatabase database = helper.getWritableDatabase();
+        String cutoff = String.valueOf(System.currentTimeMillis() - TripsContract.UNDO_WINDOW_MILLIS);
+        int purged = 0;
+        int batch;
+        do {
+            database.beginTransaction();
+            try {
+                Cursor cursor = database.query(TripEntry.TABLE_NAME, new String[]{TripEntry._ID, TripEntry.COLUMN_TRIP_NUMBER},
+                        TripEntry.COLUMN_DELETED_AT + "<=?", new String[]{cutoff}, null, null, null, String.valueOf(PURGE_BATCH));
+                StringBuilder ids = new StringBuilder();
+                StringBuilder placeholders = new StringBuilder();
+                String[] tripNumbers = new String[cursor.getCount()];
+                try {
+                    while (cursor.moveToNext()) {
+                        ids.append(ids.length() == 0 ? "" : ",").append(cursor.getLong(0));
+                        placeholders.append(placeholders.length() == 0 ? "?" : ",?");
+                        tripNumbers[cursor.getPosition()] = cursor.getString(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                batch = tripNumbers.length;
+                if (batch > 0) {
+                    database.delete(StopEntry.TABLE_NAME, StopEntry.COLUMN_TRIP_NUMBER + " IN (" + placeholders + ")", tripNumbers);
+                    database.delete(TripEntry.TABLE_NAME, TripEntry._ID + " IN (" + ids + ")", null);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            purged += batch;
+        } while (batch == PURGE_BATCH);
+
+        if (purged > 0) {
+            Log.d(LOG_TAG, String.format("Purged %d deleted trips of profile '%s'", purged, helper.getProfile()));
+            // Nothing visible changed, but the trip numbers MAX saw are gone, and the neighbours' continuity moved
+            AggregateCache aggregateCache = helper.getAggregateCache();
+            aggregateCache.invalidate(TripEntry.TABLE_NAME);
+            aggregateCache.invalidate(StopEntry.TABLE_NAME);
+            scheduleContinuityBackfill(helper);
+        }
+        long oldest = DatabaseUtils.longForQuery(database, "SELECT COALESCE(MIN(" + TripEntry.COLUMN_DELETED_AT
+                + "), -1) FROM " + TripEntry.TABLE_NAME, null);
+        return oldest == -1 ? -1 : Math.max(0, oldest + TripsContract.UNDO_WINDOW_MILLIS - System.currentTimeMillis());
+    }
+
+    /**
+     * Reads a page of trips and then their stops inside one transaction, so both queries see the same
+     * snapshot. The transaction holds off writers (Android has no deferred transaction before API 35),
+     * which a page of at most {@link TripsContract#MAX_READ_TRIPS} trips keeps to a few milliseconds.
+     *
+     * @see TripsContract#METHOD_READ_TRIPS
+     */
+    private static Bundle readTrips(TripsDbHelper helper, Bundle extras) {
+        int limit = extras.getInt(TripsContract.EXTRA_LIMIT, TripsContract.MAX_READ_TRIPS);
+        if (limit < 1 || limit > TripsContract.MAX_READ_TRIPS)
+            throw new IllegalArgumentException("Invalid limit " + limit);
+
+        // Everything in the selection is a number, so it is written out with no arguments
+        String selection = TripEntry._ID + ">" + extras.getLong(TripsContract.EXTRA_AFTER_TRIP_ID, 0)
+                + " AND " + TripsDbHelper.LIVE_TRIPS_SELECTION;
+        long[] tripIds = extras.getLongArray(TripsContract.EXTRA_TRIP_IDS);
+        if (tripIds != null) {
+            StringBuilder idList = new StringBuilder();
+            for (long id : tripIds)
+                idList.append(idList.length() == 0 ? "" : ",").append(id);
+            selection += " AND " + TripEntry._ID + " IN (" + idList + ")";
+        }
+        selection = appendDayBound(selection, TripEntry.COLUMN_RECEIVED_DAY, ">=", extras.getString(TripsContract.EXTRA_DATE_FROM));
+        selection = appendDayBound(selection, TripEntry.COLUMN_RECEIVED_DAY, "<=", extras.getString(TripsContract.EXTRA_DATE_TO));
+
+        ArrayList<ContentValues> trips = new ArrayList<>();
+        ArrayList<ContentValues> stops = new ArrayList<>();
+        boolean more;
+        SQLiteDatabase database = helper.getReadableDatabase();
+        database.beginTransactionNonExclusive();
+        try {
+            // One row past the page tells whether there is another page
+            Cursor cursor = database.query(TripEntry.TABLE_NAME, null, selection, null, null, null,
+                    TripEntry._ID, String.valueOf(limit + 1));
+            try {
+                while (trips.size() < limit && cursor.moveToNext())
+                    trips.add(rowValues(cursor));
+                more = cursor.getCount() > limit;
+            } finally {
+                cursor.close();
+            }
+
+            if (!trips.isEmpty()) {
+                String[] tripNumbers = new String[trips.size()];
+                StringBuilder placeholders = new StringBuilder();
+                for (int i = 0; i < tripNumbers.length; i++) {
+                    tripNumbers[i] = trips.get(i).getAsString(TripEntry.COLUMN_TRIP_NUMBER);
+                    placeholders.append(i == 0 ? "?" : ",?");
+                }
+                cursor = database.query(STOPS_WITH_LOCATIONS, READ_TRIPS_STOP_COLUMNS,
+                        StopEntry.COLUMN_TRIP_NUMBER + " IN (" + placeholders + ")", tripNumbers, null, null,
+                        StopEntry.COLUMN_TRIP_NUMBER + ", " + StopEntry.COLUMN_SORT_INDEX);
+                try {
+                    while (cursor.moveToNext())
+                        stops.add(rowValues(cursor));
+                } finally {
+                    cursor.close();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        Bundle result = new Bundle();
+        result.putParcelableArrayList(TripsContract.EXTRA_TRIPS, trips);
+        result.putParcelableArrayList(TripsContract.EXTRA_STOPS, stops);
+        if (more)
+            result.putLong(TripsContract.EXTRA_AFTER_TRIP_ID, trips.get(trips.size() - 1).getAsLong(TripEntry._ID));
+        return result;
+    }
+
+    /**
+     * @param date A yyyy-MM-dd date, or null for no bound.
+     * @return The selection with dayColumn compared against the date's epoch day.
+     */
+    private static String appendDayBound(String selection, String dayColumn, String operator, String date) {
+        if (date == null)
+            return selection;
+        int epochDay = EpochDays.parse(date);
+        if (epochDay == EpochDays.INVALID)
+            throw new IllegalArgumentException("Invalid date " + date);
+        return selection + " AND " + dayColumn + operator + epochDay;
+    }
+
+    /**
+     * Copies the cursor's current row, keeping each value's type
+     * ({@link DatabaseUtils#cursorRowToContentValues} turns them all into text).
+     */
+    private static ContentValues rowValues(Cursor cursor) {
+        ContentValues values = new ContentValues(cursor.getColumnCount());
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            String column = cursor.getColumnName(i);
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    values.putNull(column);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values.put(column, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values.put(column, cursor.getDouble(i));
+                    break;
+                default:
+                    values.put(column, cursor.getString(i));
+                    break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Totals every profile's trips with one query per {@link TripsDbHelper#MAX_ATTACHED} profiles,
+     * over their databases attached side by side.
+     *
+     * @see TripsContract#METHOD_PROFILE_TOTALS
+     */
+    private Bundle queryProfileTotals() {
+        Context context = getContext();
+        //noinspection ConstantConditions
+        List<String> profiles = TripsDbHelper.listProfiles(context);
+        long[] tripCounts = new long[profiles.size()];
+        long[] miles = new long[profiles.size()];
+        for (int start = 0; start < profiles.size(); start += TripsDbHelper.MAX_ATTACHED) {
+            List<String> shard = profiles.subList(start, Math.min(profiles.size(), start + TripsDbHelper.MAX_ATTACHED));
+            SQLiteDatabase report = TripsDbHelper.openReport(context, shard);
+            try {
+                Cursor cursor = report.rawQuery("SELECT " + TripsDbHelper.REPORT_PROFILE_INDEX + ", COUNT(*), "
+                        + "TOTAL(CASE WHEN " + TripEntry.COLUMN_STATE + " IN (" + STATE_CLOSED + "," + STATE_SUBMITTED + ") THEN "
+                        + TripEntry.COLUMN_HUB_END + " - " + TripEntry.COLUMN_HUB_INITIAL + " END)"
+                        + " FROM " + TripsDbHelper.REPORT_TRIPS + " GROUP BY " + TripsDbHelper.REPORT_PROFILE_INDEX, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        tripCounts[start + cursor.getInt(0)] = cursor.getLong(1);
+                        miles[start + cursor.getInt(0)] = cursor.getLong(2);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                report.close();
+            }
+        }
+        Bundle result = new Bundle();
+        result.putStringArray(TripsContract.EXTRA_PROFILES, profiles.toArray(new String[profiles.size()]));
+        result.putLongArray(TripsContract.EXTRA_TRIP_COUNTS, tripCounts);
+        result.putLongArray(TripsContract.EXTRA_MILES, miles);
+        return result;
+    }
+
+    /**
+     * Inserts or updates trips by trip_number, and reconciles their stops by (trip_number, stop_index),
+     * in one transaction. Rows whose stored values already match are left alone, so re-sending a
+     * pack that is already here costs a couple of index lookups and no writes.
+     *
+     * @see TripsContract#METHOD_UPSERT_PACKS
+     */
+    private Bundle upsertPacks(TripsDbHelper helper, List<ContentValues> trips, List<ContentValues> stops) {
+        // Group the stops by trip. Row ids are this database's own, rows read from another one keep theirs
+        Map<String, List<ContentValues>> stopsByTrip = new HashMap<>();
+        for (ContentValues stop : stops) {
+            stop.remove(StopEntry._ID);
+            String tripNumber = stop.getAsString(StopEntry.COLUMN_TRIP_NUMBER);
+            List<ContentValues> tripStops = stopsByTrip.get(tripNumber);
+            if (tripStops == null) {
+                tripStops = new ArrayList<>();
+                stopsByTrip.put(tripNumber, tripStops);
+            }
+            tripStops.add(stop);
+        }
+        // A stop whose trip isn't in the pack would be neither written nor counted
+        Set<String> tripNumbers = new HashSet<>();
+        for (ContentValues trip : trips)
+            tripNumbers.add(trip.getAsString(TripEntry.COLUMN_TRIP_NUMBER));
+        for (String tripNumber : stopsByTrip.keySet())
+            if (!tripNumbers.contains(tripNumber))
+                throw new IllegalArgumentException("Stops of trip " + tripNumber + " without the trip");
+
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        int rejected = 0;
+        long[] changedTripIds = new long[trips.size()];
+        int changedTrips = 0;
+        LocationDictionary locations = helper.getLocations();
+        SQLiteDatabase database = helper.getWritableDatabase();
+        database.beginTransactionWithListener(locations);
+        try {
+            for (ContentValues trip : trips) {
+                trip.remove(TripEntry._ID);
+                normalizeValues(ITEMS, trip);
+                String tripNumber = trip.getAsString(TripEntry.COLUMN_TRIP_NUMBER);
+                List<ContentValues> tripStops = stopsByTrip.get(tripNumber);
+                if (!validateFields(null, trip) || tripNumber == null || !validateStops(tripStops)) {
+                    rejected++;
+                    continue;
+                }
+
+                // A trip sent again while it is soft deleted is restored, its number is still taken
+                trip.putNull(TripEntry.COLUMN_DELETED_AT);
+                long tripId = findId(database, TripEntry.TABLE_NAME, TripEntry.COLUMN_TRIP_NUMBER + "=?", tripNumber);
+                boolean isNew = tripId == -1;
+                boolean tripChanged;
+                if (isNew) {
+                    tripId = database.insertWithOnConflict(TripEntry.TABLE_NAME, null, trip, SQLiteDatabase.CONFLICT_IGNORE);
+                    if (tripId == -1) {
+                        rejected++;
+                        continue;
+                    }
+                    HubContinuity.refreshTripsAround(database, tripId, -1);
+                    tripChanged = true;
+                } else {
+                    long oldSuccessor = HubContinuity.tripSuccessor(database, tripId);
+                    tripChanged = updateIfChanged(database, TripEntry.TABLE_NAME, trip, tripId);
+                    if (tripChanged)
+                        HubContinuity.refreshTripsAround(database, tripId, oldSuccessor);
+                }
+
+                if (tripChanged)
+                    changedTripIds[changedTrips++] = tripId;
+
+                boolean stopsChanged = tripStops != null && reconcileStops(database, locations, tripNumber, tripStops);
+                if (stopsChanged)
+                    HubContinuity.refreshTripStops(database, tripNumber);
+
+                if (isNew)
+                    inserted++;
+                else if (tripChanged || stopsChanged)
+                    updated++;
+                else
+                    unchanged++;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (inserted + updated > 0) {
+            helper.getTripIndex().refresh(Arrays.copyOf(changedTripIds, changedTrips));
+            notifyTableChange(helper, TripEntry.TABLE_NAME, TripEntry.CONTENT_URI);
+            notifyTableChange(helper, StopEntry.TABLE_NAME, StopEntry.CONTENT_URI);
+            notifyAnomaliesChange(helper);
+        }
+        Bundle result = new Bundle();
+        result.putInt(TripsContract.EXTRA_INSERTED, inserted);
+        result.putInt(TripsContract.EXTRA_UPDATED, updated);
+        result.putInt(TripsContract.EXTRA_UNCHANGED, unchanged);
+        result.putInt(TripsContract.EXTRA_REJECTED, rejected);
+        return result;
+    }
+
+    /**
+     * Normalizes and validates a trip's incoming stops, all of them must pass.
+     */
+    private static boolean validateStops(List<ContentValues> stops) {
+        if (stops == null)
+            return true;
+        for (ContentValues stop : stops) {
+            normalizeValues(STOPS, stop);
+            if (!validateFields(null, stop) || stop.getAsLong(StopEntry.COLUMN_SORT_INDEX) == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Makes the stored stops of a trip match the given ones, matched on stop_index.
+     *
+     * @return true if any stop was written or removed.
+     */
+    private static boolean reconcileStops(SQLiteDatabase database, LocationDictionary locations, String tripNumber,
+                                          List<ContentValues> stops) {
+        boolean changed = false;
+        StringBuilder keep = new StringBuilder();
+        for (ContentValues stop : stops) {
+            String sortIndex = stop.getAsString(StopEntry.COLUMN_SORT_INDEX);
+            keep.append(keep.length() == 0 ? "" : ",").append(stop.getAsLong(StopEntry.COLUMN_SORT_INDEX));
+            // Compared and stored by location_id
+            locations.internValues(database, stop);
+            long stopId = findId(database, StopEntry.TABLE_NAME,
+                    StopEntry.COLUMN_TRIP_NUMBER + "=? AND " + StopEntry.COLUMN_SORT_INDEX + "=?", tripNumber, sortIndex);
+            if (stopId == -1)
+                changed |= database.insertWithOnConflict(StopEntry.TABLE_NAME, null, stop, SQLiteDatabase.CONFLICT_IGNORE) != -1;
+            else
+                changed |= updateIfChanged(database, StopEntry.TABLE_NAME, stop, stopId);
+        }
+        changed |= database.delete(StopEntry.TABLE_NAME, StopEntry.COLUMN_TRIP_NUMBER + "=? AND "
+                + StopEntry.COLUMN_SORT_INDEX + " NOT IN (" + keep + ")", new String[]{tripNumber}) > 0;
+        return changed;
+    }
+
+    /**
+     * @return The _ID of the row matching the selection (expected to be a unique key), or -1.
+     */
+    private static long findId(SQLiteDatabase database, String table, String selection, String... selectionArgs) {
+        Cursor cursor = database.query(table, new String[]{BaseColumns._ID}, selection, selectionArgs, null, null, null, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Updates a row only where a stored value differs from the new one, so an identical
+     * re-send does not write (or grow the WAL) at all.
+     *
+     * @return true if the row was changed.
+     */
+    private static boolean updateIfChanged(SQLiteDatabase database, String table, ContentValues values, long id) {
+        StringBuilder selection = new StringBuilder(BaseColumns._ID + "=? AND (0");
+        List<String> selectionArgs = new ArrayList<>();
+        selectionArgs.add(String.valueOf(id));
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            if (entry.getValue() == null) {
+                selection.append(" OR ").append(entry.getKey()).append(" IS NOT NULL");
+            } else {
+                selection.append(" OR ").append(entry.getKey()).append(" IS NOT ?");
+                selectionArgs.add(entry.getValue().toString());
+            }
+        }
+        selection.append(")");
+        return database.update(table, values, selection.toString(), selectionArgs.toArray(new String[selectionArgs.size()])) > 0;
+    }
+
+    /**
+     * Moves a stop within its trip by giving it a {@link StopEntry#COLUMN_SORT_INDEX} between its new
+     * neighbours. Only the moved row is written, unless the neighbours have no gap left between them,
+     * in which case the trip's stops are spaced out again first.
+     *
+     * @param stopId      _ID of the stop to move.
+     * @param afterStopId _ID of the stop it should follow, or 0 to make it the first stop.
+     * @return Bundle holding the new sort index under {@link TripsContract#EXTRA_SORT_INDEX}.
+     */
+    private Bundle moveStop(TripsDbHelper helper, long stopId, long afterStopId) {
+        SQLiteDatabase database = helper.getWritableDatabase();
+        long sortIndex;
+        boolean crowded;
+        String tripNumber;
+        database.beginTransaction();
+        try {
+            tripNumber = DatabaseUtils.stringForQuery(database, "SELECT " + StopEntry.COLUMN_TRIP_NUMBER
+                    + " FROM " + StopEntry.TABLE_NAME + " WHERE " + StopEntry._ID + "=?", new String[]{String.valueOf(stopId)});
+            long[] neighbours = findStopNeighbours(database, tripNumber, stopId, afterStopId);
+            if (neighbours[1] - neighbours[0] < 2) {
+                rebalanceStops(database, tripNumber);
+                neighbours = findStopNeighbours(database, tripNumber, stopId, afterStopId);
+            }
+            sortIndex = neighbours[0] + (neighbours[1] - neighbours[0]) / 2;
+            crowded = neighbours[1] - neighbours[0] < 8;
+
+            long oldSuccessor = HubContinuity.stopSuccessor(database, stopId);
+            ContentValues values = new ContentValues();
+            values.put(StopEntry.COLUMN_SORT_INDEX, sortIndex);
+            database.update(StopEntry.TABLE_NAME, values, StopEntry._ID + "=?", new String[]{String.valueOf(stopId)});
+            HubContinuity.refreshStopsAround(database, stopId, oldSuccessor);
+            database.setTransactionSuccessful();
+        } catch (SQLiteDoneException e) {
+            throw new IllegalArgumentException(String.format("Cannot move stop %d after stop %d", stopId, afterStopId));
+        } finally {
+            database.endTransaction();
+        }
+
+        // Space the trip out again before the next move runs out of room
+        if (crowded)
+            scheduleRebalance(helper.getProfile(), tripNumber);
+
+        notifyTableChange(helper, StopEntry.TABLE_NAME, StopEntry.CONTENT_URI);
+        notifyAnomaliesChange(helper);
+        Bundle result = new Bundle();
+        result.putLong(TripsContract.EXTRA_SORT_INDEX, sortIndex);
+        return result;
+    }
+
+    /**
+     * Finds the sort indexes either side of the new position, using the (trip_number, stop_index) index.
+     * A missing neighbour is reported one {@link StopEntry#RANK_GAP} beyond the other one.
+     *
+     * @return {before, after}
+     */
+    private static long[] findStopNeighbours(SQLiteDatabase database, String tripNumber, long stopId, long afterStopId) {
+        String[] args;
+        Long before = null;
+        if (afterStopId != 0) {
+            before = DatabaseUtils.longForQuery(database, "SELECT " + StopEntry.COLUMN_SORT_INDEX + " FROM " + StopEntry.TABLE_NAME
+                            + " WHERE " + StopEntry._ID + "=? AND " + StopEntry.COLUMN_TRIP_NUMBER + "=?",
+                    new String[]{String.valueOf(afterStopId), tripNumber});
+            args = new String[]{tripNumber, String.valueOf(stopId), String.valueOf(before)};
+        } else {
+            args = new String[]{tripNumber, String.valueOf(stopId)};
+        }
+
+        Cursor cursor = database.query(StopEntry.TABLE_NAME, new String[]{StopEntry.COLUMN_SORT_INDEX},
+                StopEntry.COLUMN_TRIP_NUMBER + "=? AND " + StopEntry._ID + "<>?"
+                        + (before != null ? " AND " + StopEntry.COLUMN_SORT_INDEX + ">?" : ""),
+                args, null, null, StopEntry.COLUMN_SORT_INDEX, "1");
+        Long after = null;
+        try {
+            if (cursor.moveToFirst())
+                after = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+
+        if (before == null && after == null)
+            return new long[]{0, 2 * StopEntry.RANK_GAP};
+        if (before == null)
+            return new long[]{after - 2 * StopEntry.RANK_GAP, after};
+        if (after == null)
+            return new long[]{before, before + 2 * StopEntry.RANK_GAP};
+        return new long[]{before, after};
+    }
+
+    /**
+     * Rewrites the sort indexes of a trip's stops {@link StopEntry#RANK_GAP} apart, keeping their order.
+     */
+    private static void rebalanceStops(SQLiteDatabase database, String tripNumber) {
+        String[] tripArg = new String[]{tripNumber};
+        Cursor cursor = database.query(StopEntry.TABLE_NAME, new String[]{StopEntry._ID, StopEntry.COLUMN_SORT_INDEX},
+                StopEntry.COLUMN_TRIP_NUMBER + "=?", tripArg, null, null, StopEntry.COLUMN_SORT_INDEX);
+        long[] ids;
+        long lowest;
+        long highest;
+        try {
+            if (!cursor.moveToLast())
+                return;
+            highest = cursor.getLong(1);
+            ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToPosition(i); i++)
+                ids[i] = cursor.getLong(0);
+            cursor.moveToFirst();
+            lowest = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        // (trip_number, stop_index) is unique, so first shift the trip's stops clear of both
+        // the old and the new values, then give them their new values
+        long shift = Math.max(highest, (long) ids.length * StopEntry.RANK_GAP) - lowest + 1;
+        database.execSQL("UPDATE " + StopEntry.TABLE_NAME + " SET " + StopEntry.COLUMN_SORT_INDEX + " = "
+                + StopEntry.COLUMN_SORT_INDEX + " + ? WHERE " + StopEntry.COLUMN_TRIP_NUMBER + "=?", new Object[]{shift, tripNumber});
+        ContentValues values = new ContentValues();
+        String[] idArg = new String[1];
+        for (int i = 0; i < ids.length; i++) {
+            values.put(StopEntry.COLUMN_SORT_INDEX, (long) (i + 1) * StopEntry.RANK_GAP);
+            idArg[0] = String.valueOf(ids[i]);
+            database.update(StopEntry.TABLE_NAME, values, StopEntry._ID + "=?", idArg);
+        }
+    }
+
+    private void scheduleRebalance(final String profile, final String tripNumber) {
+        BACKGROUND.execute(new Runnable() {
+            @Override
+            public void run() {
+                //noinspection ConstantConditions
+                TripsDbHelper helper = TripsDbHelper.acquire(getContext(), profile);
+                try {
+                    SQLiteDatabase database = helper.getWritableDatabase();
+                    database.beginTransaction();
+                    try {
+                        rebalanceStops(database, tripNumber);
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                    }
+                    notifyTableChange(helper, StopEntry.TABLE_NAME, StopEntry.CONTENT_URI);
+                } finally {
+                    helper.release();
+                }
+            }
+        });
     }
 
     @Override
@@ -357,13 +2192,26 @@ public class TripsProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case ITEMS:
+            case ITEMS_BY_STATE:
+            case ACTIVE_ITEMS:
                 return TripEntry.CONTENT_LIST_TYPE;
             case ITEM_ID:
                 return TripEntry.CONTENT_ITEM_TYPE;
+            case ITEM_STOPS:
+                return StopEntry.CONTENT_LIST_TYPE;
             case STOPS:
                 return StopEntry.CONTENT_LIST_TYPE;
             case STOP_ID:
                 return StopEntry.CONTENT_ITEM_TYPE;
+            case STOPS_NEAREST:
+            case STOPS_WITHIN:
+                return StopEntry.CONTENT_LIST_TYPE;
+            case ANOMALIES:
+                return AnomalyEntry.CONTENT_LIST_TYPE;
+            case LOCATIONS:
+                return LocationEntry.CONTENT_LIST_TYPE;
+            case TELEMETRY:
+                return TelemetryEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException(String.format("Unknown URI %s with match %d", uri, match));
         }
@@ -1,14 +1,19 @@
 package com.crystaltowerdesigns.mytrippacks.data;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.support.annotation.Nullable;
 import android.widget.Toast;
 
 import com.crystaltowerdesigns.mytrippacks.R;
+import com.crystaltowerdesigns.mytrippacks.storage.ParallelRows;
+import com.crystaltowerdesigns.mytrippacks.storage.TripRules;
+import com.crystaltowerdesigns.mytrippacks.storage.TripSchema;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Validation {
     public final static int NOT_NULL = 1;
@@ -18,6 +23,13 @@ public class Validation {
     public final static int IS_DATE = 5;
     public final static int IS_POSITIVE = 6; // IS_POSITIVE returns TRUE if >= 0
 
+    /**
+     * Checks one row for {@link #validateRows(List, RowValidator)}.
+     * Called from several threads at once, each row on one of them. It may change the row it is given.
+     */
+    public interface RowValidator extends ParallelRows.Check<ContentValues> {
+    }
+
     // Constructor to prevent accidentally instantiating the Validation class
     private Validation() {
         throw new AssertionError("No instances for you!");
@@ -119,26 +131,7 @@ public class Validation {
      * @return boolean result as to whether or not it was a valid date.
      */
     private static boolean isValidDate(String value) {
-        if (value != null) {
-            try {
-                SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd");
-                Date date;
-                date = fmt.parse(value);
-            } catch (Exception e) {
-                return false;
-            }
-            String yearString = value.substring(0, 4);
-            String monthString = value.substring(5, 7);
-            String dayString = value.substring(8, 10);
-            Calendar calendar = Calendar.getInstance();
-            try {
-                calendar.set(Integer.parseInt(yearString), Integer.parseInt(monthString), Integer.parseInt(dayString));
-            } catch (Exception e) {
-                return false;
-            }
-            return true;
-        }
-        return false;
+        return EpochDays.parse(value) != EpochDays.INVALID;
     }
 
     /**
@@ -184,5 +177,100 @@ public class Validation {
         return result;
     }
 
+    /**
+     * Checks a batch of rows across a small worker pool, for large imports, see {@link ParallelRows}.
+     * <p>
+     * No toasts are shown, the validator should check without a toast context.
+     *
+     * @param rows      The rows to check.
+     * @param validator Checks a single row.
+     * @return One result per row, in the order of the rows.
+     */
+    public static boolean[] validateRows(List<ContentValues> rows, RowValidator validator) {
+        return ParallelRows.check(rows, validator);
+    }
+
+    /**
+     * @see #validateRows(List, RowValidator)
+     */
+    public static boolean[] validateRows(ContentValues[] rows, RowValidator validator) {
+        List<ContentValues> list = new ArrayList<>(rows.length);
+        for (ContentValues row : rows)
+            list.add(row);
+        return validateRows(list, validator);
+    }
+
+    /**
+     * Method fills in the columns kept in step with others, see {@link TripRules#normalize(String, Map)}.
+     *
+     * @param table  {@link TripSchema#TRIPS} or {@link TripSchema#STOPS}.
+     * @param values ContentValues containing the row, changed in place.
+     */
+    public static void normalizeRow(String table, ContentValues values) {
+        Map<String, Object> row = asMap(values);
+        TripRules.normalize(table, row);
+        putChanged(values, row);
+    }
 
+    /**
+     * Method normalizes and checks a row the way a bulk insert does ahead of its transaction, see
+     * {@link TripRules#check(String, Map)}. No toasts are shown, it runs on the worker pool.
+     *
+     * @param table  {@link TripSchema#TRIPS} or {@link TripSchema#STOPS}.
+     * @param values ContentValues containing the row, normalized in place.
+     * @return true if the row is to be written.
+     */
+    public static boolean checkRow(String table, ContentValues values) {
+        Map<String, Object> row = asMap(values);
+        boolean result = TripRules.check(table, row);
+        putChanged(values, row);
+        return result;
+    }
+
+    private static void putChanged(ContentValues values, Map<String, Object> row) {
+        // Only the maintained columns change, the rest keep the types they were given in
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            Object value = entry.getValue();
+            Object given = values.get(entry.getKey());
+            if (!values.containsKey(entry.getKey()) || (value == null ? given != null : !value.equals(given)))
+                put(values, entry.getKey(), value);
+        }
+    }
+
+    /**
+     * Method to be used for trip and stop validation, by the rules of {@link TripRules} so the
+     * desktop store accepts and rejects the same rows.
+     * <p>
+     * A toast naming the first invalid field will be shown if toastContext isn't null.
+     *
+     * @param toastContext Context used for toasts. If toastContext is null then no Toast is shown.
+     * @param values       ContentValues containing the fields and values to validate.
+     * @return A boolean value containing the results of the check(s).
+     */
+    public static boolean isValidRow(@Nullable Context toastContext, ContentValues values) {
+        String invalidColumn = TripRules.invalidColumn(asMap(values));
+        if (toastContext != null && invalidColumn != null)
+            Toast.makeText(toastContext, String.format(toastContext.getString(R.string.invalid_field_value_format), invalidColumn.toUpperCase()), Toast.LENGTH_SHORT).show();
+        return invalidColumn == null;
+    }
+
+    private static Map<String, Object> asMap(ContentValues values) {
+        Map<String, Object> row = new HashMap<>(values.size() * 2);
+        for (Map.Entry<String, Object> entry : values.valueSet())
+            row.put(entry.getKey(), entry.getValue());
+        return row;
+    }
+
+    private static void put(ContentValues values, String column, Object value) {
+        if (value == null)
+            values.putNull(column);
+        else if (value instanceof Integer)
+            values.put(column, (Integer) value);
+        else if (value instanceof Long)
+            values.put(column, (Long) value);
+        else if (value instanceof Double)
+            values.put(column, (Double) value);
+        else
+            values.put(column, value.toString());
+    }
 }
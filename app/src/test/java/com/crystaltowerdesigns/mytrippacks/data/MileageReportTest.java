@@ -0,0 +1,181 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import com.crystaltowerdesigns.mytrippacks.data.TripsContract.TripEntry;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MileageReportTest {
+
+    private static final int[] STATES = {TripEntry.STATE_ASSIGNED, TripEntry.STATE_OPEN,
+            TripEntry.STATE_CLOSED, TripEntry.STATE_SUBMITTED};
+
+    @Test
+    public void weeksMatchABruteForceTotal() {
+        check(MileageReport.WEEK, 41);
+    }
+
+    @Test
+    public void monthsMatchABruteForceTotal() {
+        check(MileageReport.MONTH, 42);
+    }
+
+    @Test
+    public void csvQuotesFieldsWithSeparators() throws IOException {
+        MileageReport report = new MileageReport(MileageReport.WEEK);
+        for (int i = 0; i < 10; i++)
+            report.add(17000, String.valueOf(i), TripEntry.STATE_CLOSED, 0, 100, 1, 100);
+        report.add(17000, "7,\"A\"", TripEntry.STATE_CLOSED, 0, 1100, 1, 1100);
+        StringBuilder csv = new StringBuilder();
+        MileageReport.writeCsv(report.periods(), csv);
+        String[] lines = csv.toString().split("\r\n", -1);
+        assertEquals(3, lines.length);
+        assertEquals("", lines[2]);
+        assertTrue(lines[1], lines[1].endsWith(",11,11,2100,190.9,301.5,100,1100,0,0,\"7,\"\"A\"\":1100\""));
+    }
+
+    /**
+     * Adds random trips, a few of them far too long or short, in random order, and compares every
+     * period with totals worked out in two passes over all of its trips.
+     */
+    private static void check(int period, long seed) {
+        Random random = new Random(seed);
+        MileageReport report = new MileageReport(period);
+        TreeMap<Integer, List<long[]>> byPeriod = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            int receivedDay = 17000 + random.nextInt(400);
+            int state = STATES[random.nextInt(STATES.length)];
+            long hubStart = random.nextInt(500000);
+            long miles = random.nextInt(50) == 0 ? random.nextInt(3000) : 300 + random.nextInt(200);
+            int stopCount = random.nextInt(6);
+            long lastArrivalHub = hubStart + random.nextInt(600) - 100;
+            report.add(receivedDay, String.valueOf(i), state, hubStart, hubStart + miles, stopCount, lastArrivalHub);
+
+            int start = periodStart(period, receivedDay);
+            if (!byPeriod.containsKey(start))
+                byPeriod.put(start, new ArrayList<long[]>());
+            byPeriod.get(start).add(new long[]{i, state, miles, stopCount, lastArrivalHub - hubStart});
+        }
+
+        List<MileageReport.Period> periods = report.periods();
+        assertEquals(byPeriod.size(), periods.size());
+        int p = 0;
+        int outliers = 0;
+        for (int start : byPeriod.keySet()) {
+            checkPeriod(period, start, byPeriod.get(start), periods.get(p));
+            outliers += periods.get(p++).outliers.size();
+        }
+        assertTrue(outliers > 0);
+    }
+
+    private static void checkPeriod(int period, int start, List<long[]> trips, MileageReport.Period actual) {
+        List<long[]> paid = new ArrayList<>();
+        int stops = 0;
+        long miles = 0;
+        int openTrips = 0;
+        long openMiles = 0;
+        for (long[] trip : trips) {
+            if (trip[1] == TripEntry.STATE_CLOSED || trip[1] == TripEntry.STATE_SUBMITTED) {
+                paid.add(trip);
+                stops += trip[3];
+                miles += trip[2];
+            } else {
+                openTrips++;
+                if (trip[3] > 0 && trip[4] > 0)
+                    openMiles += trip[4];
+            }
+        }
+        double mean = paid.isEmpty() ? 0 : (double) miles / paid.size();
+        double squares = 0;
+        long minMiles = Long.MAX_VALUE;
+        long maxMiles = Long.MIN_VALUE;
+        for (long[] trip : paid) {
+            squares += (trip[2] - mean) * (trip[2] - mean);
+            minMiles = Math.min(minMiles, trip[2]);
+            maxMiles = Math.max(maxMiles, trip[2]);
+        }
+        double stdDev = paid.size() > 1 ? Math.sqrt(squares / (paid.size() - 1)) : 0;
+
+        assertEquals(start, actual.startDay);
+        assertEquals(periodStart(period, actual.endDay), actual.endDay);
+        assertEquals(period == MileageReport.WEEK ? 7 : daysInMonth(start), actual.endDay - actual.startDay);
+        assertEquals(paid.size(), actual.trips);
+        assertEquals(stops, actual.stops);
+        assertEquals(miles, actual.miles);
+        assertEquals(mean, actual.meanMiles, 1e-6);
+        assertEquals(stdDev, actual.stdDevMiles, 1e-6);
+        assertEquals(paid.isEmpty() ? 0 : minMiles, actual.minMiles);
+        assertEquals(paid.isEmpty() ? 0 : maxMiles, actual.maxMiles);
+        assertEquals(openTrips, actual.openTrips);
+        assertEquals(openMiles, actual.openMiles);
+
+        // At most three either side, longest first, then the shortest ones shortest last
+        List<String> outliers = new ArrayList<>();
+        if (paid.size() >= 8 && stdDev > 0) {
+            List<long[]> byMiles = new ArrayList<>(paid);
+            sortByMiles(byMiles, true);
+            for (int i = 0; i < Math.min(3, byMiles.size()); i++)
+                if (Math.abs((byMiles.get(i)[2] - mean) / stdDev) > 3)
+                    outliers.add(byMiles.get(i)[0] + ":" + byMiles.get(i)[2]);
+            sortByMiles(byMiles, false);
+            for (int i = Math.min(3, byMiles.size()) - 1; i >= 0; i--)
+                if (Math.abs((byMiles.get(i)[2] - mean) / stdDev) > 3)
+                    outliers.add(byMiles.get(i)[0] + ":" + byMiles.get(i)[2]);
+        }
+        List<String> actualOutliers = new ArrayList<>();
+        for (MileageReport.Outlier outlier : actual.outliers) {
+            actualOutliers.add(outlier.tripNumber + ":" + outlier.miles);
+            assertEquals((outlier.miles - mean) / stdDev, outlier.sigmas, 1e-6);
+        }
+        assertEquals(outliers, actualOutliers);
+    }
+
+    /**
+     * Stable, so trips of equal miles keep the order they were added in.
+     */
+    private static void sortByMiles(List<long[]> trips, final boolean longestFirst) {
+        Collections.sort(trips, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return longestFirst ? Long.compare(b[2], a[2]) : Long.compare(a[2], b[2]);
+            }
+        });
+    }
+
+    /**
+     * @return The epoch day of the Monday or the first of the month on or before the day, by the calendar.
+     */
+    private static int periodStart(int period, int epochDay) {
+        Calendar calendar = utcDay(epochDay);
+        if (period == MileageReport.WEEK) {
+            while (calendar.get(Calendar.DAY_OF_WEEK) != Calendar.MONDAY)
+                calendar.add(Calendar.DAY_OF_MONTH, -1);
+        } else {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        return (int) (calendar.getTimeInMillis() / 86400000L);
+    }
+
+    private static int daysInMonth(int epochDay) {
+        return utcDay(epochDay).getActualMaximum(Calendar.DAY_OF_MONTH);
+    }
+
+    private static Calendar utcDay(int epochDay) {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(epochDay * 86400000L);
+        return calendar;
+    }
+}
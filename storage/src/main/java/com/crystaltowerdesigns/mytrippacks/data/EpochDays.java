@@ -0,0 +1,149 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+/**
+ * Conversion between the contract's yyyy-MM-dd date text and epoch days
+ * (the number of days since 1970-01-01), which is how dates are indexed in the database.
+ * <p>
+ * Pure arithmetic, no {@link java.text.SimpleDateFormat} or {@link java.util.Calendar},
+ * so it is cheap enough to run on every write.
+ */
+public final class EpochDays {
+
+    /**
+     * Returned by {@link #parse(String)} when the text is not a valid yyyy-MM-dd date.
+     */
+    public static final int INVALID = Integer.MIN_VALUE;
+
+    // Constructor to prevent accidentally instantiating the EpochDays class
+    private EpochDays() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    /**
+     * Parse a yyyy-MM-dd date.
+     *
+     * @param value String containing the date, for instance 2018-01-31.
+     * @return The epoch day of the date, or {@link #INVALID} if the text is not a real date.
+     */
+    public static int parse(String value) {
+        if (value == null || value.length() != 10 || value.charAt(4) != '-' || value.charAt(7) != '-')
+            return INVALID;
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 7);
+        int day = digits(value, 8, 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month))
+            return INVALID;
+        return fromCivil(year, month, day);
+    }
+
+    /**
+     * Format an epoch day as yyyy-MM-dd.
+     *
+     * @param epochDay Days since 1970-01-01.
+     * @return String containing the date.
+     */
+    public static String format(int epochDay) {
+        int[] civil = toCivil(epochDay);
+        int year = civil[0];
+        int month = civil[1];
+        int day = civil[2];
+
+        char[] text = new char[10];
+        text[0] = (char) ('0' + year / 1000 % 10);
+        text[1] = (char) ('0' + year / 100 % 10);
+        text[2] = (char) ('0' + year / 10 % 10);
+        text[3] = (char) ('0' + year % 10);
+        text[4] = '-';
+        text[5] = (char) ('0' + month / 10);
+        text[6] = (char) ('0' + month % 10);
+        text[7] = '-';
+        text[8] = (char) ('0' + day / 10);
+        text[9] = (char) ('0' + day % 10);
+        return new String(text);
+    }
+
+    /**
+     * @param epochDay Days since 1970-01-01.
+     * @return The epoch day of the first of that month.
+     */
+    public static int startOfMonth(int epochDay) {
+        int[] civil = toCivil(epochDay);
+        return fromCivil(civil[0], civil[1], 1);
+    }
+
+    /**
+     * @param epochDay Days since 1970-01-01.
+     * @return The epoch day of the first of the following month.
+     */
+    public static int startOfNextMonth(int epochDay) {
+        int[] civil = toCivil(epochDay);
+        return civil[1] == 12 ? fromCivil(civil[0] + 1, 1, 1) : fromCivil(civil[0], civil[1] + 1, 1);
+    }
+
+    /**
+     * @param epochDay Days since 1970-01-01.
+     * @return The epoch day of the Monday on or before it.
+     */
+    public static int startOfWeek(int epochDay) {
+        // 1970-01-01 was a Thursday
+        return epochDay - ((epochDay + 3) % 7 + 7) % 7;
+    }
+
+    /**
+     * Civil-from-days, see http://howardhinnant.github.io/date_algorithms.html
+     *
+     * @return {year, month (1-12), day of month}
+     */
+    private static int[] toCivil(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return new int[]{year, month, day};
+    }
+
+    /**
+     * Days-from-civil, see http://howardhinnant.github.io/date_algorithms.html
+     *
+     * @return The epoch day for the given year, month (1-12) and day of month.
+     */
+    public static int fromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    // Returns -1 if any character in the range is not a digit
+    private static int digits(String value, int start, int end) {
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
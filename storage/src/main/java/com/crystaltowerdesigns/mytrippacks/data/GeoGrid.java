@@ -0,0 +1,138 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+/**
+ * Fixed grid over the globe, used to index the stop coordinates.
+ * <p>
+ * Cells are {@link #CELL_DEGREES} square and numbered row by row from the south west corner, so the
+ * cells of one row in a longitude range form one contiguous range of cell numbers. An area is then
+ * searched with one indexed BETWEEN per row. Plain Java, so it can be exercised off the device.
+ */
+public final class GeoGrid {
+
+    /**
+     * Cell size, about 1.1km north to south.
+     */
+    public static final double CELL_DEGREES = 0.01;
+
+    private static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+    private static final int COLUMNS = (int) Math.round(360 / CELL_DEGREES);
+
+    /**
+     * Mean earth radius used by {@link #distanceMeters(double, double, double, double)}.
+     */
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    private static final double CELL_HEIGHT_METERS = Math.toRadians(CELL_DEGREES) * EARTH_RADIUS_METERS;
+
+    // Constructor to prevent accidentally instantiating the GeoGrid class
+    private GeoGrid() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    /**
+     * @return true if the coordinates are a valid position.
+     */
+    public static boolean isValid(double latitude, double longitude) {
+        return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+    }
+
+    /**
+     * @return The number of the cell holding the position.
+     */
+    public static long cell(double latitude, double longitude) {
+        return (long) row(latitude) * COLUMNS + column(longitude);
+    }
+
+    /**
+     * The cells in a latitude/longitude box, the box may not cross the 180th meridian.
+     *
+     * @return Pairs of first and last cell numbers, {first, last, first, last...}, one pair per row.
+     */
+    public static long[] boxRanges(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        int firstRow = row(minLatitude);
+        int lastRow = row(maxLatitude);
+        int firstColumn = column(minLongitude);
+        int lastColumn = column(maxLongitude);
+        long[] ranges = new long[2 * (lastRow - firstRow + 1)];
+        for (int row = firstRow, i = 0; row <= lastRow; row++, i += 2) {
+            ranges[i] = (long) row * COLUMNS + firstColumn;
+            ranges[i + 1] = (long) row * COLUMNS + lastColumn;
+        }
+        return ranges;
+    }
+
+    /**
+     * The cells within {@code rings} cells of the position's own cell, the square around it.
+     * Columns wrap around at the 180th meridian, so a row may take two ranges.
+     *
+     * @return Pairs of first and last cell numbers, {first, last, first, last...}.
+     */
+    public static long[] squareRanges(double latitude, double longitude, int rings) {
+        int firstRow = Math.max(0, row(latitude) - rings);
+        int lastRow = Math.min(ROWS - 1, row(latitude) + rings);
+        int column = column(longitude);
+        int firstColumn = column - rings;
+        int lastColumn = column + rings;
+        boolean wraps = firstColumn < 0 || lastColumn >= COLUMNS;
+        if (2 * rings + 1 >= COLUMNS) {
+            firstColumn = 0;
+            lastColumn = COLUMNS - 1;
+            wraps = false;
+        }
+
+        long[] ranges = new long[(lastRow - firstRow + 1) * (wraps ? 4 : 2)];
+        int i = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            long rowStart = (long) row * COLUMNS;
+            if (!wraps) {
+                ranges[i++] = rowStart + firstColumn;
+                ranges[i++] = rowStart + lastColumn;
+            } else if (firstColumn < 0) {
+                ranges[i++] = rowStart;
+                ranges[i++] = rowStart + lastColumn;
+                ranges[i++] = rowStart + COLUMNS + firstColumn;
+                ranges[i++] = rowStart + COLUMNS - 1;
+            } else {
+                ranges[i++] = rowStart + firstColumn;
+                ranges[i++] = rowStart + COLUMNS - 1;
+                ranges[i++] = rowStart;
+                ranges[i++] = rowStart + lastColumn - COLUMNS;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return The number of rings around the position's cell needed for the square of
+     * {@link #squareRanges(double, double, int)} to hold every point within the distance.
+     */
+    public static int ringsFor(double latitude, double meters) {
+        // Cells narrow towards the poles, size the square by the narrowest row it may reach
+        double reach = Math.min(90, Math.abs(latitude) + Math.toDegrees(meters / EARTH_RADIUS_METERS) + CELL_DEGREES);
+        double cellWidthMeters = CELL_HEIGHT_METERS * Math.cos(Math.toRadians(reach));
+        double cellMeters = Math.min(CELL_HEIGHT_METERS, cellWidthMeters);
+        if (cellMeters <= 0)
+            return COLUMNS;
+        return (int) Math.min(COLUMNS, Math.ceil(meters / cellMeters) + 1);
+    }
+
+    /**
+     * @return The great circle (haversine) distance between two positions.
+     */
+    public static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static int row(double latitude) {
+        return Math.min(ROWS - 1, (int) Math.floor((latitude + 90) / CELL_DEGREES));
+    }
+
+    private static int column(double longitude) {
+        return Math.min(COLUMNS - 1, (int) Math.floor((longitude + 180) / CELL_DEGREES));
+    }
+}
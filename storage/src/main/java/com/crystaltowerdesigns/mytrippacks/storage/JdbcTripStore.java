@@ -0,0 +1,382 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link TripStore} on a JDBC connection to a SQLite database, for running the storage code on a desktop JVM.
+ * <p>
+ * The driver is left to the caller (for instance org.xerial:sqlite-jdbc with a "jdbc:sqlite:trips.db" URL),
+ * so it never ends up in the app. A new database is created with {@link TripSchema}; one made by another
+ * version has to be upgraded on the device first. Calls are serialized, the connection is not shared.
+ */
+public class JdbcTripStore implements TripStore {
+
+    /**
+     * SQLITE_CONSTRAINT, the primary result code of a row breaking a NOT NULL or UNIQUE constraint.
+     * Such a row is rejected (-1) the way SQLiteDatabase.insert() rejects it on the device.
+     */
+    private static final int SQLITE_CONSTRAINT = 19;
+
+    /**
+     * Most prepared statements kept open, one per distinct statement text.
+     */
+    private static final int MAX_STATEMENTS = 64;
+
+    /**
+     * Most locations kept in memory, past this the ids are dropped and looked up again as needed.
+     */
+    private static final int MAX_CACHED_LOCATIONS = 4096;
+
+    /**
+     * The stops with their location text joined back in, as the provider reads them.
+     */
+    private static final String STOPS_WITH_LOCATIONS = TripSchema.STOPS + " JOIN " + TripSchema.LOCATIONS
+            + " USING (" + TripSchema.LOCATION_ID + ")";
+
+    private final Connection mConnection;
+    private final Map<String, PreparedStatement> mStatements = new HashMap<>();
+    private final Map<String, Long> mLocationIds = new HashMap<>();
+
+    /**
+     * @param connection Connection to a new or a {@link TripSchema#VERSION} database, closed by {@link #close()}.
+     * @throws IllegalStateException if the database is of another version.
+     */
+    public JdbcTripStore(Connection connection) {
+        mConnection = connection;
+        try {
+            int version;
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet result = statement.executeQuery("PRAGMA user_version");
+                version = result.next() ? result.getInt(1) : 0;
+            } finally {
+                statement.close();
+            }
+            if (version == 0)
+                createSchema();
+            else if (version != TripSchema.VERSION)
+                throw new IllegalStateException("Database version " + version + ", expected " + TripSchema.VERSION);
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to open the trip database", e);
+        }
+    }
+
+    private void createSchema() throws SQLException {
+        mConnection.setAutoCommit(false);
+        Statement statement = mConnection.createStatement();
+        try {
+            for (String sql : TripSchema.createStatements())
+                statement.execute(sql);
+            statement.execute("PRAGMA user_version = " + TripSchema.VERSION);
+            mConnection.commit();
+        } catch (SQLException e) {
+            mConnection.rollback();
+            throw e;
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public synchronized long insert(String table, Map<String, Object> values) {
+        checkWritable(table);
+        Map<String, Object> row = new LinkedHashMap<>(values);
+        if (!TripRules.check(table, row))
+            return -1;
+        try {
+            long id = insertRow(table, row) ? lastInsertId() : -1;
+            mConnection.commit();
+            return id;
+        } catch (SQLException e) {
+            rollback();
+            throw new IllegalStateException("Unable to insert into " + table, e);
+        }
+    }
+
+    @Override
+    public synchronized int bulkInsert(String table, List<Map<String, Object>> rows) {
+        checkWritable(table);
+        int rowCount = 0;
+        try {
+            for (Map<String, Object> values : rows) {
+                Map<String, Object> row = new LinkedHashMap<>(values);
+                if (TripRules.check(table, row) && insertRow(table, row))
+                    rowCount++;
+            }
+            mConnection.commit();
+        } catch (SQLException e) {
+            rollback();
+            throw new IllegalStateException("Unable to insert into " + table, e);
+        }
+        return rowCount;
+    }
+
+    /**
+     * Inserts one row inside the open transaction. A constraint failure only undoes its own statement.
+     *
+     * @return false if a constraint rejected the row.
+     */
+    private boolean insertRow(String table, Map<String, Object> row) throws SQLException {
+        if (TripSchema.STOPS.equals(table))
+            internLocation(row);
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder parameters = new StringBuilder();
+        for (String column : row.keySet()) {
+            if (parameters.length() > 0) {
+                sql.append(", ");
+                parameters.append(", ");
+            }
+            sql.append(column);
+            parameters.append('?');
+        }
+        sql.append(") VALUES (").append(parameters).append(')');
+
+        PreparedStatement statement = prepare(sql.toString());
+        bind(statement, 1, row.values().toArray());
+        try {
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            if (isConstraintFailure(e))
+                return false;
+            throw e;
+        }
+        return true;
+    }
+
+    private long lastInsertId() throws SQLException {
+        ResultSet result = prepare("SELECT last_insert_rowid()").executeQuery();
+        try {
+            result.next();
+            return result.getLong(1);
+        } finally {
+            result.close();
+        }
+    }
+
+    @Override
+    public synchronized int update(String table, long id, Map<String, Object> values) {
+        checkWritable(table);
+        Map<String, Object> row = new LinkedHashMap<>(values);
+        if (!TripRules.check(table, row))
+            return 0;
+        try {
+            if (TripSchema.STOPS.equals(table))
+                internLocation(row);
+            StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+            boolean first = true;
+            for (String column : row.keySet()) {
+                if (!first)
+                    sql.append(", ");
+                sql.append(column).append("=?");
+                first = false;
+            }
+            sql.append(" WHERE ").append(TripSchema.ID).append("=?");
+
+            PreparedStatement statement = prepare(sql.toString());
+            bind(statement, 1, row.values().toArray());
+            statement.setLong(row.size() + 1, id);
+            int rowCount = statement.executeUpdate();
+            mConnection.commit();
+            return rowCount;
+        } catch (SQLException e) {
+            rollback();
+            throw new IllegalStateException("Unable to update " + table, e);
+        }
+    }
+
+    @Override
+    public synchronized int delete(String table, String selection, String[] selectionArgs) {
+        checkWritable(table);
+        String sql = "DELETE FROM " + table + (selection != null ? " WHERE " + selection : "");
+        try {
+            PreparedStatement statement = prepare(sql);
+            bind(statement, 1, selectionArgs);
+            int rowCount = statement.executeUpdate();
+            mConnection.commit();
+            return rowCount;
+        } catch (SQLException e) {
+            rollback();
+            throw new IllegalStateException("Unable to delete from " + table, e);
+        }
+    }
+
+    @Override
+    public synchronized List<Map<String, Object>> query(String table, String[] columns, String selection,
+                                                        String[] selectionArgs, String sortOrder, String limit) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns == null) {
+            sql.append('*');
+        } else {
+            for (int i = 0; i < columns.length; i++)
+                sql.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        sql.append(" FROM ").append(TripSchema.STOPS.equals(table) ? STOPS_WITH_LOCATIONS : table);
+        // Soft deleted trips, and their stops, are left out as the provider leaves them out
+        String live = TripSchema.TRIPS.equals(table) ? TripSchema.LIVE_TRIPS_SELECTION
+                : TripSchema.STOPS.equals(table) ? TripSchema.LIVE_STOPS_SELECTION : null;
+        if (selection != null && live != null)
+            sql.append(" WHERE (").append(selection).append(") AND ").append(live);
+        else if (selection != null || live != null)
+            sql.append(" WHERE ").append(selection != null ? selection : live);
+        if (sortOrder != null)
+            sql.append(" ORDER BY ").append(sortOrder);
+        if (limit != null)
+            sql.append(" LIMIT ").append(limit);
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try {
+            PreparedStatement statement = prepare(sql.toString());
+            bind(statement, 1, selectionArgs);
+            ResultSet result = statement.executeQuery();
+            try {
+                ResultSetMetaData metaData = result.getMetaData();
+                int columnCount = metaData.getColumnCount();
+                while (result.next()) {
+                    Map<String, Object> row = new LinkedHashMap<>(columnCount * 2);
+                    for (int i = 1; i <= columnCount; i++) {
+                        Object value = result.getObject(i);
+                        row.put(metaData.getColumnLabel(i), value instanceof Integer ? Long.valueOf((Integer) value) : value);
+                    }
+                    rows.add(row);
+                }
+            } finally {
+                result.close();
+            }
+            // Ends the read transaction, so the next write isn't held to this snapshot
+            mConnection.commit();
+        } catch (SQLException e) {
+            rollback();
+            throw new IllegalStateException("Unable to query " + table, e);
+        }
+        return rows;
+    }
+
+    @Override
+    public synchronized Map<Integer, Integer> stateCounts() {
+        Map<Integer, Integer> counts = new HashMap<>();
+        try {
+            PreparedStatement statement = prepare("SELECT " + TripSchema.STATE + ", COUNT(*) FROM " + TripSchema.TRIPS
+                    + " WHERE " + TripSchema.LIVE_TRIPS_SELECTION + " GROUP BY " + TripSchema.STATE);
+            ResultSet result = statement.executeQuery();
+            try {
+                while (result.next())
+                    counts.put(result.getInt(1), result.getInt(2));
+            } finally {
+                result.close();
+            }
+            mConnection.commit();
+        } catch (SQLException e) {
+            rollback();
+            throw new IllegalStateException("Unable to count the trips", e);
+        }
+        return counts;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            for (PreparedStatement statement : mStatements.values())
+                statement.close();
+            mStatements.clear();
+            mConnection.rollback();
+            mConnection.close();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to close the trip database", e);
+        }
+    }
+
+    /**
+     * Replaces {@link TripSchema#LOCATION} in the row with its {@link TripSchema#LOCATION_ID}.
+     * A null location becomes a null id, which the stops table then rejects.
+     */
+    private void internLocation(Map<String, Object> row) throws SQLException {
+        if (!row.containsKey(TripSchema.LOCATION))
+            return;
+        Object location = row.remove(TripSchema.LOCATION);
+        if (location == null) {
+            row.put(TripSchema.LOCATION_ID, null);
+            return;
+        }
+        String text = location.toString();
+        Long id = mLocationIds.get(text);
+        if (id == null) {
+            PreparedStatement insert = prepare("INSERT OR IGNORE INTO " + TripSchema.LOCATIONS
+                    + " (" + TripSchema.LOCATION + ") VALUES (?)");
+            insert.setString(1, text);
+            insert.executeUpdate();
+            PreparedStatement select = prepare("SELECT " + TripSchema.LOCATION_ID + " FROM " + TripSchema.LOCATIONS
+                    + " WHERE " + TripSchema.LOCATION + "=?");
+            select.setString(1, text);
+            ResultSet result = select.executeQuery();
+            try {
+                result.next();
+                id = result.getLong(1);
+            } finally {
+                result.close();
+            }
+            if (mLocationIds.size() >= MAX_CACHED_LOCATIONS)
+                mLocationIds.clear();
+            mLocationIds.put(text, id);
+        }
+        row.put(TripSchema.LOCATION_ID, id);
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            if (mStatements.size() >= MAX_STATEMENTS) {
+                for (PreparedStatement cached : mStatements.values())
+                    cached.close();
+                mStatements.clear();
+            }
+            statement = mConnection.prepareStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private static void bind(PreparedStatement statement, int first, Object[] values) throws SQLException {
+        if (values == null)
+            return;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null)
+                statement.setNull(first + i, Types.NULL);
+            else
+                statement.setObject(first + i, values[i]);
+        }
+    }
+
+    /**
+     * Rolls back after a failure, forgetting the locations the transaction added.
+     */
+    private void rollback() {
+        mLocationIds.clear();
+        try {
+            mConnection.rollback();
+        } catch (SQLException e) {
+            // The original failure is the one to report
+        }
+    }
+
+    private static boolean isConstraintFailure(SQLException e) {
+        // Extended result codes keep the primary code in the low byte
+        return (e.getErrorCode() & 0xff) == SQLITE_CONSTRAINT;
+    }
+
+    private static void checkWritable(String table) {
+        if (!TripSchema.TRIPS.equals(table) && !TripSchema.STOPS.equals(table))
+            throw new IllegalArgumentException("Writing is not supported for " + table);
+    }
+}
@@ -0,0 +1,105 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks a batch of rows across a small worker pool, for large imports, ahead of the single writer.
+ * <p>
+ * Plain Java, so the app's Validation.validateRows and the desktop benchmark run the same code.
+ */
+public final class ParallelRows {
+
+    /**
+     * Rows per task in {@link #check(List, Check)}, smaller batches are checked on the calling thread.
+     */
+    public static final int ROWS_PER_TASK = 512;
+
+    /**
+     * Workers for {@link #check(List, Check)}, one per core up to four.
+     * Idle workers stop after a while, so the pool costs nothing between imports.
+     */
+    private static final ThreadPoolExecutor WORKERS;
+
+    static {
+        int workers = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        WORKERS = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        WORKERS.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Checks one row for {@link #check(List, Check)}.
+     * Called from several threads at once, each row on one of them. It may change the row it is given.
+     */
+    public interface Check<T> {
+        boolean isValid(T row);
+    }
+
+    // Constructor to prevent accidentally instantiating the ParallelRows class
+    private ParallelRows() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    /**
+     * @param rows  The rows to check.
+     * @param check Checks a single row.
+     * @return One result per row, in the order of the rows.
+     */
+    public static <T> boolean[] check(final List<T> rows, final Check<? super T> check) {
+        final boolean[] results = new boolean[rows.size()];
+        if (rows.size() <= ROWS_PER_TASK) {
+            checkRange(rows, check, results, 0, rows.size());
+            return results;
+        }
+
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < rows.size(); start += ROWS_PER_TASK) {
+            final int from = start;
+            final int to = Math.min(rows.size(), start + ROWS_PER_TASK);
+            tasks.add(WORKERS.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // Each task writes its own slots of the results
+                    checkRange(rows, check, results, from, to);
+                    return null;
+                }
+            }));
+        }
+        boolean interrupted = false;
+        try {
+            for (Future<Void> task : tasks) {
+                while (true) {
+                    try {
+                        task.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // Finish the batch, the rows are in use by the workers
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        // Report the check's own failure, as if it had run on this thread
+                        if (e.getCause() instanceof RuntimeException)
+                            throw (RuntimeException) e.getCause();
+                        if (e.getCause() instanceof Error)
+                            throw (Error) e.getCause();
+                        throw new RuntimeException("Unable to check rows", e.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    private static <T> void checkRange(List<T> rows, Check<? super T> check, boolean[] results, int from, int to) {
+        for (int i = from; i < to; i++)
+            results[i] = check.isValid(rows.get(i));
+    }
+}
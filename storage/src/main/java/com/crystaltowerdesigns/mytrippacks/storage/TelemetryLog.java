@@ -0,0 +1,303 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of hub and position readings, a ring of fixed size records in a memory mapped file.
+ * <p>
+ * An append is a copy into the mapping, no system call, so readings can arrive every second or two
+ * without touching SQLite. A consumer takes the {@link #pending(int)} readings in order, stores them
+ * and calls {@link #markFlushed(long)}, which frees their records for reuse.
+ * <p>
+ * Each record carries its sequence number and a CRC32. The mapping survives the process being
+ * killed; after a power loss whatever the kernel had not written back is lost, {@link #sync()} bounds
+ * that. On opening, the readings after the flushed one are taken in sequence up to the first record
+ * that is missing or fails its CRC, so a torn write ends the log instead of corrupting it.
+ * <p>
+ * Thread safe.
+ */
+public final class TelemetryLog implements Closeable {
+
+    /**
+     * Hub value of a reading without one.
+     */
+    public static final long NO_HUB = -1;
+
+    private static final int MAGIC = 0x544c4f47; // "TLOG"
+    private static final int FORMAT = 1;
+
+    /**
+     * magic, format, capacity (ints), flushed sequence (long), padded.
+     */
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_FLUSHED = 12;
+
+    /**
+     * sequence, stop _ID, time, hub (longs), latitude, longitude (doubles), CRC32 of those (int), padded.
+     */
+    private static final int RECORD_SIZE = 56;
+    private static final int CHECKED_SIZE = 48;
+    private static final int RECORD_CRC = 48;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRecord = new byte[CHECKED_SIZE];
+
+    /**
+     * Sequence of the last reading stored by the consumer, and of the last appended.
+     */
+    private long mFlushedSeq;
+    private long mLastSeq;
+
+    /**
+     * Readings refused since opening because the ring was full.
+     */
+    private long mDropped;
+
+    private TelemetryLog(MappedByteBuffer buffer, int capacity) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Opens the log, creating the file if needed, and recovers the readings not yet flushed.
+     *
+     * @param capacity Records in a new file. An existing file keeps its own capacity.
+     */
+    public static TelemetryLog open(File file, int capacity) throws IOException {
+        if (capacity < 2)
+            throw new IllegalArgumentException("Capacity " + capacity);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int existing = readExistingCapacity(raf);
+            boolean created = existing == 0;
+            if (!created)
+                capacity = existing;
+            long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            if (created || raf.length() < size)
+                raf.setLength(size);
+            // The mapping stays valid once the file is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            TelemetryLog log = new TelemetryLog(buffer, capacity);
+            if (created)
+                log.format();
+            else
+                log.recover();
+            return log;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The capacity in the file's header, 0 if the file is new or not a log of this format.
+     */
+    private static int readExistingCapacity(RandomAccessFile raf) throws IOException {
+        if (raf.length() < HEADER_SIZE)
+            return 0;
+        byte[] header = new byte[HEADER_SIZE];
+        raf.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT)
+            return 0;
+        int capacity = buffer.getInt(HEADER_CAPACITY);
+        return capacity >= 2 ? capacity : 0;
+    }
+
+    private void format() {
+        for (int i = 0; i < mBuffer.capacity(); i++)
+            mBuffer.put(i, (byte) 0);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, FORMAT);
+        mBuffer.putInt(HEADER_CAPACITY, mCapacity);
+        mBuffer.putLong(HEADER_FLUSHED, 0);
+        mBuffer.force();
+    }
+
+    private void recover() {
+        mFlushedSeq = mBuffer.getLong(HEADER_FLUSHED);
+        long seq = mFlushedSeq + 1;
+        while (seq - mFlushedSeq <= mCapacity && isValid(seq))
+            seq++;
+        mLastSeq = seq - 1;
+        // Records past the end are from before a torn write, don't let a later append revive them
+        for (int slot = 0; slot < mCapacity; slot++) {
+            long recordSeq = mBuffer.getLong(offsetOf(slot));
+            if (recordSeq > mLastSeq)
+                mBuffer.putLong(offsetOf(slot), 0);
+        }
+    }
+
+    private boolean isValid(long seq) {
+        int offset = offsetOf(seq);
+        if (mBuffer.getLong(offset) != seq)
+            return false;
+        for (int i = 0; i < CHECKED_SIZE; i++)
+            mRecord[i] = mBuffer.get(offset + i);
+        mCrc.reset();
+        mCrc.update(mRecord, 0, CHECKED_SIZE);
+        return (int) mCrc.getValue() == mBuffer.getInt(offset + RECORD_CRC);
+    }
+
+    private int offsetOf(long seq) {
+        return HEADER_SIZE + (int) (seq % mCapacity) * RECORD_SIZE;
+    }
+
+    /**
+     * @param stopId    _ID of the stop the driver is heading to or at.
+     * @param time      Milliseconds since 1970-01-01.
+     * @param hub       Hub (odometer) value, or {@link #NO_HUB}.
+     * @param latitude  Decimal degrees, NaN without a position fix.
+     * @param longitude Decimal degrees, NaN without a position fix.
+     * @return false if the ring is full of readings not flushed yet, the reading is dropped.
+     */
+    public synchronized boolean append(long stopId, long time, long hub, double latitude, double longitude) {
+        if (mLastSeq - mFlushedSeq >= mCapacity) {
+            mDropped++;
+            return false;
+        }
+        long seq = mLastSeq + 1;
+        int offset = offsetOf(seq);
+        // The CRC goes in last, a record cut short fails it
+        mBuffer.putLong(offset, seq);
+        mBuffer.putLong(offset + 8, stopId);
+        mBuffer.putLong(offset + 16, time);
+        mBuffer.putLong(offset + 24, hub);
+        mBuffer.putDouble(offset + 32, latitude);
+        mBuffer.putDouble(offset + 40, longitude);
+        for (int i = 0; i < CHECKED_SIZE; i++)
+            mRecord[i] = mBuffer.get(offset + i);
+        mCrc.reset();
+        mCrc.update(mRecord, 0, CHECKED_SIZE);
+        mBuffer.putInt(offset + RECORD_CRC, (int) mCrc.getValue());
+        mLastSeq = seq;
+        return true;
+    }
+
+    /**
+     * @param max Most readings to return.
+     * @return The oldest readings not flushed yet, in the order they were appended.
+     */
+    public synchronized List<Reading> pending(int max) {
+        int count = (int) Math.min(max, mLastSeq - mFlushedSeq);
+        List<Reading> readings = new ArrayList<>(count);
+        for (long seq = mFlushedSeq + 1; seq <= mFlushedSeq + count; seq++) {
+            int offset = offsetOf(seq);
+            readings.add(new Reading(seq, mBuffer.getLong(offset + 8), mBuffer.getLong(offset + 16),
+                    mBuffer.getLong(offset + 24), mBuffer.getDouble(offset + 32), mBuffer.getDouble(offset + 40)));
+        }
+        return readings;
+    }
+
+    /**
+     * Frees the records up to a reading the consumer has stored. Sequences at or below the current
+     * flushed one are ignored, so a consumer can pass its own record of what it stored after a crash.
+     *
+     * @param seq {@link Reading#seq} of the last reading stored.
+     */
+    public synchronized void markFlushed(long seq) {
+        if (seq <= mFlushedSeq)
+            return;
+        mFlushedSeq = Math.min(seq, mLastSeq);
+        mBuffer.putLong(HEADER_FLUSHED, mFlushedSeq);
+    }
+
+    /**
+     * Skips the readings of a batch a consumer already stored. After a crash between storing a batch
+     * and {@link #markFlushed(long)}, the consumer is ahead of the log by at most that batch. Further
+     * ahead, the log file was lost and started over, and its sequences are all new.
+     *
+     * @param readings  A batch from {@link #pending(int)}.
+     * @param storedSeq The consumer's own record of the last reading it stored.
+     * @return Index of the first reading to store, {@code readings.size()} if all of them were.
+     */
+    public static int firstUnstored(List<Reading> readings, long storedSeq) {
+        if (readings.isEmpty() || storedSeq > readings.get(readings.size() - 1).seq)
+            return 0;
+        int first = 0;
+        while (first < readings.size() && readings.get(first).seq <= storedSeq)
+            first++;
+        return first;
+    }
+
+    /**
+     * @return The sequence of the last reading stored by the consumer, 0 before the first.
+     */
+    public synchronized long getFlushedSeq() {
+        return mFlushedSeq;
+    }
+
+    /**
+     * @return Readings appended and not flushed yet.
+     */
+    public synchronized int getPendingCount() {
+        return (int) (mLastSeq - mFlushedSeq);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return Readings refused since opening because the ring was full.
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Writes the mapped records back to the file, so they survive a power loss too.
+     */
+    public synchronized void sync() {
+        mBuffer.force();
+    }
+
+    /**
+     * Syncs the log. The mapping itself is released when the log is garbage collected.
+     */
+    @Override
+    public void close() {
+        sync();
+    }
+
+    /**
+     * One reading, as appended.
+     */
+    public static final class Reading {
+        public final long seq;
+        public final long stopId;
+        public final long time;
+        public final long hub;
+        public final double latitude;
+        public final double longitude;
+
+        Reading(long seq, long stopId, long time, long hub, double latitude, double longitude) {
+            this.seq = seq;
+            this.stopId = stopId;
+            this.time = time;
+            this.hub = hub;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        /**
+         * @return true if the reading has a position fix.
+         */
+        public boolean hasPosition() {
+            return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The readings of a {@link TelemetryLog} for one stop, compacted to what the stops need: how many,
+ * when, the hub range and the last position. Stored in {@link TripSchema#STOP_TELEMETRY}, where a
+ * later batch's summary is merged into the row instead of adding one.
+ */
+public final class TelemetrySummary {
+
+    private final long mStopId;
+    private int mReadings;
+    private long mFirstTime = Long.MAX_VALUE;
+    private long mLastTime = Long.MIN_VALUE;
+    private long mMinHub = TelemetryLog.NO_HUB;
+    private long mMaxHub = TelemetryLog.NO_HUB;
+    private double mLatitude = Double.NaN;
+    private double mLongitude = Double.NaN;
+
+    private TelemetrySummary(long stopId) {
+        mStopId = stopId;
+    }
+
+    /**
+     * @param readings In the order they were appended.
+     * @return One summary per stop, in the order the stops were first read.
+     */
+    public static List<TelemetrySummary> summarize(List<TelemetryLog.Reading> readings) {
+        Map<Long, TelemetrySummary> byStop = new LinkedHashMap<>();
+        for (TelemetryLog.Reading reading : readings) {
+            TelemetrySummary summary = byStop.get(reading.stopId);
+            if (summary == null) {
+                summary = new TelemetrySummary(reading.stopId);
+                byStop.put(reading.stopId, summary);
+            }
+            summary.add(reading);
+        }
+        return new ArrayList<>(byStop.values());
+    }
+
+    private void add(TelemetryLog.Reading reading) {
+        mReadings++;
+        mFirstTime = Math.min(mFirstTime, reading.time);
+        mLastTime = Math.max(mLastTime, reading.time);
+        if (reading.hub >= 0) {
+            mMinHub = mMinHub == TelemetryLog.NO_HUB ? reading.hub : Math.min(mMinHub, reading.hub);
+            mMaxHub = Math.max(mMaxHub, reading.hub);
+        }
+        // Readings come in order, the last fix is the latest
+        if (reading.hasPosition()) {
+            mLatitude = reading.latitude;
+            mLongitude = reading.longitude;
+        }
+    }
+
+    public long getStopId() {
+        return mStopId;
+    }
+
+    public int getReadings() {
+        return mReadings;
+    }
+
+    /**
+     * @return Milliseconds since 1970-01-01 of the earliest and latest readings.
+     */
+    public long getFirstTime() {
+        return mFirstTime;
+    }
+
+    public long getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * @return The lowest and highest hub read, {@link TelemetryLog#NO_HUB} if no reading had one.
+     */
+    public long getMinHub() {
+        return mMinHub;
+    }
+
+    public long getMaxHub() {
+        return mMaxHub;
+    }
+
+    /**
+     * @return true if a reading had a position fix.
+     */
+    public boolean hasPosition() {
+        return !Double.isNaN(mLatitude);
+    }
+
+    /**
+     * @return The position of the last reading with a fix, NaN without one.
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+}
@@ -0,0 +1,174 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import com.crystaltowerdesigns.mytrippacks.data.EpochDays;
+import com.crystaltowerdesigns.mytrippacks.data.GeoGrid;
+
+import java.util.Map;
+
+/**
+ * The rules a trip or stop row has to follow before it is written, on rows held as column to value maps.
+ * <p>
+ * The provider checks its rows with these as well, so a {@link TripStore} off the device accepts
+ * and rejects the same rows. Values may be given as text or as numbers, the way ContentValues
+ * converts them.
+ */
+public final class TripRules {
+
+    // Constructor to prevent accidentally instantiating the TripRules class
+    private TripRules() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    /**
+     * Fills in the columns the store maintains: keeps the yyyy-MM-dd text columns and their
+     * epoch-day columns in step, whichever one was written, and a stop's grid cell in step with its
+     * coordinates. Values that don't parse are left for {@link #isValid(Map)} to reject.
+     *
+     * @param table  {@link TripSchema#TRIPS} or {@link TripSchema#STOPS}.
+     * @param values The row, changed in place.
+     */
+    public static void normalize(String table, Map<String, Object> values) {
+        if (TripSchema.TRIPS.equals(table)) {
+            normalizeDate(values, TripSchema.RECEIVED_DATE, TripSchema.RECEIVED_DAY);
+            normalizeDate(values, TripSchema.SUBMITTED_DATE, TripSchema.SUBMITTED_DAY);
+        } else if (TripSchema.STOPS.equals(table)) {
+            normalizeDate(values, TripSchema.DATE_COMPLETED, TripSchema.COMPLETED_DAY);
+            normalizeGeoCell(values);
+        }
+    }
+
+    private static void normalizeGeoCell(Map<String, Object> values) {
+        if (!values.containsKey(TripSchema.LATITUDE) && !values.containsKey(TripSchema.LONGITUDE))
+            return;
+        Double latitude = asDouble(values.get(TripSchema.LATITUDE));
+        Double longitude = asDouble(values.get(TripSchema.LONGITUDE));
+        if (latitude != null && longitude != null && GeoGrid.isValid(latitude, longitude))
+            values.put(TripSchema.GEO_CELL, GeoGrid.cell(latitude, longitude));
+        else
+            values.put(TripSchema.GEO_CELL, null);
+    }
+
+    private static void normalizeDate(Map<String, Object> values, String dateColumn, String dayColumn) {
+        if (values.containsKey(dateColumn)) {
+            Object date = values.get(dateColumn);
+            int epochDay = EpochDays.parse(date != null ? date.toString() : null);
+            values.put(dayColumn, epochDay != EpochDays.INVALID ? epochDay : null);
+        } else {
+            Long epochDay = asLong(values.get(dayColumn));
+            if (epochDay != null)
+                values.put(dateColumn, EpochDays.format(epochDay.intValue()));
+        }
+    }
+
+    /**
+     * The check each row gets before it is written, on the device and off it: {@link #normalize(String, Map)}
+     * and then {@link #isValid(Map)}. The provider's bulk insert runs it on its worker pool ahead of the
+     * transaction, see {@link ParallelRows}.
+     *
+     * @param table  {@link TripSchema#TRIPS} or {@link TripSchema#STOPS}.
+     * @param values The row, changed in place.
+     * @return true if the row is to be written.
+     */
+    public static boolean check(String table, Map<String, Object> values) {
+        normalize(table, values);
+        return !values.isEmpty() && isValid(values);
+    }
+
+    /**
+     * Checks the columns present in the row. Columns left out are not checked, so the same rules
+     * serve inserts and partial updates; the table constraints catch a missing required column.
+     *
+     * @return true if every column given holds an acceptable value.
+     */
+    public static boolean isValid(Map<String, Object> values) {
+        return invalidColumn(values) == null;
+    }
+
+    /**
+     * @return The first column given that holds an unacceptable value, see {@link #isValid(Map)}, or
+     * null if there is none. A position is reported as {@link TripSchema#LATITUDE}.
+     */
+    public static String invalidColumn(Map<String, Object> values) {
+        if (values.containsKey(TripSchema.RECEIVED_DATE) && !isDate(values.get(TripSchema.RECEIVED_DATE)))
+            return TripSchema.RECEIVED_DATE;
+        if (values.containsKey(TripSchema.STATE)) {
+            Long state = asLong(values.get(TripSchema.STATE));
+            if (state == null || !isState(state.intValue()))
+                return TripSchema.STATE;
+        }
+        if (values.containsKey(TripSchema.SUBMITTED_DATE) && !isDate(values.get(TripSchema.SUBMITTED_DATE)))
+            return TripSchema.SUBMITTED_DATE;
+        if (values.containsKey(TripSchema.DATE_COMPLETED) && !isDate(values.get(TripSchema.DATE_COMPLETED)))
+            return TripSchema.DATE_COMPLETED;
+        if (values.containsKey(TripSchema.LATITUDE) || values.containsKey(TripSchema.LONGITUDE)) {
+            Double latitude = asDouble(values.get(TripSchema.LATITUDE));
+            Double longitude = asDouble(values.get(TripSchema.LONGITUDE));
+            boolean positionValid = latitude == null && longitude == null
+                    || latitude != null && longitude != null && GeoGrid.isValid(latitude, longitude);
+            if (!positionValid)
+                return TripSchema.LATITUDE;
+        }
+        if (values.containsKey(TripSchema.HUB_START) && !isHub(values.get(TripSchema.HUB_START)))
+            return TripSchema.HUB_START;
+        if (values.containsKey(TripSchema.HUB_END) && !isHub(values.get(TripSchema.HUB_END)))
+            return TripSchema.HUB_END;
+        if (values.containsKey(TripSchema.TRIP_NUMBER) && isEmpty(values.get(TripSchema.TRIP_NUMBER)))
+            return TripSchema.TRIP_NUMBER;
+        if (values.containsKey(TripSchema.FROM_TO) && isEmpty(values.get(TripSchema.FROM_TO)))
+            return TripSchema.FROM_TO;
+        return null;
+    }
+
+    /**
+     * @return true if the state is one of the STATE_ values of {@link TripSchema}.
+     */
+    public static boolean isState(int state) {
+        return state == TripSchema.STATE_ASSIGNED || state == TripSchema.STATE_OPEN
+                || state == TripSchema.STATE_CLOSED || state == TripSchema.STATE_SUBMITTED;
+    }
+
+    private static boolean isDate(Object value) {
+        return value != null && EpochDays.parse(value.toString()) != EpochDays.INVALID;
+    }
+
+    private static boolean isHub(Object value) {
+        Long hub = asLong(value);
+        return hub != null && hub >= 0;
+    }
+
+    private static boolean isEmpty(Object value) {
+        return value == null || value.toString().isEmpty();
+    }
+
+    /**
+     * @return The value as a whole number, or null if it is null or not a whole number.
+     */
+    public static Long asLong(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        if (value != null) {
+            try {
+                return Long.valueOf(value.toString().trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The value as a number, or null if it is null or not a number.
+     */
+    public static Double asDouble(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        if (value != null) {
+            try {
+                return Double.valueOf(value.toString().trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
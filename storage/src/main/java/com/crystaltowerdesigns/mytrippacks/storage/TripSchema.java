@@ -0,0 +1,262 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Table and column names, and the statements creating them, for the trip database.
+ * <p>
+ * Shared by the Android open helper and {@link JdbcTripStore}, so a database made on a desktop is
+ * the same as one made on the device. The app's TripsContract refers to these names.
+ */
+public final class TripSchema {
+
+    /**
+     * Version of the schema created by {@link #createStatements()}, stored in PRAGMA user_version.
+     */
+    public static final int VERSION = 10;
+
+    public static final String ID = "_id";
+
+    // Trips table
+    public static final String TRIPS = "trips";
+    public static final String TRIP_NUMBER = "trip_number";
+    public static final String FROM_TO = "from_to";
+    public static final String HUB_START = "hub_start";
+    public static final String HUB_END = "hub_end";
+    public static final String STATE = "state";
+    public static final String SUBMITTED_DATE = "submitted_date";
+    public static final String RECEIVED_DATE = "received_date";
+    public static final String SUBMITTED_DAY = "submitted_day";
+    public static final String RECEIVED_DAY = "received_day";
+    public static final String DELETED_AT = "deleted_at";
+
+    public static final int STATE_ASSIGNED = 100;
+    public static final int STATE_OPEN = 101;
+    public static final int STATE_CLOSED = 102;
+    public static final int STATE_SUBMITTED = 103;
+
+    // Stops table, the location is stored as an id into the locations table
+    public static final String STOPS = "stops";
+    public static final String STOP_INDEX = "stop_index";
+    public static final String ARRIVAL_HUB = "arrival_hub";
+    public static final String DATE_COMPLETED = "date_completed";
+    public static final String COMPLETED_DAY = "completed_day";
+    public static final String LATITUDE = "latitude";
+    public static final String LONGITUDE = "longitude";
+    public static final String GEO_CELL = "geo_cell";
+
+    /**
+     * Spacing of new stop indexes, leaving room to move a stop between two others.
+     */
+    public static final int RANK_GAP = 1024;
+
+    // Locations table
+    public static final String LOCATIONS = "locations";
+    public static final String LOCATION_ID = "location_id";
+    public static final String LOCATION = "location";
+
+    // Hub anomalies table
+    public static final String ANOMALIES = "hub_anomalies";
+    public static final String KIND = "kind";
+    public static final String ROW_ID = "row_id";
+    public static final String EXPECTED_HUB = "expected_hub";
+    public static final String ACTUAL_HUB = "actual_hub";
+
+    // Stop telemetry table, one summary row per stop of the readings flushed from the telemetry log
+    public static final String STOP_TELEMETRY = "stop_telemetry";
+    public static final String STOP_ID = "stop_id";
+    public static final String READINGS = "readings";
+    public static final String FIRST_READING_TIME = "first_reading_time";
+    public static final String LAST_READING_TIME = "last_reading_time";
+    public static final String MIN_HUB = "min_hub";
+    public static final String MAX_HUB = "max_hub";
+
+    // Key/value table holding the database's own bookkeeping
+    public static final String METADATA = "metadata";
+    public static final String METADATA_KEY = "key";
+    public static final String METADATA_VALUE = "value";
+
+    /**
+     * Selection for the assigned and open trips. Written out literally (no arguments)
+     * so SQLite can match it against the partial index.
+     */
+    public static final String ACTIVE_STATES_SELECTION = STATE + " IN (" + STATE_ASSIGNED + "," + STATE_OPEN + ")";
+
+    /**
+     * Selection for the trips that are not soft deleted.
+     */
+    public static final String LIVE_TRIPS_SELECTION = DELETED_AT + " IS NULL";
+
+    /**
+     * Selection for the stops of trips that are not soft deleted. Stops are not flagged themselves, so
+     * restoring a trip restores its stops. The few soft deleted trips are found through their index,
+     * which SQLite searches for a range but not for IS NOT NULL.
+     */
+    public static final String LIVE_STOPS_SELECTION = STOPS + "." + TRIP_NUMBER + " NOT IN (SELECT " + TRIP_NUMBER
+            + " FROM " + TRIPS + " WHERE " + DELETED_AT + " > 0)";
+
+    public static final String CREATE_TRIPS_TABLE = "CREATE TABLE " + TRIPS + " ("
+            + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + TRIP_NUMBER + " TEXT NOT NULL, "
+            + FROM_TO + " TEXT NOT NULL, "
+            + RECEIVED_DATE + " TEXT NOT NULL, "
+            + SUBMITTED_DATE + " TEXT, "
+            + RECEIVED_DAY + " INTEGER, "
+            + SUBMITTED_DAY + " INTEGER, "
+            + STATE + " INTEGER NOT NULL, "
+            + HUB_START + " INTEGER NOT NULL, "
+            + HUB_END + " INTEGER NOT NULL);";
+
+    /**
+     * The stops table as of version 7, {@link #ADD_STOP_COORDINATES} brings it up to date.
+     */
+    public static final String CREATE_STOPS_TABLE = "CREATE TABLE " + STOPS + " ("
+            + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + TRIP_NUMBER + " TEXT NOT NULL, "
+            + LOCATION_ID + " INTEGER NOT NULL, "
+            + ARRIVAL_HUB + " INTEGER NOT NULL, "
+            + STOP_INDEX + " INTEGER NOT NULL, "
+            + DATE_COMPLETED + " TEXT NOT NULL, "
+            + COMPLETED_DAY + " INTEGER);";
+
+    public static final String CREATE_LOCATIONS_TABLE = "CREATE TABLE IF NOT EXISTS " + LOCATIONS + " ("
+            + LOCATION_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + LOCATION + " TEXT NOT NULL UNIQUE);";
+
+    public static final String CREATE_ANOMALIES_TABLE = "CREATE TABLE IF NOT EXISTS " + ANOMALIES + " ("
+            + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + KIND + " INTEGER NOT NULL, "
+            + ROW_ID + " INTEGER NOT NULL, "
+            + TRIP_NUMBER + " TEXT, "
+            + EXPECTED_HUB + " INTEGER, "
+            + ACTUAL_HUB + " INTEGER, "
+            + "UNIQUE (" + ROW_ID + ", " + KIND + "));";
+
+    public static final String CREATE_METADATA_TABLE = "CREATE TABLE IF NOT EXISTS " + METADATA + " ("
+            + METADATA_KEY + " TEXT PRIMARY KEY, "
+            + METADATA_VALUE + " TEXT);";
+
+    /**
+     * Telemetry summaries, added in version 9. The hubs and position are null until a reading has them.
+     */
+    public static final String CREATE_STOP_TELEMETRY_TABLE = "CREATE TABLE IF NOT EXISTS " + STOP_TELEMETRY + " ("
+            + STOP_ID + " INTEGER PRIMARY KEY, "
+            + READINGS + " INTEGER NOT NULL, "
+            + FIRST_READING_TIME + " INTEGER NOT NULL, "
+            + LAST_READING_TIME + " INTEGER NOT NULL, "
+            + MIN_HUB + " INTEGER, "
+            + MAX_HUB + " INTEGER, "
+            + LATITUDE + " REAL, "
+            + LONGITUDE + " REAL);";
+
+    /**
+     * A stop's telemetry goes with the stop, however it is deleted.
+     */
+    public static final String CREATE_STOP_TELEMETRY_TRIGGER = "CREATE TRIGGER IF NOT EXISTS stops_telemetry_delete"
+            + " AFTER DELETE ON " + STOPS + " BEGIN DELETE FROM " + STOP_TELEMETRY
+            + " WHERE " + STOP_ID + " = old." + ID + "; END;";
+
+    /**
+     * Soft delete time of a trip, milliseconds since 1970-01-01, added in version 10.
+     */
+    public static final String ADD_TRIP_DELETED_AT = "ALTER TABLE " + TRIPS + " ADD COLUMN " + DELETED_AT + " INTEGER";
+
+    /**
+     * Index finding the soft deleted trips, for the live selections, undo and the purge.
+     */
+    public static final String CREATE_DELETED_AT_INDEX = "CREATE INDEX IF NOT EXISTS trips_deleted_at_idx ON "
+            + TRIPS + " (" + DELETED_AT + ");";
+
+    /**
+     * Optional stop coordinates, added in version 8.
+     */
+    public static final String[] ADD_STOP_COORDINATES = {
+            "ALTER TABLE " + STOPS + " ADD COLUMN " + LATITUDE + " REAL",
+            "ALTER TABLE " + STOPS + " ADD COLUMN " + LONGITUDE + " REAL",
+            "ALTER TABLE " + STOPS + " ADD COLUMN " + GEO_CELL + " INTEGER"};
+
+    /**
+     * Index on the stop grid cell for the nearest and box queries.
+     */
+    public static final String CREATE_GEO_CELL_INDEX = "CREATE INDEX IF NOT EXISTS stops_geo_cell_idx ON "
+            + STOPS + " (" + GEO_CELL + ");";
+
+    /**
+     * Indexes on the epoch-day columns so date range queries don't scan the tables.
+     */
+    public static final String[] CREATE_DATE_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS trips_received_day_idx ON " + TRIPS + " (" + RECEIVED_DAY + ");",
+            "CREATE INDEX IF NOT EXISTS trips_submitted_day_idx ON " + TRIPS + " (" + SUBMITTED_DAY + ");",
+            "CREATE INDEX IF NOT EXISTS stops_completed_day_idx ON " + STOPS + " (" + COMPLETED_DAY + ");"};
+
+    /**
+     * Index for the state filtered trip lists.
+     */
+    public static final String CREATE_STATE_INDEX = "CREATE INDEX IF NOT EXISTS trips_state_trip_number_idx ON "
+            + TRIPS + " (" + STATE + ", " + TRIP_NUMBER + ");";
+
+    /**
+     * Partial index keeping the active trips small and fast no matter how much closed history exists.
+     * Needs SQLite 3.8, API 21 on Android.
+     */
+    public static final String CREATE_ACTIVE_INDEX = "CREATE INDEX IF NOT EXISTS trips_active_idx ON "
+            + TRIPS + " (" + TRIP_NUMBER + ") WHERE " + ACTIVE_STATES_SELECTION + ";";
+
+    /**
+     * Version 4 index on the stop order, replaced by the unique key in version 6.
+     */
+    public static final String CREATE_STOP_ORDER_INDEX = "CREATE INDEX IF NOT EXISTS stops_trip_number_stop_index_idx ON "
+            + STOPS + " (" + TRIP_NUMBER + ", " + STOP_INDEX + ");";
+
+    /**
+     * Unique keys for re-syncing packs: one trip per trip_number, one stop per (trip_number, stop_index).
+     */
+    public static final String[] CREATE_UNIQUE_KEYS = {
+            "CREATE UNIQUE INDEX IF NOT EXISTS trips_trip_number_key ON " + TRIPS + " (" + TRIP_NUMBER + ");",
+            "CREATE UNIQUE INDEX IF NOT EXISTS stops_trip_number_stop_index_key ON " + STOPS
+                    + " (" + TRIP_NUMBER + ", " + STOP_INDEX + ");"};
+
+    /**
+     * Index the hub continuity checker finds neighbouring trips with.
+     */
+    public static final String CREATE_HUB_START_INDEX = "CREATE INDEX IF NOT EXISTS trips_hub_start_idx ON "
+            + TRIPS + " (" + HUB_START + ");";
+
+    /**
+     * Index for the stops made at a location.
+     */
+    public static final String CREATE_STOP_LOCATION_INDEX = "CREATE INDEX IF NOT EXISTS stops_location_id_idx ON "
+            + STOPS + " (" + LOCATION_ID + ");";
+
+    // Constructor to prevent accidentally instantiating the TripSchema class
+    private TripSchema() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    /**
+     * @return The statements creating a new database at {@link #VERSION}, in order.
+     */
+    public static List<String> createStatements() {
+        List<String> statements = new ArrayList<>();
+        statements.add(CREATE_TRIPS_TABLE);
+        statements.add(CREATE_LOCATIONS_TABLE);
+        statements.add(CREATE_STOPS_TABLE);
+        Collections.addAll(statements, ADD_STOP_COORDINATES);
+        statements.add(CREATE_GEO_CELL_INDEX);
+        Collections.addAll(statements, CREATE_DATE_INDEXES);
+        statements.add(CREATE_STATE_INDEX);
+        statements.add(CREATE_ACTIVE_INDEX);
+        Collections.addAll(statements, CREATE_UNIQUE_KEYS);
+        statements.add(CREATE_ANOMALIES_TABLE);
+        statements.add(CREATE_METADATA_TABLE);
+        statements.add(CREATE_HUB_START_INDEX);
+        statements.add(CREATE_STOP_LOCATION_INDEX);
+        statements.add(CREATE_STOP_TELEMETRY_TABLE);
+        statements.add(CREATE_STOP_TELEMETRY_TRIGGER);
+        statements.add(ADD_TRIP_DELETED_AT);
+        statements.add(CREATE_DELETED_AT_INDEX);
+        return statements;
+    }
+}
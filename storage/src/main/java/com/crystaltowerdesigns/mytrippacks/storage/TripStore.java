@@ -0,0 +1,67 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The trip storage operations off the device, see {@link JdbcTripStore}. On the device the app goes
+ * through TripsProvider, which checks its rows with the same {@link TripRules}.
+ * <p>
+ * Rows are maps from the {@link TripSchema} column names to String, Long, Double or null values.
+ * Trips and stops are written with {@link TripSchema#TRIPS} and {@link TripSchema#STOPS}; a stop is
+ * written with its {@link TripSchema#LOCATION} text and read back with it, the store keeps the
+ * locations table. Rows are normalized and checked with {@link TripRules} before they are written.
+ */
+public interface TripStore extends Closeable {
+
+    /**
+     * @return The id of the new row, or -1 if the row was rejected.
+     */
+    long insert(String table, Map<String, Object> values);
+
+    /**
+     * Inserts the rows in a single transaction. Rows that are rejected are skipped.
+     *
+     * @return The number of rows inserted.
+     */
+    int bulkInsert(String table, List<Map<String, Object>> rows);
+
+    /**
+     * @return The number of rows updated, 0 if the values were rejected.
+     */
+    int update(String table, long id, Map<String, Object> values);
+
+    /**
+     * The rows themselves are deleted. Trips the provider soft deleted on the device are already left
+     * out of reads, see {@link #query}.
+     *
+     * @param selection     WHERE clause, or null for every row.
+     * @param selectionArgs Values for the ? in the selection.
+     * @return The number of rows deleted.
+     */
+    int delete(String table, String selection, String[] selectionArgs);
+
+    /**
+     * @param columns       Columns to read, or null for all of them.
+     * @param selection     WHERE clause, or null for every row.
+     * @param selectionArgs Values for the ? in the selection.
+     * @param sortOrder     ORDER BY clause, or null.
+     * @param limit         LIMIT clause, or null.
+     * @return The rows, each with the columns in the order asked for. Soft deleted trips and their stops
+     * are left out.
+     */
+    List<Map<String, Object>> query(String table, String[] columns, String selection, String[] selectionArgs,
+                                    String sortOrder, String limit);
+
+    /**
+     * @return The number of trips in each state, keyed by state, soft deleted trips left out.
+     */
+    Map<Integer, Integer> stateCounts();
+
+    /**
+     * Releases the database. Doesn't throw, so no IOException.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,82 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds, for percentiles over millions of samples.
+ * <p>
+ * Log-linear buckets: values under {@link #LINEAR} are exact, above that each power of two is split
+ * in {@link #HALF} buckets, so a percentile is within about 3% of the true value.
+ */
+final class LatencyHistogram {
+
+    private static final int BITS = 6;
+    private static final int LINEAR = 1 << BITS;
+    private static final int HALF = LINEAR / 2;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(LINEAR + (64 - BITS + 1) * HALF);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        mCounts.incrementAndGet(indexOf(nanos));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(nanos);
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos))
+            max = mMax.get();
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return The sum of every duration recorded.
+     */
+    long getTotal() {
+        return mTotal.get();
+    }
+
+    long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @param fraction For instance 0.99 for the 99th percentile.
+     * @return The upper bound of the bucket holding the percentile, 0 if nothing was recorded.
+     */
+    long percentile(double fraction) {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            seen += mCounts.get(i);
+            if (seen >= target)
+                return Math.min(upperBound(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (BITS - 1);
+        int top = (int) (value >>> shift);
+        return LINEAR + (shift - 1) * HALF + (top - HALF);
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR)
+            return index;
+        int shift = (index - LINEAR) / HALF + 1;
+        long top = (index - LINEAR) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
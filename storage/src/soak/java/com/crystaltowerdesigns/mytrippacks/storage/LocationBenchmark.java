@@ -0,0 +1,263 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Size and throughput of the stops with their location text inline, as before database version 7,
+ * against the location dictionary of {@link TripSchema#LOCATIONS}. Both databases are created from
+ * {@link TripSchema#createStatements()}, the inline one with the stops table of old; both take the
+ * same stops, a trip to a transaction, and the dictionary side interns the text as {@link JdbcTripStore} does.
+ * <p>
+ * Run with {@code ./gradlew :storage:locationBenchmark -PbenchmarkArgs="--trips=20000"}. Options, with their defaults:
+ * <pre>
+ * --dir=build/benchmark             directory of the two databases, replaced on each run
+ * --trips=20000                     trips written
+ * --stops-per-trip=25               stops in each trip
+ * --locations=5000                  distinct locations, a few of them visited far more than the rest
+ * --queries=20000                   reads of one trip's stops, and a tenth as many of one location's
+ * </pre>
+ */
+public final class LocationBenchmark {
+
+    private static final String[] STREETS = {"Commerce Parkway", "Industrial Boulevard", "Main Street",
+            "Distribution Drive", "Harbor Road", "Airport Way", "Market Avenue", "Warehouse Lane"};
+    private static final String[] CITIES = {"Springfield, IL 62701", "Columbus, OH 43215", "Harrisburg, PA 17101",
+            "Sacramento, CA 95814", "Nashville, TN 37219", "Albany, NY 12207", "Boise, ID 83702"};
+
+    private final Map<String, String> mOptions;
+
+    private LocationBenchmark(Map<String, String> options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LocationBenchmark(options).run();
+    }
+
+    private void run() throws Exception {
+        File directory = new File(option("dir", "build/benchmark"));
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalStateException("Unable to create " + directory);
+        int trips = intOption("trips", 20000);
+        int stopsPerTrip = intOption("stops-per-trip", 25);
+        String[] locations = locations(intOption("locations", 5000));
+        int queries = intOption("queries", 20000);
+        System.out.println(String.format(Locale.US, "Locations: %d trips of %d stops, %d distinct locations",
+                trips, stopsPerTrip, locations.length));
+        System.out.println(String.format(Locale.US, "%-10s %10s %12s %12s %14s",
+                "", "size MB", "inserts/s", "trip reads/s", "location reads/s"));
+
+        for (boolean dictionary : new boolean[]{false, true}) {
+            File file = new File(directory, dictionary ? "dictionary.db" : "inline.db");
+            for (String suffix : new String[]{"", "-wal", "-shm"}) {
+                File old = new File(file.getPath() + suffix);
+                if (old.exists() && !old.delete())
+                    throw new IllegalStateException("Unable to delete " + old);
+            }
+            Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+            try {
+                createSchema(connection, dictionary);
+                double insertsPerSecond = insert(connection, dictionary, trips, stopsPerTrip, locations);
+                // Size as it would settle, the free pages dropped and the log written back
+                connection.setAutoCommit(true);
+                Statement statement = connection.createStatement();
+                statement.execute("VACUUM");
+                statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+                statement.close();
+                connection.setAutoCommit(false);
+                double tripReadsPerSecond = readTrips(connection, dictionary, trips, queries);
+                double locationReadsPerSecond = readLocations(connection, dictionary, locations, Math.max(1, queries / 10));
+                System.out.println(String.format(Locale.US, "%-10s %10.2f %12.0f %12.0f %14.0f",
+                        dictionary ? "dictionary" : "inline", file.length() / (1024.0 * 1024.0),
+                        insertsPerSecond, tripReadsPerSecond, locationReadsPerSecond));
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * The version 7 schema, or with {@code dictionary} false the same but for the stops holding their
+     * location text, without the locations table and its index.
+     */
+    private static void createSchema(Connection connection, boolean dictionary) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            // As Android opens it
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+            for (String sql : TripSchema.createStatements()) {
+                if (!dictionary) {
+                    if (sql.equals(TripSchema.CREATE_LOCATIONS_TABLE) || sql.equals(TripSchema.CREATE_STOP_LOCATION_INDEX))
+                        continue;
+                    sql = sql.replace(TripSchema.LOCATION_ID + " INTEGER NOT NULL", TripSchema.LOCATION + " TEXT NOT NULL");
+                }
+                statement.execute(sql);
+            }
+        } finally {
+            statement.close();
+        }
+        connection.setAutoCommit(false);
+    }
+
+    /**
+     * @return Stops inserted per second, a trip and its stops to a transaction.
+     */
+    private static double insert(Connection connection, boolean dictionary, int trips, int stopsPerTrip,
+                                 String[] locations) throws SQLException {
+        PreparedStatement trip = connection.prepareStatement("INSERT INTO " + TripSchema.TRIPS + " ("
+                + TripSchema.TRIP_NUMBER + ", " + TripSchema.FROM_TO + ", " + TripSchema.RECEIVED_DATE + ", "
+                + TripSchema.STATE + ", " + TripSchema.HUB_START + ", " + TripSchema.HUB_END + ") VALUES (?, ?, ?, ?, ?, ?)");
+        PreparedStatement stop = connection.prepareStatement("INSERT INTO " + TripSchema.STOPS + " ("
+                + TripSchema.TRIP_NUMBER + ", " + (dictionary ? TripSchema.LOCATION_ID : TripSchema.LOCATION) + ", "
+                + TripSchema.ARRIVAL_HUB + ", " + TripSchema.STOP_INDEX + ", " + TripSchema.DATE_COMPLETED
+                + ") VALUES (?, ?, ?, ?, ?)");
+        PreparedStatement intern = dictionary ? connection.prepareStatement("INSERT OR IGNORE INTO "
+                + TripSchema.LOCATIONS + " (" + TripSchema.LOCATION + ") VALUES (?)") : null;
+        PreparedStatement lookUp = dictionary ? connection.prepareStatement("SELECT " + TripSchema.LOCATION_ID
+                + " FROM " + TripSchema.LOCATIONS + " WHERE " + TripSchema.LOCATION + "=?") : null;
+        Map<String, Long> ids = new HashMap<>();
+        Random random = new Random(34);
+        long start = System.nanoTime();
+        try {
+            for (int t = 0; t < trips; t++) {
+                String tripNumber = String.valueOf(100000 + t);
+                long hub = 1000L * t;
+                trip.setString(1, tripNumber);
+                trip.setString(2, "Depot " + t % 50 + " - Depot " + (t + 7) % 50);
+                trip.setString(3, "2018-08-22");
+                trip.setInt(4, TripSchema.STATE_CLOSED);
+                trip.setLong(5, hub);
+                trip.setLong(6, hub + 10 * stopsPerTrip);
+                trip.executeUpdate();
+                for (int s = 0; s < stopsPerTrip; s++) {
+                    String location = locations[pick(random, locations.length)];
+                    stop.setString(1, tripNumber);
+                    if (dictionary) {
+                        Long id = ids.get(location);
+                        if (id == null) {
+                            intern.setString(1, location);
+                            intern.executeUpdate();
+                            lookUp.setString(1, location);
+                            ResultSet result = lookUp.executeQuery();
+                            result.next();
+                            id = result.getLong(1);
+                            result.close();
+                            ids.put(location, id);
+                        }
+                        stop.setLong(2, id);
+                    } else {
+                        stop.setString(2, location);
+                    }
+                    stop.setLong(3, hub + 10 * s);
+                    stop.setLong(4, (long) s * TripSchema.RANK_GAP);
+                    stop.setString(5, "2018-08-22");
+                    stop.executeUpdate();
+                }
+                connection.commit();
+            }
+        } finally {
+            trip.close();
+            stop.close();
+            if (dictionary) {
+                intern.close();
+                lookUp.close();
+            }
+        }
+        return (double) trips * stopsPerTrip / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * @return Reads per second of one trip's stops with their location text, as the trip screen reads them.
+     */
+    private static double readTrips(Connection connection, boolean dictionary, int trips, int queries) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("SELECT " + TripSchema.ID + ", "
+                + TripSchema.LOCATION + ", " + TripSchema.ARRIVAL_HUB + " FROM " + stopsTable(dictionary)
+                + " WHERE " + TripSchema.TRIP_NUMBER + "=? ORDER BY " + TripSchema.STOP_INDEX);
+        return read(connection, statement, queries, new Random(1), trips, null);
+    }
+
+    /**
+     * @return Reads per second of the stops made at one location.
+     */
+    private static double readLocations(Connection connection, boolean dictionary, String[] locations,
+                                        int queries) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("SELECT " + TripSchema.ID + ", "
+                + TripSchema.TRIP_NUMBER + " FROM " + stopsTable(dictionary) + " WHERE " + TripSchema.LOCATION + "=?");
+        return read(connection, statement, queries, new Random(2), locations.length, locations);
+    }
+
+    /**
+     * @param keys The location texts to read by, or null to read trip numbers below {@code count}.
+     */
+    private static double read(Connection connection, PreparedStatement statement, int queries, Random random,
+                               int count, String[] keys) throws SQLException {
+        long rows = 0;
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < queries; i++) {
+                int key = random.nextInt(count);
+                statement.setString(1, keys != null ? keys[key] : String.valueOf(100000 + key));
+                ResultSet result = statement.executeQuery();
+                while (result.next())
+                    rows += result.getString(2).length();
+                result.close();
+                connection.commit();
+            }
+        } finally {
+            statement.close();
+        }
+        if (rows == 0)
+            throw new IllegalStateException("Nothing read");
+        return queries / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static String stopsTable(boolean dictionary) {
+        return dictionary ? TripSchema.STOPS + " JOIN " + TripSchema.LOCATIONS + " USING (" + TripSchema.LOCATION_ID + ")"
+                : TripSchema.STOPS;
+    }
+
+    /**
+     * @return Street addresses of a customer, about 40 characters.
+     */
+    private static String[] locations(int count) {
+        Random random = new Random(0);
+        String[] locations = new String[count];
+        for (int i = 0; i < count; i++)
+            locations[i] = String.format(Locale.US, "%d %s, %s", 100 + random.nextInt(9900),
+                    STREETS[random.nextInt(STREETS.length)], CITIES[random.nextInt(CITIES.length)]) + " #" + i;
+        return locations;
+    }
+
+    /**
+     * @return An index below {@code count}, the low ones far more often, as a few depots see most stops.
+     */
+    private static int pick(Random random, int count) {
+        return (int) Math.min(count - 1, Math.floor(Math.pow(random.nextDouble(), 3) * count));
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = mOptions.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,388 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Soak test of the trip storage: a mix of concurrent queries, inserts, updates and deletes against a
+ * SQLite database for minutes at a time, reporting throughput, p50/p99/p999 latency, the time spent
+ * waiting for the write lock and the heap growth. Exits with 1 when a threshold is passed.
+ * <p>
+ * The database is set up the way Android sets it up: write-ahead logging, every write on one
+ * connection behind one lock, and each reader on a connection of its own. An insert is a sync of a
+ * trip with a batch of stops; a query is alternately the active trip list and one trip's stops.
+ * <p>
+ * Run with {@code ./gradlew :storage:soak -PsoakArgs="--minutes=10 --threads=8"}. Options, with their defaults:
+ * <pre>
+ * --db=build/soak/trips.db          database file, replaced on each run
+ * --minutes=2                       how long to run, after seeding
+ * --threads=4                       worker threads, each running the mix
+ * --mix=query:70,insert:15,update:10,delete:5
+ * --seed-trips=2000                 trips written before the clock starts
+ * --stops-per-trip=25               stops in each inserted trip
+ * --max-p99-ms=50                   fail if any operation's p99 is higher
+ * --max-p999-ms=250                 fail if any operation's p999 is higher
+ * --max-lock-wait-p99-ms=100        fail if the p99 wait for the write lock is higher
+ * --max-heap-growth-mb=64           fail if the heap grows more, measured after a GC
+ * --min-ops-per-second=100          fail if the total throughput is lower
+ * </pre>
+ * A threshold of 0 is not checked.
+ */
+public final class SoakTest {
+
+    private static final String QUERY = "query";
+    private static final String INSERT = "insert";
+    private static final String UPDATE = "update";
+    private static final String DELETE = "delete";
+    private static final String[] OPERATIONS = {QUERY, INSERT, UPDATE, DELETE};
+
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private final Map<String, String> mOptions;
+    private final Map<String, LatencyHistogram> mLatencies = new LinkedHashMap<>();
+    private final LatencyHistogram mLockWaits = new LatencyHistogram();
+    private final AtomicLong mFailures = new AtomicLong();
+
+    /**
+     * Single writer, as on the device: every write goes through this lock and {@link #mWriter}.
+     */
+    private final ReentrantLock mWriteLock = new ReentrantLock(true);
+    private TripStore mWriter;
+
+    /**
+     * Trips [mFirstTrip, mNextTrip) may exist; deletes take the oldest, inserts add the next.
+     */
+    private final AtomicLong mFirstTrip = new AtomicLong();
+    private final AtomicLong mNextTrip = new AtomicLong();
+
+    private SoakTest(Map<String, String> options) {
+        mOptions = options;
+        for (String operation : OPERATIONS)
+            mLatencies.put(operation, new LatencyHistogram());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        boolean passed = new SoakTest(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        File file = new File(option("db", "build/soak/trips.db"));
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalStateException("Unable to create " + directory);
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            File old = new File(file.getPath() + suffix);
+            if (old.exists() && !old.delete())
+                throw new IllegalStateException("Unable to delete " + old);
+        }
+        String url = "jdbc:sqlite:" + file.getPath();
+
+        mWriter = new JdbcTripStore(connect(url));
+        int threads = intOption("threads", 4);
+        final List<TripStore> readers = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            readers.add(new JdbcTripStore(connect(url)));
+
+        seed(intOption("seed-trips", 2000));
+        long heapBefore = usedHeapAfterGc();
+
+        final String[] mix = parseMix(option("mix", "query:70,insert:15,update:10,delete:5"));
+        final long durationNanos = (long) (doubleOption("minutes", 2) * 60 * 1e9);
+        System.out.println(String.format(Locale.US, "Soak: %d threads for %.1f minutes, %d trips seeded",
+                threads, durationNanos / 60e9, mNextTrip.get()));
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            final TripStore reader = readers.get(i);
+            final Random random = new Random(i);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() - start < durationNanos)
+                            runOperation(mix[random.nextInt(mix.length)], reader, random);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "soak-" + i);
+            worker.start();
+        }
+
+        long heapPeak = heapBefore;
+        while (!done.await(1, TimeUnit.SECONDS))
+            heapPeak = Math.max(heapPeak, usedHeap());
+        long elapsed = System.nanoTime() - start;
+
+        for (TripStore reader : readers)
+            reader.close();
+        mWriter.close();
+        long heapAfter = usedHeapAfterGc();
+
+        return report(elapsed, heapBefore, heapPeak, heapAfter);
+    }
+
+    private void runOperation(String operation, TripStore reader, Random random) {
+        long started = System.nanoTime();
+        try {
+            switch (operation) {
+                case QUERY:
+                    query(reader, random);
+                    break;
+                case INSERT:
+                    insertTrip(random);
+                    break;
+                case UPDATE:
+                    updateTrip(random);
+                    break;
+                case DELETE:
+                    deleteTrip();
+                    break;
+            }
+        } catch (RuntimeException e) {
+            if (mFailures.incrementAndGet() <= 10)
+                e.printStackTrace();
+            return;
+        }
+        mLatencies.get(operation).record(System.nanoTime() - started);
+    }
+
+    /**
+     * The list loader's active trips, or the editor's stops of one trip.
+     */
+    private void query(TripStore reader, Random random) {
+        if (random.nextBoolean()) {
+            reader.query(TripSchema.TRIPS, null, TripSchema.ACTIVE_STATES_SELECTION, null, TripSchema.TRIP_NUMBER, "50");
+        } else {
+            reader.query(TripSchema.STOPS, null, TripSchema.TRIP_NUMBER + "=?",
+                    new String[]{tripNumber(randomTrip(random))}, TripSchema.STOP_INDEX, null);
+        }
+    }
+
+    private void insertTrip(Random random) {
+        int stops = intOption("stops-per-trip", 25);
+        lockWriter();
+        try {
+            writeTrip(mNextTrip.getAndIncrement(), stops, random);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private void updateTrip(Random random) {
+        Map<String, Object> values = new HashMap<>();
+        values.put(TripSchema.STATE, random.nextBoolean() ? TripSchema.STATE_OPEN : TripSchema.STATE_CLOSED);
+        values.put(TripSchema.HUB_END, 1000 + random.nextInt(100000));
+        long trip = randomTrip(random);
+        lockWriter();
+        try {
+            List<Map<String, Object>> rows = mWriter.query(TripSchema.TRIPS, new String[]{TripSchema.ID},
+                    TripSchema.TRIP_NUMBER + "=?", new String[]{tripNumber(trip)}, null, null);
+            if (!rows.isEmpty())
+                mWriter.update(TripSchema.TRIPS, (Long) rows.get(0).get(TripSchema.ID), values);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private void deleteTrip() {
+        lockWriter();
+        try {
+            // Keep at least one trip for the readers to find
+            if (mNextTrip.get() - mFirstTrip.get() <= 1)
+                return;
+            String[] tripNumber = {tripNumber(mFirstTrip.getAndIncrement())};
+            mWriter.delete(TripSchema.STOPS, TripSchema.TRIP_NUMBER + "=?", tripNumber);
+            mWriter.delete(TripSchema.TRIPS, TripSchema.TRIP_NUMBER + "=?", tripNumber);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private void lockWriter() {
+        long waitStarted = System.nanoTime();
+        mWriteLock.lock();
+        mLockWaits.record(System.nanoTime() - waitStarted);
+    }
+
+    /**
+     * Writes a trip and its stops, with the writer locked.
+     */
+    private void writeTrip(long trip, int stops, Random random) {
+        Map<String, Object> values = new HashMap<>();
+        values.put(TripSchema.TRIP_NUMBER, tripNumber(trip));
+        values.put(TripSchema.FROM_TO, "Depot " + random.nextInt(40) + " - Depot " + random.nextInt(40));
+        values.put(TripSchema.RECEIVED_DAY, 17000L + trip / 4);
+        values.put(TripSchema.STATE, TripSchema.STATE_OPEN);
+        values.put(TripSchema.HUB_START, 1000 * trip);
+        values.put(TripSchema.HUB_END, 1000 * trip + 400 + random.nextInt(600));
+        if (mWriter.insert(TripSchema.TRIPS, values) == -1)
+            throw new IllegalStateException("Trip " + trip + " was rejected");
+
+        List<Map<String, Object>> rows = new ArrayList<>(stops);
+        for (int i = 0; i < stops; i++) {
+            Map<String, Object> stop = new HashMap<>();
+            stop.put(TripSchema.TRIP_NUMBER, tripNumber(trip));
+            stop.put(TripSchema.LOCATION, "Customer " + random.nextInt(5000));
+            stop.put(TripSchema.ARRIVAL_HUB, 1000 * trip + i * 10);
+            stop.put(TripSchema.STOP_INDEX, (i + 1) * TripSchema.RANK_GAP);
+            stop.put(TripSchema.COMPLETED_DAY, 17000L + trip / 4);
+            stop.put(TripSchema.LATITUDE, 35 + random.nextDouble() * 10);
+            stop.put(TripSchema.LONGITUDE, -100 + random.nextDouble() * 20);
+            rows.add(stop);
+        }
+        if (mWriter.bulkInsert(TripSchema.STOPS, rows) != stops)
+            throw new IllegalStateException("Stops of trip " + trip + " were rejected");
+    }
+
+    private void seed(int trips) {
+        Random random = new Random(-1);
+        int stops = intOption("stops-per-trip", 25);
+        for (int i = 0; i < trips; i++)
+            writeTrip(mNextTrip.getAndIncrement(), stops, random);
+    }
+
+    private long randomTrip(Random random) {
+        long first = mFirstTrip.get();
+        long count = Math.max(1, mNextTrip.get() - first);
+        return first + (long) (random.nextDouble() * count);
+    }
+
+    private static String tripNumber(long trip) {
+        return String.format(Locale.US, "S%08d", trip);
+    }
+
+    private boolean report(long elapsedNanos, long heapBefore, long heapPeak, long heapAfter) {
+        double seconds = elapsedNanos / 1e9;
+        long totalOperations = 0;
+        System.out.println(String.format(Locale.US, "%-10s %10s %10s %9s %9s %9s %9s",
+                "operation", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (Map.Entry<String, LatencyHistogram> entry : mLatencies.entrySet()) {
+            totalOperations += entry.getValue().getCount();
+            printRow(entry.getKey(), entry.getValue(), seconds);
+        }
+        printRow("lock wait", mLockWaits, seconds);
+        System.out.println(String.format(Locale.US, "lock wait total %.1f s, summed over the threads, in %.1f s",
+                mLockWaits.getTotal() / 1e9, seconds));
+        System.out.println(String.format(Locale.US, "heap %.1f MB before, %.1f MB peak, %.1f MB after",
+                (double) heapBefore / BYTES_PER_MB, (double) heapPeak / BYTES_PER_MB, (double) heapAfter / BYTES_PER_MB));
+        double throughput = totalOperations / seconds;
+        System.out.println(String.format(Locale.US, "throughput %.1f ops/s, %d failures", throughput, mFailures.get()));
+
+        List<String> breaches = new ArrayList<>();
+        if (mFailures.get() > 0)
+            breaches.add(mFailures.get() + " operations failed");
+        double maxP99 = doubleOption("max-p99-ms", 50);
+        double maxP999 = doubleOption("max-p999-ms", 250);
+        for (Map.Entry<String, LatencyHistogram> entry : mLatencies.entrySet()) {
+            checkMax(breaches, entry.getKey() + " p99", entry.getValue().percentile(0.99) / NANOS_PER_MILLI, maxP99, "ms");
+            checkMax(breaches, entry.getKey() + " p999", entry.getValue().percentile(0.999) / NANOS_PER_MILLI, maxP999, "ms");
+        }
+        checkMax(breaches, "lock wait p99", mLockWaits.percentile(0.99) / NANOS_PER_MILLI,
+                doubleOption("max-lock-wait-p99-ms", 100), "ms");
+        checkMax(breaches, "heap growth", (double) (heapAfter - heapBefore) / BYTES_PER_MB,
+                doubleOption("max-heap-growth-mb", 64), "MB");
+        double minThroughput = doubleOption("min-ops-per-second", 100);
+        if (minThroughput > 0 && throughput < minThroughput)
+            breaches.add(String.format(Locale.US, "throughput %.1f ops/s is under %.1f", throughput, minThroughput));
+
+        for (String breach : breaches)
+            System.out.println("FAILED: " + breach);
+        if (breaches.isEmpty())
+            System.out.println("PASSED");
+        return breaches.isEmpty();
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram, double seconds) {
+        System.out.println(String.format(Locale.US, "%-10s %10d %10.1f %9.2f %9.2f %9.2f %9.2f",
+                name, histogram.getCount(), histogram.getCount() / seconds,
+                histogram.percentile(0.5) / NANOS_PER_MILLI, histogram.percentile(0.99) / NANOS_PER_MILLI,
+                histogram.percentile(0.999) / NANOS_PER_MILLI, histogram.getMax() / NANOS_PER_MILLI));
+    }
+
+    private static void checkMax(List<String> breaches, String name, double value, double max, String unit) {
+        if (max > 0 && value > max)
+            breaches.add(String.format(Locale.US, "%s %.2f %s is over %.2f %s", name, value, unit, max, unit));
+    }
+
+    /**
+     * @param mix For instance query:70,insert:30.
+     * @return The operations, each repeated by its weight, to pick from at random.
+     */
+    private static String[] parseMix(String mix) {
+        List<String> weighted = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.trim().split(":");
+            if (nameAndWeight.length != 2 || !Arrays.asList(OPERATIONS).contains(nameAndWeight[0]))
+                throw new IllegalArgumentException("Invalid mix " + mix);
+            int weight = Integer.parseInt(nameAndWeight[1]);
+            for (int i = 0; i < weight; i++)
+                weighted.add(nameAndWeight[0]);
+        }
+        if (weighted.isEmpty())
+            throw new IllegalArgumentException("Empty mix " + mix);
+        return weighted.toArray(new String[weighted.size()]);
+    }
+
+    private static Connection connect(String url) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA busy_timeout=10000");
+        } finally {
+            statement.close();
+        }
+        return connection;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Growth is measured after a collection, so garbage waiting to be collected doesn't count.
+     */
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return usedHeap();
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = mOptions.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return Double.parseDouble(option(name, String.valueOf(defaultValue)));
+    }
+}
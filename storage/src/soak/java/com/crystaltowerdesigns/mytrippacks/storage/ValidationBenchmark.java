@@ -0,0 +1,131 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Throughput of the bulk insert's row checks: each row put through {@link TripRules#check(String, Map)}
+ * in turn on the calling thread, as bulkInsert did inside its transaction, against
+ * {@link ParallelRows#check(List, ParallelRows.Check)} ahead of it. This is the check the provider's
+ * bulkInsert runs through Validation.checkRow, less the copy between ContentValues and the map.
+ * The rows are trips and stops, about one in a hundred of them invalid.
+ * <p>
+ * Run with {@code ./gradlew :storage:validationBenchmark -PbenchmarkArgs="--rows=1000000"}. Options, with their defaults:
+ * <pre>
+ * --rows=1000000                    rows checked each way per round
+ * --batch=10000                     rows per bulk insert
+ * --rounds=5                        measured rounds, after two to warm up
+ * </pre>
+ */
+public final class ValidationBenchmark {
+
+    private static final ParallelRows.Check<Map<String, Object>> TRIP_CHECK = new ParallelRows.Check<Map<String, Object>>() {
+        @Override
+        public boolean isValid(Map<String, Object> row) {
+            return TripRules.check(TripSchema.TRIPS, row);
+        }
+    };
+
+    private static final ParallelRows.Check<Map<String, Object>> STOP_CHECK = new ParallelRows.Check<Map<String, Object>>() {
+        @Override
+        public boolean isValid(Map<String, Object> row) {
+            return TripRules.check(TripSchema.STOPS, row);
+        }
+    };
+
+    // Constructor to prevent accidentally instantiating the ValidationBenchmark class
+    private ValidationBenchmark() {
+        throw new AssertionError("No instances for you!");
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        int rows = intOption(options, "rows", 1000000);
+        int batch = intOption(options, "batch", 10000);
+        int rounds = intOption(options, "rounds", 5);
+        System.out.println(String.format(Locale.US, "Validation: %d rows in batches of %d, %d cores",
+                rows, batch, Runtime.getRuntime().availableProcessors()));
+
+        for (int round = -2; round < rounds; round++) {
+            long perRowNanos = 0;
+            long batchedNanos = 0;
+            long valid = 0;
+            Random random = new Random(round);
+            for (int done = 0; done < rows; done += batch) {
+                boolean stops = (done / batch) % 2 == 1;
+                ParallelRows.Check<Map<String, Object>> check = stops ? STOP_CHECK : TRIP_CHECK;
+                long seed = random.nextLong();
+
+                List<Map<String, Object>> perRow = generate(stops, Math.min(batch, rows - done), new Random(seed));
+                long start = System.nanoTime();
+                int perRowValid = 0;
+                for (Map<String, Object> row : perRow)
+                    if (check.isValid(row))
+                        perRowValid++;
+                perRowNanos += System.nanoTime() - start;
+
+                List<Map<String, Object>> batched = generate(stops, perRow.size(), new Random(seed));
+                start = System.nanoTime();
+                boolean[] results = ParallelRows.check(batched, check);
+                batchedNanos += System.nanoTime() - start;
+
+                int batchedValid = 0;
+                for (boolean result : results)
+                    if (result)
+                        batchedValid++;
+                if (batchedValid != perRowValid)
+                    throw new IllegalStateException("Batched check passed " + batchedValid + " rows, per row " + perRowValid);
+                valid += batchedValid;
+            }
+            if (round < 0)
+                continue;
+            System.out.println(String.format(Locale.US, "round %d: per row %.0f rows/s, batched %.0f rows/s, x%.2f, %d valid",
+                    round + 1, rows / (perRowNanos / 1e9), rows / (batchedNanos / 1e9),
+                    (double) perRowNanos / batchedNanos, valid));
+        }
+    }
+
+    /**
+     * @return Rows as an import hands them over, dates and numbers as text.
+     */
+    private static List<Map<String, Object>> generate(boolean stops, int count, Random random) {
+        List<Map<String, Object>> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> row = new HashMap<>();
+            boolean invalid = random.nextInt(100) == 0;
+            String date = invalid ? "2018-02-30" : String.format(Locale.US, "2018-%02d-%02d",
+                    1 + random.nextInt(12), 1 + random.nextInt(28));
+            row.put(TripSchema.TRIP_NUMBER, String.valueOf(100000 + random.nextInt(900000)));
+            if (stops) {
+                row.put(TripSchema.LOCATION, "Store " + random.nextInt(5000));
+                row.put(TripSchema.ARRIVAL_HUB, String.valueOf(random.nextInt(500000)));
+                row.put(TripSchema.STOP_INDEX, String.valueOf(i * TripSchema.RANK_GAP));
+                row.put(TripSchema.DATE_COMPLETED, date);
+                row.put(TripSchema.LATITUDE, String.valueOf(25 + random.nextDouble() * 24));
+                row.put(TripSchema.LONGITUDE, String.valueOf(-124 + random.nextDouble() * 57));
+            } else {
+                long hubStart = random.nextInt(500000);
+                row.put(TripSchema.FROM_TO, "Depot " + random.nextInt(50) + " - Depot " + random.nextInt(50));
+                row.put(TripSchema.RECEIVED_DATE, date);
+                row.put(TripSchema.STATE, String.valueOf(TripSchema.STATE_ASSIGNED + random.nextInt(4)));
+                row.put(TripSchema.HUB_START, String.valueOf(hubStart));
+                row.put(TripSchema.HUB_END, String.valueOf(hubStart + random.nextInt(1000)));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+}
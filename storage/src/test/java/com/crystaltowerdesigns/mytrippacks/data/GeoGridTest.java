@@ -0,0 +1,165 @@
+package com.crystaltowerdesigns.mytrippacks.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GeoGridTest {
+
+    /**
+     * The provider's cap on the ring search, past it every stop is read.
+     */
+    private static final int MAX_RINGS = 64;
+
+    @Test
+    public void boxRangesHoldTheCellsOfThePointsInTheBox() {
+        Random random = new Random(35);
+        for (int box = 0; box < 200; box++) {
+            double minLatitude = -80 + random.nextDouble() * 150;
+            double minLongitude = -179 + random.nextDouble() * 350;
+            double maxLatitude = Math.min(90, minLatitude + random.nextDouble() * 0.5);
+            double maxLongitude = Math.min(180, minLongitude + random.nextDouble() * 0.5);
+            long[] ranges = GeoGrid.boxRanges(minLatitude, minLongitude, maxLatitude, maxLongitude);
+            for (int i = 0; i < 50; i++) {
+                double latitude = minLatitude + random.nextDouble() * (maxLatitude - minLatitude);
+                double longitude = minLongitude + random.nextDouble() * (maxLongitude - minLongitude);
+                assertTrue(inRanges(GeoGrid.cell(latitude, longitude), ranges));
+            }
+        }
+    }
+
+    @Test
+    public void squareOfRingsForADistanceHoldsEveryPointWithinIt() {
+        Random random = new Random(36);
+        for (int center = 0; center < 300; center++) {
+            // Some centres near the poles and the 180th meridian, where the cells narrow and wrap
+            double latitude = center % 3 == 0 ? (random.nextBoolean() ? 1 : -1) * (85 + random.nextDouble() * 4.9)
+                    : -80 + random.nextDouble() * 160;
+            double longitude = center % 5 == 0 ? (random.nextBoolean() ? 1 : -1) * (179.9 + random.nextDouble() * 0.1)
+                    : -180 + random.nextDouble() * 360;
+            double meters = 100 + random.nextDouble() * 5000;
+            long[] ranges = GeoGrid.squareRanges(latitude, longitude, GeoGrid.ringsFor(latitude, meters));
+            for (int i = 0; i < 100; i++) {
+                double[] point = offset(latitude, longitude, random.nextDouble() * meters, random.nextDouble() * 2 * Math.PI);
+                if (GeoGrid.distanceMeters(latitude, longitude, point[0], point[1]) <= meters)
+                    assertTrue(inRanges(GeoGrid.cell(point[0], point[1]), ranges));
+            }
+        }
+    }
+
+    @Test
+    public void ringSearchFindsTheBruteForceNearest() {
+        Random random = new Random(37);
+        List<double[]> stops = new ArrayList<>();
+        // Clusters of stops and a sparse scatter between them, across the 180th meridian too
+        for (int cluster = 0; cluster < 20; cluster++) {
+            double latitude = -60 + random.nextDouble() * 120;
+            double longitude = cluster < 3 ? 179.95 : -180 + random.nextDouble() * 360;
+            for (int i = 0; i < 100; i++)
+                stops.add(wrap(latitude + random.nextGaussian() * 0.05, longitude + random.nextGaussian() * 0.05));
+        }
+        for (int i = 0; i < 200; i++)
+            stops.add(wrap(-60 + random.nextDouble() * 120, -180 + random.nextDouble() * 360));
+
+        for (int search = 0; search < 300; search++) {
+            double[] center = stops.get(random.nextInt(stops.size()));
+            double latitude = Math.max(-90, Math.min(90, center[0] + random.nextGaussian() * 0.02));
+            double longitude = wrap(latitude, center[1] + random.nextGaussian() * 0.02)[1];
+            int limit = 1 + random.nextInt(30);
+            assertArrayEquals(bruteForceNearest(stops, latitude, longitude, limit),
+                    ringSearchNearest(stops, latitude, longitude, limit), 1e-6);
+        }
+    }
+
+    @Test
+    public void cellsNumberRowsFromTheSouthWest() {
+        assertEquals(0, GeoGrid.cell(-90, -180));
+        assertEquals(1, GeoGrid.cell(-90, -180 + 1.5 * GeoGrid.CELL_DEGREES));
+        assertEquals(36000, GeoGrid.cell(-90 + 1.5 * GeoGrid.CELL_DEGREES, -180));
+        // The edges fall in the last row and column rather than past them
+        assertEquals(GeoGrid.cell(89.999, 179.999), GeoGrid.cell(90, 180));
+    }
+
+    /**
+     * The provider's search: widen the square until it holds enough stops, then widen it once
+     * more to the distance of the furthest of them.
+     */
+    private static double[] ringSearchNearest(List<double[]> stops, double latitude, double longitude, int limit) {
+        int rings = 0;
+        List<Double> candidates;
+        while (true) {
+            candidates = distancesIn(stops, latitude, longitude, GeoGrid.squareRanges(latitude, longitude, rings));
+            if (candidates.size() >= limit || rings >= MAX_RINGS)
+                break;
+            rings = rings == 0 ? 1 : Math.min(MAX_RINGS, rings * 2);
+        }
+        if (candidates.size() >= limit) {
+            Collections.sort(candidates);
+            int neededRings = GeoGrid.ringsFor(latitude, candidates.get(limit - 1));
+            if (neededRings > rings)
+                candidates = distancesIn(stops, latitude, longitude,
+                        neededRings <= MAX_RINGS ? GeoGrid.squareRanges(latitude, longitude, neededRings) : null);
+        } else {
+            candidates = distancesIn(stops, latitude, longitude, null);
+        }
+        Collections.sort(candidates);
+        double[] nearest = new double[Math.min(limit, candidates.size())];
+        for (int i = 0; i < nearest.length; i++)
+            nearest[i] = candidates.get(i);
+        return nearest;
+    }
+
+    private static double[] bruteForceNearest(List<double[]> stops, double latitude, double longitude, int limit) {
+        double[] distances = new double[stops.size()];
+        for (int i = 0; i < distances.length; i++)
+            distances[i] = GeoGrid.distanceMeters(latitude, longitude, stops.get(i)[0], stops.get(i)[1]);
+        Arrays.sort(distances);
+        return Arrays.copyOf(distances, Math.min(limit, distances.length));
+    }
+
+    /**
+     * @param ranges Cell ranges, or null for every stop.
+     */
+    private static List<Double> distancesIn(List<double[]> stops, double latitude, double longitude, long[] ranges) {
+        List<Double> distances = new ArrayList<>();
+        for (double[] stop : stops)
+            if (ranges == null || inRanges(GeoGrid.cell(stop[0], stop[1]), ranges))
+                distances.add(GeoGrid.distanceMeters(latitude, longitude, stop[0], stop[1]));
+        return distances;
+    }
+
+    private static boolean inRanges(long cell, long[] ranges) {
+        for (int i = 0; i < ranges.length; i += 2)
+            if (cell >= ranges[i] && cell <= ranges[i + 1])
+                return true;
+        return false;
+    }
+
+    /**
+     * @return The point the distance away on the bearing, by the spherical destination formula.
+     */
+    private static double[] offset(double latitude, double longitude, double meters, double bearing) {
+        double angle = meters / 6371008.8;
+        double lat1 = Math.toRadians(latitude);
+        double lat2 = Math.asin(Math.sin(lat1) * Math.cos(angle) + Math.cos(lat1) * Math.sin(angle) * Math.cos(bearing));
+        double lon2 = Math.toRadians(longitude) + Math.atan2(Math.sin(bearing) * Math.sin(angle) * Math.cos(lat1),
+                Math.cos(angle) - Math.sin(lat1) * Math.sin(lat2));
+        return wrap(Math.toDegrees(lat2), Math.toDegrees(lon2));
+    }
+
+    private static double[] wrap(double latitude, double longitude) {
+        while (longitude >= 180)
+            longitude -= 360;
+        while (longitude < -180)
+            longitude += 360;
+        return new double[]{Math.max(-90, Math.min(90, latitude)), longitude};
+    }
+}
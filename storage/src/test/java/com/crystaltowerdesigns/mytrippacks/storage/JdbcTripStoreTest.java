@@ -0,0 +1,189 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import com.crystaltowerdesigns.mytrippacks.data.EpochDays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JdbcTripStoreTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private JdbcTripStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(mFolder.getRoot(), "trips.db");
+        mStore = open(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    @Test
+    public void insertFillsInTheEpochDay() {
+        long id = mStore.insert(TripSchema.TRIPS, trip("1001", TripSchema.STATE_OPEN));
+        assertTrue(id > 0);
+
+        List<Map<String, Object>> rows = mStore.query(TripSchema.TRIPS, null, TripSchema.ID + "=?",
+                new String[]{String.valueOf(id)}, null, null);
+        assertEquals(1, rows.size());
+        assertEquals("1001", rows.get(0).get(TripSchema.TRIP_NUMBER));
+        assertEquals((long) EpochDays.parse("2018-08-22"), rows.get(0).get(TripSchema.RECEIVED_DAY));
+    }
+
+    @Test
+    public void rejectsRowsBreakingTheRulesOrConstraints() {
+        assertTrue(mStore.insert(TripSchema.TRIPS, trip("1001", TripSchema.STATE_OPEN)) > 0);
+
+        assertEquals(-1, mStore.insert(TripSchema.TRIPS, trip("1002", 9)));
+        assertEquals(-1, mStore.insert(TripSchema.TRIPS, trip("", TripSchema.STATE_OPEN)));
+        Map<String, Object> badDate = trip("1003", TripSchema.STATE_OPEN);
+        badDate.put(TripSchema.RECEIVED_DATE, "22/08/2018");
+        assertEquals(-1, mStore.insert(TripSchema.TRIPS, badDate));
+        // The unique trip number and a NOT NULL column
+        assertEquals(-1, mStore.insert(TripSchema.TRIPS, trip("1001", TripSchema.STATE_OPEN)));
+        Map<String, Object> noFromTo = trip("1004", TripSchema.STATE_OPEN);
+        noFromTo.remove(TripSchema.FROM_TO);
+        assertEquals(-1, mStore.insert(TripSchema.TRIPS, noFromTo));
+
+        assertEquals(1, mStore.query(TripSchema.TRIPS, null, null, null, null, null).size());
+    }
+
+    @Test
+    public void bulkInsertSkipsRejectedRows() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(trip("1001", TripSchema.STATE_OPEN));
+        rows.add(trip("1002", 9));
+        rows.add(trip("1003", TripSchema.STATE_CLOSED));
+        rows.add(trip("1001", TripSchema.STATE_OPEN));
+
+        assertEquals(2, mStore.bulkInsert(TripSchema.TRIPS, rows));
+        Map<Integer, Integer> counts = mStore.stateCounts();
+        assertEquals(Integer.valueOf(1), counts.get(TripSchema.STATE_OPEN));
+        assertEquals(Integer.valueOf(1), counts.get(TripSchema.STATE_CLOSED));
+    }
+
+    @Test
+    public void stopsShareTheirLocationRow() {
+        mStore.insert(TripSchema.TRIPS, trip("1001", TripSchema.STATE_OPEN));
+        List<Map<String, Object>> stops = new ArrayList<>();
+        stops.add(stop("1001", 1, "Customer 7"));
+        stops.add(stop("1001", 2, "Customer 7"));
+        stops.add(stop("1001", 3, "Depot 1"));
+        assertEquals(3, mStore.bulkInsert(TripSchema.STOPS, stops));
+
+        List<Map<String, Object>> rows = mStore.query(TripSchema.STOPS, new String[]{TripSchema.LOCATION,
+                TripSchema.LOCATION_ID}, null, null, TripSchema.STOP_INDEX, null);
+        assertEquals("Customer 7", rows.get(0).get(TripSchema.LOCATION));
+        assertEquals(rows.get(0).get(TripSchema.LOCATION_ID), rows.get(1).get(TripSchema.LOCATION_ID));
+        assertEquals("Depot 1", rows.get(2).get(TripSchema.LOCATION));
+        assertEquals(2, mStore.query(TripSchema.LOCATIONS, null, null, null, null, null).size());
+    }
+
+    @Test
+    public void updateChecksTheRules() {
+        long id = mStore.insert(TripSchema.TRIPS, trip("1001", TripSchema.STATE_OPEN));
+        Map<String, Object> values = new HashMap<>();
+        values.put(TripSchema.STATE, 9);
+        assertEquals(0, mStore.update(TripSchema.TRIPS, id, values));
+        values.put(TripSchema.STATE, TripSchema.STATE_CLOSED);
+        assertEquals(1, mStore.update(TripSchema.TRIPS, id, values));
+        assertEquals(Integer.valueOf(1), mStore.stateCounts().get(TripSchema.STATE_CLOSED));
+    }
+
+    @Test
+    public void softDeletedTripsAndTheirStopsAreLeftOut() {
+        long deleted = mStore.insert(TripSchema.TRIPS, trip("1001", TripSchema.STATE_OPEN));
+        mStore.insert(TripSchema.TRIPS, trip("1002", TripSchema.STATE_OPEN));
+        mStore.insert(TripSchema.STOPS, stop("1001", 1, "Customer 7"));
+        mStore.insert(TripSchema.STOPS, stop("1002", 1, "Customer 8"));
+
+        Map<String, Object> values = new HashMap<>();
+        values.put(TripSchema.DELETED_AT, 1534900000000L);
+        assertEquals(1, mStore.update(TripSchema.TRIPS, deleted, values));
+
+        List<Map<String, Object>> trips = mStore.query(TripSchema.TRIPS, null, null, null, null, null);
+        assertEquals(1, trips.size());
+        assertEquals("1002", trips.get(0).get(TripSchema.TRIP_NUMBER));
+        List<Map<String, Object>> stops = mStore.query(TripSchema.STOPS, null, null, null, null, null);
+        assertEquals(1, stops.size());
+        assertEquals("1002", stops.get(0).get(TripSchema.TRIP_NUMBER));
+        assertEquals(Integer.valueOf(1), mStore.stateCounts().get(TripSchema.STATE_OPEN));
+    }
+
+    @Test
+    public void rowsSurviveReopening() throws Exception {
+        mStore.insert(TripSchema.TRIPS, trip("1001", TripSchema.STATE_OPEN));
+        mStore.insert(TripSchema.STOPS, stop("1001", 1, "Customer 7"));
+        mStore.close();
+
+        mStore = open(mFile);
+        assertEquals(1, mStore.query(TripSchema.TRIPS, null, null, null, null, null).size());
+        List<Map<String, Object>> stops = mStore.query(TripSchema.STOPS, null, null, null, null, null);
+        assertEquals("Customer 7", stops.get(0).get(TripSchema.LOCATION));
+    }
+
+    @Test
+    public void refusesADatabaseOfAnotherVersion() throws Exception {
+        File other = new File(mFolder.getRoot(), "old.db");
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + other.getPath());
+        Statement statement = connection.createStatement();
+        statement.execute("PRAGMA user_version = " + (TripSchema.VERSION - 1));
+        statement.close();
+        try {
+            new JdbcTripStore(connection);
+            fail("Opened a version " + (TripSchema.VERSION - 1) + " database");
+        } catch (IllegalStateException e) {
+            // Expected
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static JdbcTripStore open(File file) throws SQLException {
+        return new JdbcTripStore(DriverManager.getConnection("jdbc:sqlite:" + file.getPath()));
+    }
+
+    private static Map<String, Object> trip(String tripNumber, int state) {
+        Map<String, Object> values = new HashMap<>();
+        values.put(TripSchema.TRIP_NUMBER, tripNumber);
+        values.put(TripSchema.FROM_TO, "Depot 1 - Depot 2");
+        values.put(TripSchema.RECEIVED_DATE, "2018-08-22");
+        values.put(TripSchema.STATE, state);
+        values.put(TripSchema.HUB_START, 1000);
+        values.put(TripSchema.HUB_END, 1400);
+        return values;
+    }
+
+    private static Map<String, Object> stop(String tripNumber, int index, String location) {
+        Map<String, Object> values = new HashMap<>();
+        values.put(TripSchema.TRIP_NUMBER, tripNumber);
+        values.put(TripSchema.LOCATION, location);
+        values.put(TripSchema.ARRIVAL_HUB, 1000 + index * 10);
+        values.put(TripSchema.STOP_INDEX, index * TripSchema.RANK_GAP);
+        values.put(TripSchema.DATE_COMPLETED, "2018-08-22");
+        return values;
+    }
+}
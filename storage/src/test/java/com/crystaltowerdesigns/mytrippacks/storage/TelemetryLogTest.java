@@ -0,0 +1,162 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TelemetryLogTest {
+
+    private static final int CAPACITY = 64;
+
+    /**
+     * Header and record layout of the file, see {@link TelemetryLog}.
+     */
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 56;
+    private static final int RECORD_CRC = 48;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * The consumer's side, as the recorder keeps it in the database: the last reading stored and
+     * the readings summed up, both committed together.
+     */
+    private long mStoredSeq;
+    private long mStoredReadings;
+
+    @Test
+    public void aCrashBeforeMarkFlushedDoesNotStoreReadingsTwice() throws Exception {
+        File file = mFolder.newFile("telemetry.log");
+        file.delete();
+        TelemetryLog log = TelemetryLog.open(file, CAPACITY);
+        appendReadings(log, 25);
+
+        // Stored and committed, then killed before the log heard of it
+        List<TelemetryLog.Reading> batch = log.pending(10);
+        store(batch);
+        log.sync();
+
+        log = TelemetryLog.open(file, CAPACITY);
+        assertEquals(25, log.getPendingCount());
+        batch = log.pending(10);
+        assertEquals(1, batch.get(0).seq);
+        assertEquals(batch.size(), TelemetryLog.firstUnstored(batch, mStoredSeq));
+        flush(log);
+        assertEquals(0, log.getPendingCount());
+        assertEquals(25, mStoredReadings);
+        assertEquals(25, log.getFlushedSeq());
+
+        // A batch read after the restart may reach past the one stored before it
+        appendReadings(log, 10);
+        store(log.pending(4));
+        log = TelemetryLog.open(file, CAPACITY);
+        List<TelemetryLog.Reading> longer = log.pending(100);
+        assertEquals(10, longer.size());
+        assertEquals(4, TelemetryLog.firstUnstored(longer, mStoredSeq));
+        flush(log);
+        assertEquals(35, mStoredReadings);
+
+        // And the log carries on where it was
+        assertTrue(log.append(1, 0, 0, Double.NaN, Double.NaN));
+        assertEquals(36, log.pending(1).get(0).seq);
+    }
+
+    @Test
+    public void aLogStartedOverHasOnlyNewReadings() throws Exception {
+        File file = mFolder.newFile("telemetry.log");
+        file.delete();
+        TelemetryLog log = TelemetryLog.open(file, CAPACITY);
+        appendReadings(log, 10);
+        // The database holds readings of a log file since lost
+        mStoredSeq = 500;
+        assertEquals(0, TelemetryLog.firstUnstored(log.pending(10), mStoredSeq));
+        flush(log);
+        assertEquals(10, mStoredReadings);
+    }
+
+    @Test
+    public void aTornRecordEndsTheLog() throws Exception {
+        File file = mFolder.newFile("telemetry.log");
+        file.delete();
+        TelemetryLog log = TelemetryLog.open(file, CAPACITY);
+        appendReadings(log, 10);
+        log.sync();
+        corruptCrc(file, 6);
+
+        log = TelemetryLog.open(file, CAPACITY);
+        List<TelemetryLog.Reading> readings = log.pending(100);
+        assertEquals(5, readings.size());
+        assertEquals(5, readings.get(4).seq);
+
+        // The records past the torn one don't come back behind a new reading
+        assertTrue(log.append(6, 0, 0, Double.NaN, Double.NaN));
+        log.sync();
+        log = TelemetryLog.open(file, CAPACITY);
+        readings = log.pending(100);
+        assertEquals(6, readings.size());
+        assertEquals(6, readings.get(5).stopId);
+    }
+
+    @Test
+    public void aFullRingDropsReadingsUntilFlushed() throws Exception {
+        File file = mFolder.newFile("telemetry.log");
+        file.delete();
+        TelemetryLog log = TelemetryLog.open(file, CAPACITY);
+        appendReadings(log, CAPACITY);
+        assertFalse(log.append(1, 0, 0, Double.NaN, Double.NaN));
+        assertEquals(1, log.getDropped());
+
+        log.markFlushed(log.pending(10).get(9).seq);
+        assertEquals(CAPACITY - 10, log.getPendingCount());
+        appendReadings(log, 10);
+        List<TelemetryLog.Reading> readings = log.pending(CAPACITY);
+        assertEquals(CAPACITY, readings.size());
+        for (int i = 0; i < readings.size(); i++)
+            assertEquals(11 + i, readings.get(i).seq);
+    }
+
+    private static void appendReadings(TelemetryLog log, int count) {
+        for (int i = 0; i < count; i++)
+            assertTrue(log.append(1 + i % 3, 1000L * i, 100 + i, 45.5, -73.5));
+    }
+
+    /**
+     * The recorder's flush: skip what was stored before a crash, commit, then mark the log.
+     */
+    private void flush(TelemetryLog log) {
+        List<TelemetryLog.Reading> batch;
+        while (!(batch = log.pending(10)).isEmpty()) {
+            store(batch);
+            log.markFlushed(batch.get(batch.size() - 1).seq);
+        }
+    }
+
+    private void store(List<TelemetryLog.Reading> batch) {
+        int first = TelemetryLog.firstUnstored(batch, mStoredSeq);
+        for (TelemetrySummary summary : TelemetrySummary.summarize(batch.subList(first, batch.size())))
+            mStoredReadings += summary.getReadings();
+        mStoredSeq = batch.get(batch.size() - 1).seq;
+    }
+
+    private static void corruptCrc(File file, long seq) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long offset = HEADER_SIZE + (seq % CAPACITY) * RECORD_SIZE + RECORD_CRC;
+            raf.seek(offset);
+            int crc = raf.readInt();
+            raf.seek(offset);
+            raf.writeInt(~crc);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.crystaltowerdesigns.mytrippacks.storage;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TripIndexTest {
+
+    private static final int[] STATES = {TripSchema.STATE_ASSIGNED, TripSchema.STATE_OPEN,
+            TripSchema.STATE_CLOSED, TripSchema.STATE_SUBMITTED};
+
+    @Test
+    public void putReplacesTheTripWithTheSameId() {
+        TripIndex index = new TripIndex(0);
+        index.put(7, 100, TripSchema.STATE_OPEN, 1000, 1400, 17000, TripIndex.NO_DAY);
+        index.put(7, 200, TripSchema.STATE_CLOSED, 1000, 1500, 17000, 17001);
+        assertEquals(1, index.size());
+        assertArrayEquals(new long[]{7}, index.select(new TripIndex.Filter().states(TripSchema.STATE_CLOSED),
+                TripIndex.SORT_TRIP_NUMBER, false));
+        assertArrayEquals(new long[0], index.select(new TripIndex.Filter().states(TripSchema.STATE_OPEN),
+                TripIndex.SORT_TRIP_NUMBER, false));
+    }
+
+    @Test
+    public void removeFillsTheGapWithTheLastRow() {
+        TripIndex index = new TripIndex(0);
+        for (long id = 1; id <= 5; id++)
+            index.put(id, id, TripSchema.STATE_OPEN, 0, 0, TripIndex.NO_DAY, TripIndex.NO_DAY);
+        assertTrue(index.remove(2));
+        assertFalse(index.remove(2));
+        assertFalse(index.contains(2));
+        assertEquals(4, index.size());
+        assertArrayEquals(new long[]{1, 3, 4, 5}, index.select(null, TripIndex.SORT_TRIP_NUMBER, false));
+        // The row moved into the gap is still found by its id
+        index.put(5, 0.5, TripSchema.STATE_CLOSED, 0, 0, TripIndex.NO_DAY, TripIndex.NO_DAY);
+        assertArrayEquals(new long[]{5, 1, 3, 4}, index.select(null, TripIndex.SORT_TRIP_NUMBER, false));
+    }
+
+    /**
+     * Removing from the hash shifts back the entries probed past the gap; any mistake there loses
+     * an id or finds a removed one. Sequential and clustered ids, as the database hands them out.
+     */
+    @Test
+    public void matchesAMapThroughRandomPutsAndRemoves() {
+        Random random = new Random(44);
+        TripIndex index = new TripIndex(0);
+        Map<Long, double[]> model = new HashMap<>();
+        for (int step = 0; step < 200000; step++) {
+            long id = random.nextInt(4) == 0 ? 1 + random.nextInt(100000) : 1 + random.nextInt(3000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(model.remove(id) != null, index.remove(id));
+            } else {
+                double[] row = {random.nextInt(500), STATES[random.nextInt(4)], random.nextInt(100000),
+                        random.nextInt(2000), random.nextBoolean() ? TripIndex.NO_DAY : 17000 + random.nextInt(365)};
+                index.put(id, row[0], (int) row[1], (long) row[2], (long) row[2] + (long) row[3], (int) row[4], TripIndex.NO_DAY);
+                model.put(id, row);
+            }
+            if (step % 1000 == 0)
+                assertEquals(model.size(), index.size());
+        }
+        assertEquals(model.size(), index.size());
+        for (long id = 1; id <= 100000; id++)
+            assertEquals(model.containsKey(id), index.contains(id));
+
+        TripIndex.Filter filter = new TripIndex.Filter().states(TripSchema.STATE_OPEN, TripSchema.STATE_CLOSED)
+                .hubRange(10000, 80000).receivedBetween(17050, 17300);
+        assertArrayEquals(modelSelect(model, 0, false, true), index.select(filter, TripIndex.SORT_TRIP_NUMBER, false));
+        assertArrayEquals(modelSelect(model, 0, true, true), index.select(filter, TripIndex.SORT_TRIP_NUMBER, true));
+        assertArrayEquals(modelSelect(model, 2, false, false), index.select(null, TripIndex.SORT_HUB_START, false));
+    }
+
+    @Test
+    public void tripNumberKeyReadsAsSqliteCast() throws Exception {
+        String[] tripNumbers = {"1001", "  42", "0042", "-7", "+8", "3.25", "3.", ".5", "1e3", "1E+2", "2e", "2e-",
+                "12abc", "abc12", "", " ", "-", "1.5.6", "9999999999999999999", "7 8", "0x1F", "1,5"};
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT CAST(? AS FLOAT)");
+            for (String tripNumber : tripNumbers) {
+                statement.setString(1, tripNumber);
+                ResultSet result = statement.executeQuery();
+                result.next();
+                assertEquals("CAST('" + tripNumber + "' AS FLOAT)", result.getDouble(1),
+                        TripIndex.tripNumberKey(tripNumber), 0);
+                result.close();
+            }
+            statement.close();
+        } finally {
+            connection.close();
+        }
+        assertEquals(0, TripIndex.tripNumberKey(null), 0);
+    }
+
+    /**
+     * @param column Index into the model's rows to sort by.
+     */
+    private static long[] modelSelect(Map<Long, double[]> model, final int column, final boolean descending,
+                                      boolean filtered) {
+        final List<Map.Entry<Long, double[]>> matches = new ArrayList<>();
+        for (Map.Entry<Long, double[]> entry : model.entrySet()) {
+            double[] row = entry.getValue();
+            int state = (int) row[1];
+            double hubStart = row[2];
+            double hubEnd = row[2] + row[3];
+            int receivedDay = (int) row[4];
+            if (!filtered || (state == TripSchema.STATE_OPEN || state == TripSchema.STATE_CLOSED)
+                    && hubStart >= 10000 && hubEnd <= 80000
+                    && receivedDay != TripIndex.NO_DAY && receivedDay >= 17050 && receivedDay <= 17300)
+                matches.add(entry);
+        }
+        Collections.sort(matches, new Comparator<Map.Entry<Long, double[]>>() {
+            @Override
+            public int compare(Map.Entry<Long, double[]> a, Map.Entry<Long, double[]> b) {
+                int compare = Double.compare(a.getValue()[column], b.getValue()[column]);
+                if (compare != 0)
+                    return descending ? -compare : compare;
+                return Long.compare(a.getKey(), b.getKey());
+            }
+        });
+        long[] ids = new long[matches.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = matches.get(i).getKey();
+        return ids;
+    }
+}